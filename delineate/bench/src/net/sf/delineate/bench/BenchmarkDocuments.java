@@ -0,0 +1,88 @@
+/*
+ * BenchmarkDocuments.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.bench;
+
+import net.sf.delineate.StubTracer;
+import net.sf.delineate.utility.SvgOptimizer;
+import org.apache.batik.anim.dom.SAXSVGDocumentFactory;
+import org.apache.batik.util.SVGConstants;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.w3c.dom.svg.SVGDocument;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Generates SVG documents like those traced by autotrace and potrace, for
+ * benchmarks. Documents are the same for the same arguments on every run.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class BenchmarkDocuments {
+
+    public static final int WIDTH = 2000;
+    public static final int HEIGHT = 1500;
+    public static final int COLOR_COUNT = 16;
+    public static final int SEGMENT_COUNT = 8;
+    public static final long SEED = 1;
+
+    /**
+     * Returns SVG text in tracing application style, with the SVG namespace
+     * added as Conversion does before optimizing.
+     */
+    public static String createSvg(boolean potraceStyle, boolean centerline, int pathCount) throws IOException {
+        StubTracer stubTracer = new StubTracer(potraceStyle, centerline, WIDTH, HEIGHT, pathCount, COLOR_COUNT, SEGMENT_COUNT, SEED);
+        StringWriter writer = new StringWriter(pathCount * 128);
+        stubTracer.writeSvg(writer);
+
+        String svg = writer.toString();
+        return svg.replaceFirst("<svg width", "<svg xmlns=\"" + SVGConstants.SVG_NAMESPACE_URI + "\" width");
+    }
+
+    public static SVGDocument createDocument(boolean potraceStyle, boolean centerline, int pathCount) throws IOException {
+        return createDocument(createSvg(potraceStyle, centerline, pathCount));
+    }
+
+    public static SVGDocument createDocument(String svg) throws IOException {
+        SAXSVGDocumentFactory factory = new SAXSVGDocumentFactory(XMLResourceDescriptor.getXMLParserClassName());
+        return (SVGDocument)factory.createDocument("file:/benchmark.svg", new StringReader(svg));
+    }
+
+    /**
+     * Returns optimize type constant for its field name, as optimizers compare
+     * types by reference.
+     */
+    public static String getOptimizeType(String name) {
+        if(name.equals("NO_GROUPS")) {
+            return SvgOptimizer.NO_GROUPS;
+        } else if(name.equals("ONE_GROUP")) {
+            return SvgOptimizer.ONE_GROUP;
+        } else if(name.equals("COLOR_GROUPS")) {
+            return SvgOptimizer.COLOR_GROUPS;
+        } else if(name.equals("STYLE_DEFS")) {
+            return SvgOptimizer.STYLE_DEFS;
+        } else if(name.equals("COLOR_PATHS")) {
+            return SvgOptimizer.COLOR_PATHS;
+        } else {
+            throw new IllegalArgumentException("Unknown optimize type: " + name);
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * SvgOptimizerBenchmark.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.bench;
+
+import net.sf.delineate.utility.AutotraceSvgOptimizer;
+import net.sf.delineate.utility.PotraceSvgOptimizer;
+import net.sf.delineate.utility.SvgOptimizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.svg.SVGDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time to write optimized SVG from traced documents of 1k to 1M
+ * paths, for each optimize type and for centerline and outline tracing.
+ * The streaming benchmarks read the traced SVG text instead of a document.
+ * In parallel runs path data is compacted on the common fork/join pool.
+ * Run with -prof gc to see allocation rates, as the bench target does.
+ * @author robmckinnon@users.sourceforge.net
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class SvgOptimizerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class AutotraceDocument {
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int pathCount;
+
+        @Param({"NO_GROUPS", "ONE_GROUP", "COLOR_GROUPS", "STYLE_DEFS", "COLOR_PATHS"})
+        public String optimizeType;
+
+        @Param({"false", "true"})
+        public boolean centerline;
+
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        String svg;
+        SVGDocument document;
+        SvgOptimizer optimizer;
+        File outputFile;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            svg = BenchmarkDocuments.createSvg(false, centerline, pathCount);
+            document = BenchmarkDocuments.createDocument(svg);
+            optimizer = new AutotraceSvgOptimizer();
+            optimizer.setOptimizeType(BenchmarkDocuments.getOptimizeType(optimizeType));
+            optimizer.setCenterlineEnabled(centerline);
+            optimizer.setParallel(parallel);
+            outputFile = File.createTempFile("optimizer-benchmark", ".svg");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            outputFile.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PotraceDocument {
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int pathCount;
+
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        String svg;
+        SVGDocument document;
+        SvgOptimizer optimizer;
+        File outputFile;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            svg = BenchmarkDocuments.createSvg(true, false, pathCount);
+            document = BenchmarkDocuments.createDocument(svg);
+            optimizer = new PotraceSvgOptimizer();
+            optimizer.setParallel(parallel);
+            outputFile = File.createTempFile("optimizer-benchmark", ".svg");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            outputFile.delete();
+        }
+    }
+
+    @Benchmark
+    public int autotrace(AutotraceDocument state) {
+        state.optimizer.optimize(state.outputFile, state.document);
+        return state.optimizer.getPathCount();
+    }
+
+    @Benchmark
+    public int potrace(PotraceDocument state) {
+        state.optimizer.optimize(state.outputFile, state.document);
+        return state.optimizer.getPathCount();
+    }
+
+    @Benchmark
+    public int autotraceStreaming(AutotraceDocument state) throws IOException {
+        state.optimizer.optimize(state.outputFile, new StringReader(state.svg));
+        return state.optimizer.getPathCount();
+    }
+
+    @Benchmark
+    public int potraceStreaming(PotraceDocument state) throws IOException {
+        state.optimizer.optimize(state.outputFile, new StringReader(state.svg));
+        return state.optimizer.getPathCount();
+    }
+
+}
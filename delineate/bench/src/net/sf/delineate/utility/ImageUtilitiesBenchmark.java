@@ -0,0 +1,286 @@
+/*
+ * ImageUtilitiesBenchmark.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import net.sourceforge.jiu.data.BilevelImage;
+import net.sourceforge.jiu.data.GrayIntegerImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.data.RGB24Image;
+import net.sourceforge.jiu.gui.awt.ImageCreator;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each raster preprocessing step and the whole convertToPnm and
+ * convertToPbm conversions, on generated images of 1 to 100 megapixels.
+ * Besides operations per second, reports a megapixels counter in megapixels
+ * per second and a bytesPerPixel counter of bytes allocated per pixel.
+ *
+ * In the utility package as the individual steps are package private.
+ * @author robmckinnon@users.sourceforge.net
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class ImageUtilitiesBenchmark {
+
+    private static final int THRESHOLD_PERCENT = 50;
+
+    @State(Scope.Benchmark)
+    public static class Images {
+        @Param({"1", "10", "100"})
+        public int megapixels;
+
+        long pixelCount;
+        File pngFile;
+        File bmpFile;
+        File ppmFile;
+        File pbmFile;
+        RGB24Image rgbImage;
+        GrayIntegerImage greyImage;
+        BilevelImage bilevelImage;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BufferedImage image = createImage(megapixels);
+            pixelCount = (long)image.getWidth() * image.getHeight();
+
+            pngFile = File.createTempFile("image-benchmark", ".png");
+            ImageIO.write(image, "png", pngFile);
+            bmpFile = File.createTempFile("image-benchmark", ".bmp");
+            ImageIO.write(image, "bmp", bmpFile);
+
+            rgbImage = ImageCreator.convertImageToRGB24Image(image);
+            image = null;
+            greyImage = ImageUtilities.convertRgbToGrey(rgbImage);
+            bilevelImage = ImageUtilities.convertGreyToBilevel(greyImage, THRESHOLD_PERCENT);
+
+            ppmFile = ImageUtilities.saveAsPnm(rgbImage, "image-benchmark");
+            pbmFile = ImageUtilities.saveAsPnm(bilevelImage, "image-benchmark");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pngFile.delete();
+            bmpFile.delete();
+            ppmFile.delete();
+            pbmFile.delete();
+        }
+    }
+
+    /**
+     * Megapixels processed, reported by JMH as a rate in megapixels per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megapixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megapixels = 0;
+        }
+
+        void add(Images images) {
+            megapixels += images.pixelCount / 1000000.0;
+        }
+    }
+
+    /**
+     * Bytes allocated per pixel processed, over the iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Allocation {
+        public double bytesPerPixel;
+
+        private final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        private long allocatedBytes;
+        private long pixelCount;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytesPerPixel = 0;
+            allocatedBytes = 0;
+            pixelCount = 0;
+        }
+
+        long start() {
+            return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        void stop(long start, Images images) {
+            allocatedBytes += threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+            pixelCount += images.pixelCount;
+            bytesPerPixel = (double)allocatedBytes / pixelCount;
+        }
+    }
+
+    /**
+     * Returns deterministic image with gradients, checks and noise, sized
+     * to the given number of megapixels at a 4:3 aspect ratio.
+     */
+    static BufferedImage createImage(int megapixels) {
+        int width = (int)Math.round(Math.sqrt(megapixels * 1000000.0 * 4 / 3));
+        int height = (int)(megapixels * 1000000L / width);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(1);
+
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                int red = x * 255 / width;
+                int green = y * 255 / height;
+                int blue = ((x / 64 + y / 64) % 2 == 0) ? 40 : 215;
+                int noise = random.nextInt(33) - 16;
+                pixels[y * width + x] = clamp(red + noise) << 16 | clamp(green + noise) << 8 | clamp(blue + noise);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    @Benchmark
+    public PixelImage loadPng(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        PixelImage image = ImageUtilities.loadViaToolkitOrCodecs(images.pngFile);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return image;
+    }
+
+    @Benchmark
+    public PixelImage loadBmp(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        PixelImage image = ImageUtilities.loadViaToolkitOrCodecs(images.bmpFile);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return image;
+    }
+
+    @Benchmark
+    public PixelImage loadPnm(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        PixelImage image = ImageUtilities.loadPnm(images.ppmFile);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return image;
+    }
+
+    @Benchmark
+    public RGB24Image promoteToRgb(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        RGB24Image image = ImageUtilities.promoteToRgb(images.greyImage);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return image;
+    }
+
+    @Benchmark
+    public GrayIntegerImage convertRgbToGrey(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        GrayIntegerImage image = ImageUtilities.convertRgbToGrey(images.rgbImage);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return image;
+    }
+
+    @Benchmark
+    public BilevelImage convertGreyToBilevel(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        BilevelImage image = ImageUtilities.convertGreyToBilevel(images.greyImage, THRESHOLD_PERCENT);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return image;
+    }
+
+    @Benchmark
+    public long saveAsPbm(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        File file = ImageUtilities.saveAsPnm(images.bilevelImage, "image-benchmark");
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return deleteFile(file);
+    }
+
+    @Benchmark
+    public Dimension getDimension(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        Dimension dimension = ImageUtilities.getDimension(images.pbmFile);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return dimension;
+    }
+
+    @Benchmark
+    public long convertToPnm(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        File file = ImageUtilities.convertToPnm(images.pngFile);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return deleteFile(file);
+    }
+
+    @Benchmark
+    public long convertToPbm(Images images, Megapixels megapixels, Allocation allocation) throws Exception {
+        long start = allocation.start();
+        File file = ImageUtilities.convertToPbm(images.pngFile, THRESHOLD_PERCENT);
+        allocation.stop(start, images);
+        megapixels.add(images);
+        return deleteFile(file);
+    }
+
+    private static long deleteFile(File file) throws IOException {
+        long length = file.length();
+        if(!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+        return length;
+    }
+
+}
@@ -19,7 +19,9 @@
  */
 package net.sf.delineate;
 
+import net.sf.delineate.command.Conversion;
 import net.sf.delineate.gui.RenderingListener;
+import net.sf.delineate.gui.ResultFileListener;
 import net.sf.delineate.gui.SettingsPanel;
 import net.sf.delineate.gui.SvgViewerController;
 import net.sf.delineate.gui.SpinnerSlider;
@@ -31,21 +33,16 @@ import javax.swing.event.ChangeEvent;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseMotionAdapter;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.List;
-import java.util.ArrayList;
 import java.io.File;
 import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.batik.util.SVGConstants;
 import org.xml.sax.SAXException;
 
 /**
@@ -56,7 +53,26 @@ public class DelineateApplication {
     public static final String CONVERT_IMAGE_ACTION = "Convert";
     private static final JFrame frame = new JFrame("Delineate - raster to SVG converter");
     private final SvgViewerController svgViewerController;
-    private List<JPanel> convertPanelList = new ArrayList<JPanel>(5);
+
+    /** Runs one conversion at a time, a newer conversion replaces any still waiting to run */
+    private final ExecutorService conversionExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.DiscardOldestPolicy());
+    private Conversion currentConversion;
+    private Future<?> currentConversionTask;
+
+    private static final String SETTINGS_FILE_NAME = "settings.prop";
+    private static final String CACHE_DIRECTORY_PROPERTY = "cache-directory";
+    private static final String CACHE_SIZE_PROPERTY = "cache-size";
+
+    /** Results of previous conversions, so switching back to earlier settings needs no tracing, null if disabled */
+    private final TraceCache traceCache = createTraceCache();
+
+    /** Conversion whose result is stored in the cache once it has been optimized and rendered */
+    private volatile Conversion uncachedConversion;
+    private volatile SvgOptimizer uncachedConversionOptimizer;
+
+    /** Element count and file size of the result and previous result, to compare result options */
+    private final JLabel resultSizeLabel = new JLabel(" ");
 
     public DelineateApplication(String autotraceParameterFile, String potraceParameterFile) throws Exception {
         GuiUtilities.setFrame(frame);
@@ -79,13 +95,28 @@ public class DelineateApplication {
         frame.setBounds(130, 0, 800, 740);
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 
-        frame.getGlassPane().addMouseListener(new MouseAdapter() {});
-        frame.getGlassPane().addMouseMotionListener(new MouseMotionAdapter() {});
-        frame.getGlassPane().addKeyListener(new KeyAdapter() {});
-
         frame.setVisible(true);
     }
 
+    /**
+     * Returns cache in the directory given by the cache-directory setting,
+     * ./cache by default, limited to the cache-size setting in megabytes,
+     * 256 by default. Returns null if the size is 0, to disable caching.
+     */
+    private static TraceCache createTraceCache() {
+        Properties properties = SettingUtilities.loadProperties(SETTINGS_FILE_NAME, null);
+        String directory = properties.getProperty(CACHE_DIRECTORY_PROPERTY, "./cache");
+        long maxSize = 256;
+
+        try {
+            maxSize = Long.parseLong(properties.getProperty(CACHE_SIZE_PROPERTY, "256").trim());
+        } catch(NumberFormatException e) {
+            System.out.println("Invalid " + CACHE_SIZE_PROPERTY + " setting, using " + maxSize + "MB: " + e.getMessage());
+        }
+
+        return (maxSize > 0) ? new TraceCache(new File(directory), maxSize * 1024 * 1024) : null;
+    }
+
     private void addControlTab(String parameterFile, JTabbedPane tabbedPane, boolean optionsPanel) throws Exception, IOException, SAXException {
         XPathTool xpathTool = new XPathTool(new File(parameterFile));
         String label = xpathTool.string("/parameters/command/label");
@@ -93,6 +124,7 @@ public class DelineateApplication {
         String optimizer = xpathTool.string("/parameters/command/svg-optimizer");
         Class optimizerClass = Class.forName(optimizer);
         SvgOptimizer svgOptimizer = (SvgOptimizer)optimizerClass.newInstance();
+        svgOptimizer.setPasses(SvgOptimizer.readPasses(xpathTool));
         JPanel controlPanel = getControlPanel(xpathTool, optionsPanel, svgOptimizer);
         tabbedPane.addTab(label, null, controlPanel, description);
     }
@@ -108,7 +140,7 @@ public class DelineateApplication {
                     String optimizeType = e.getActionCommand();
                     svgOptimizer.setOptimizeType(optimizeType);
                 }
-            });
+            }, svgOptimizer);
         } else {
             optionsPanel = new JPanel();
             optionsPanel.setBorder(BorderFactory.createTitledBorder("Brightness threshold"));
@@ -118,6 +150,10 @@ public class DelineateApplication {
             SpinnerSlider spinnerSlider = new SpinnerSlider(model);
             optionsPanel.add(spinnerSlider.getSpinner());
             optionsPanel.add(spinnerSlider.getSlider());
+            initSimplifyControls(optionsPanel, svgOptimizer);
+            initDespeckleControls(optionsPanel, svgOptimizer);
+            optionsPanel.add(initFlattenCheckBox(svgOptimizer));
+            optionsPanel.add(initParallelCheckBox(svgOptimizer));
             spinnerSlider.addChangeListener(new ChangeListener() {
                 public void stateChanged(ChangeEvent e) {
                     SpinnerSlider spinnerSlider = (SpinnerSlider)e.getSource();
@@ -129,16 +165,22 @@ public class DelineateApplication {
         JPanel convertPanel = new JPanel();
         JButton button = initConvertButton(convertPanel, settingsPanel, svgOptimizer);
         convertPanel.add(button);
-        this.convertPanelList.add(convertPanel);
 
         return createControlPanel(settingsPanel, optionsPanel, convertPanel);
     }
 
     private SvgViewerController initSvgViewerController() {
-        SvgViewerController svgViewerController = new SvgViewerController();
+        final SvgViewerController svgViewerController = new SvgViewerController();
+
+        svgViewerController.addResultFileListener(new ResultFileListener() {
+            public void resultFileWritten(File file) {
+                storeInCache();
+            }
+        });
 
         svgViewerController.addRenderingListener(new RenderingListener() {
             public void renderingCompleted() {
+                resultSizeLabel.setText(svgViewerController.getResultSizeText());
                 enableGui();
             }
 
@@ -149,7 +191,7 @@ public class DelineateApplication {
         return svgViewerController;
     }
 
-    private JPanel initOptionsPanel(ActionListener listener) {
+    private JPanel initOptionsPanel(ActionListener listener, SvgOptimizer svgOptimizer) {
         ButtonGroup buttonGroup = new ButtonGroup();
         JPanel panel = new JPanel(new SpringLayout());
         panel.setBorder(BorderFactory.createTitledBorder("Result options"));
@@ -160,15 +202,156 @@ public class DelineateApplication {
                 "Place paths in group elements based on color. Use with color count setting to reduce file size.");
         initRadio(SvgOptimizer.ONE_GROUP, listener, buttonGroup, panel,
                 "Place all paths in one group element that defines styles common to all paths.");
+        initRadio(SvgOptimizer.COLOR_PATHS, listener, buttonGroup, panel,
+                "Join paths of the same color into one path element, for the fewest elements. Use with color count setting.");
 
 //        Don't show style definition option, because resulting file doesn't render properly in SodiPodi, nor Mozilla
 //        initRadio(SvgOptimizer.STYLE_DEFS, listener, buttonGroup, panel,
 //            "Creates SVG style definitions, may reduce output file size if there are many paths and few colors. Use with the color count setting.");
 
-        SpringUtilities.makeCompactGrid(panel, 1, 3, 2, 2, 2, 2);
+        initSimplifyControls(panel, svgOptimizer);
+        panel.add(new JLabel());
+
+        initMergeColorsControls(panel, svgOptimizer);
+        panel.add(new JLabel());
+
+        initDespeckleControls(panel, svgOptimizer);
+        panel.add(new JLabel());
+
+        panel.add(initCullCheckBox(svgOptimizer));
+        panel.add(initParallelCheckBox(svgOptimizer));
+        panel.add(new JLabel());
+        panel.add(new JLabel());
+
+        panel.add(new JLabel("Elements and size:"));
+        panel.add(resultSizeLabel);
+        panel.add(new JLabel());
+        panel.add(new JLabel());
+
+        SpringUtilities.makeCompactGrid(panel, 6, 4, 2, 2, 2, 2);
         return panel;
     }
 
+    /**
+     * Adds check box and tolerance spinner that set the path simplification
+     * tolerance of the optimizer, in pixels.
+     */
+    private void initSimplifyControls(JPanel panel, final SvgOptimizer svgOptimizer) {
+        final JCheckBox checkBox = new JCheckBox("Simplify paths");
+        checkBox.setToolTipText("Reduce the number of nodes in paths, replacing lines and curves " +
+                "with fewer segments that stay within the tolerance of the traced outline.");
+        final JSpinner spinner = new JSpinner(new SpinnerNumberModel(0.5, 0.1, 10.0, 0.1));
+        spinner.setToolTipText("Furthest a simplified path may be from the traced path, in pixels.");
+        spinner.setEnabled(false);
+
+        ChangeListener listener = new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                double tolerance = ((Number)spinner.getValue()).doubleValue();
+                spinner.setEnabled(checkBox.isSelected());
+                svgOptimizer.setSimplifyTolerance(checkBox.isSelected() ? tolerance : 0);
+            }
+        };
+        checkBox.addChangeListener(listener);
+        spinner.addChangeListener(listener);
+
+        panel.add(checkBox);
+        panel.add(spinner);
+        panel.add(new JLabel("pixel tolerance"));
+    }
+
+    /**
+     * Adds check box and area spinner that set the area, in square pixels,
+     * below which the optimizer removes paths as specks.
+     */
+    private void initDespeckleControls(JPanel panel, final SvgOptimizer svgOptimizer) {
+        final JCheckBox checkBox = new JCheckBox("Remove specks");
+        checkBox.setToolTipText("Remove paths too small to see, left after the tracing application's " +
+                "own despeckling, and paths the color of the background.");
+        final JSpinner spinner = new JSpinner(new SpinnerNumberModel(4.0, 0.5, 1000.0, 0.5));
+        spinner.setToolTipText("Paths enclosing a smaller area than this are removed, in square pixels.");
+        spinner.setEnabled(false);
+
+        ChangeListener listener = new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                double area = ((Number)spinner.getValue()).doubleValue();
+                spinner.setEnabled(checkBox.isSelected());
+                svgOptimizer.setDespeckle(checkBox.isSelected() ? area : 0, 0);
+            }
+        };
+        checkBox.addChangeListener(listener);
+        spinner.addChangeListener(listener);
+
+        panel.add(checkBox);
+        panel.add(spinner);
+        panel.add(new JLabel("square pixels"));
+    }
+
+    private JCheckBox initCullCheckBox(final SvgOptimizer svgOptimizer) {
+        final JCheckBox checkBox = new JCheckBox("Remove hidden paths");
+        checkBox.setToolTipText("Remove paths completely covered by the paths drawn over them.");
+        checkBox.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                svgOptimizer.setOcclusionCulled(checkBox.isSelected());
+            }
+        });
+        return checkBox;
+    }
+
+    /**
+     * Returns check box, selected by default, for optimizing path data on all processors.
+     */
+    private JCheckBox initParallelCheckBox(final SvgOptimizer svgOptimizer) {
+        final JCheckBox checkBox = new JCheckBox("Use all processors");
+        checkBox.setToolTipText("Compact and simplify path data on all processors, " +
+                "for faster conversions of large traces.");
+        checkBox.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                svgOptimizer.setParallel(checkBox.isSelected());
+            }
+        });
+        checkBox.setSelected(true);
+        return checkBox;
+    }
+
+    private JCheckBox initFlattenCheckBox(final SvgOptimizer svgOptimizer) {
+        final JCheckBox checkBox = new JCheckBox("Flatten transform");
+        checkBox.setToolTipText("Apply the scale and translation of the group holding paths to their " +
+                "coordinates, rounded to pixels, for smaller results that render without a transform.");
+        checkBox.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                svgOptimizer.setTransformFlattened(checkBox.isSelected());
+            }
+        });
+        return checkBox;
+    }
+
+    /**
+     * Adds check box and color difference spinner that set the CIE Lab
+     * distance within which the optimizer merges colors.
+     */
+    private void initMergeColorsControls(JPanel panel, final SvgOptimizer svgOptimizer) {
+        final JCheckBox checkBox = new JCheckBox("Merge similar colors");
+        checkBox.setToolTipText("Write colors that look nearly the same as one color, " +
+                "for fewer colors and color groups.");
+        final JSpinner spinner = new JSpinner(new SpinnerNumberModel(2.3, 0.5, 50.0, 0.5));
+        spinner.setToolTipText("Largest CIE Lab color difference merged, 2.3 is barely noticeable.");
+        spinner.setEnabled(false);
+
+        ChangeListener listener = new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                double distance = ((Number)spinner.getValue()).doubleValue();
+                spinner.setEnabled(checkBox.isSelected());
+                svgOptimizer.setColorMergeDistance(checkBox.isSelected() ? distance : 0);
+            }
+        };
+        checkBox.addChangeListener(listener);
+        spinner.addChangeListener(listener);
+
+        panel.add(checkBox);
+        panel.add(spinner);
+        panel.add(new JLabel("color difference"));
+    }
+
     private JRadioButton initRadio(String text, ActionListener listener, ButtonGroup buttonGroup, JPanel panel, String tooltip) {
         JRadioButton radio = new JRadioButton(text);
         radio.setToolTipText(tooltip);
@@ -238,53 +421,71 @@ public class DelineateApplication {
                 }
             }
 
+            cancelConversion();
             disableGui();
             svgViewerController.setSvgOptimizer(svgOptimizer);
             svgViewerController.setStatus("Converting...");
 
-            new Thread() {
+            final Conversion conversion = new Conversion(settingsPanel.copyCommand(), svgOptimizer.getThresholdPercent());
+            conversion.setTraceCache(traceCache);
+            svgViewerController.setStageTimings(conversion.getStageTimings());
+            currentConversion = conversion;
+
+            currentConversionTask = conversionExecutor.submit(new Runnable() {
                 public void run() {
                     try {
-                        File convertedFile = null;
-
-                        if(settingsPanel.getCommandName().equals("potrace")) {
-                            convertedFile = ImageUtilities.convertToPbm(file, svgOptimizer.getThresholdPercent());
-                            Dimension dimension = ImageUtilities.getDimension(convertedFile);
-                            settingsPanel.setHeight(dimension.getHeight() / 72);
-                            settingsPanel.setWidth(dimension.getWidth() / 72);
-                        } else if(!(ImageUtilities.inBmpFormat(file) || ImageUtilities.inPnmFormat(file))) {
-                            convertedFile = ImageUtilities.convertToPnm(file);
+                        if(conversion.isCancelled()) {
+                            return;
                         }
-
-                        if(convertedFile != null && convertedFile.exists()) {
-                            settingsPanel.setInputFile(convertedFile);
-                        }
-                        final String outputFile = settingsPanel.getOutputFile();
+                        String outputFile = conversion.getOutputFile().getPath();
                         svgViewerController.movePreviousSvg(outputFile);
-
-                        String[] commandArray = settingsPanel.getCommandAsArray();
                         System.out.println(settingsPanel.getCommand());
 
-                        RuntimeUtility.execute(commandArray);
-
-                        if(convertedFile != null && convertedFile.exists()) {
-                            settingsPanel.setInputFile(file);
-                            convertedFile.delete();
+                        if(conversion.loadFromCache(svgOptimizer)) {
+                            svgViewerController.loadOptimized(FileUtilities.getUri(outputFile), conversion.getPathCount(), conversion.getColors(),
+                                    conversion.getPassStatistics());
+                            return;
                         }
 
-                        svgOptimizer.setBackgroundColor(settingsPanel.getBackgroundColor());
-                        svgOptimizer.setCenterlineEnabled(settingsPanel.getCenterlineEnabled());
+                        boolean traceCached = conversion.loadTraceFromCache(svgOptimizer);
+                        File tracedFile = conversion.getOutputFile();
+                        if(!traceCached) {
+                            tracedFile = conversion.trace();
+                            conversion.storeTraceInCache();
+                        }
 
-                        fix_svg_namespace(outputFile);
-                        svgViewerController.load(FileUtilities.getUri(outputFile));
+                        svgOptimizer.setBackgroundColor(conversion.getCommand().getBackgroundColor());
+                        svgOptimizer.setCenterlineEnabled(conversion.getCommand().getCenterlineEnabled());
+
+                        if(!conversion.isCancelled()) {
+                            uncachedConversionOptimizer = svgOptimizer;
+                            uncachedConversion = conversion;
+
+                            if(traceCached) { // optimized from the cached trace, with no traced SVG to load
+                                conversion.optimize(svgOptimizer);
+                                svgViewerController.loadOptimized(FileUtilities.getUri(outputFile), conversion.getPathCount(), conversion.getColors(),
+                                    conversion.getPassStatistics());
+                            } else if(tracedFile.equals(conversion.getOutputFile())) {
+                                conversion.fixSvgNamespace();
+                                svgViewerController.load(FileUtilities.getUri(outputFile));
+                            } else { // SVGZ output, compressed as the optimizer streams it to the output file
+                                conversion.optimize(svgOptimizer);
+                                svgViewerController.loadOptimized(FileUtilities.getUri(outputFile), conversion.getPathCount(), conversion.getColors(),
+                                    conversion.getPassStatistics());
+                            }
+                        }
                     } catch(Exception e) {
-                        e.printStackTrace();
-                        GuiUtilities.showMessageInEventQueue("An error occurred, cannot run conversion: \n"
-                            + e.getMessage(), "Error");
-                        enableGuiInEventThread();
+                        if(conversion.isCancelled()) {
+                            System.out.println(e.getMessage());
+                        } else {
+                            e.printStackTrace();
+                            GuiUtilities.showMessageInEventQueue("An error occurred, cannot run conversion: \n"
+                                + e.getMessage(), "Error");
+                            enableGuiInEventThread();
+                        }
                     }
                 }
-            }.start();
+            });
 
         } else {
             GuiUtilities.showMessage("Input file does not exist.", "Invalid input file");
@@ -292,13 +493,38 @@ public class DelineateApplication {
         }
     }
 
-    private void fix_svg_namespace(String outputFile) throws IOException {
-        Path path = Paths.get(outputFile);
-        Charset charset = StandardCharsets.UTF_8;
+    /**
+     * Cancels conversion that is running or waiting to run, stopping its
+     * tracing application process and any loading of its result.
+     */
+    private void cancelConversion() {
+        uncachedConversion = null;
+
+        if(currentConversion != null) {
+            currentConversion.cancel();
+            currentConversionTask.cancel(true);
+            svgViewerController.stopLoading();
+            currentConversion = null;
+            currentConversionTask = null;
+        }
+    }
 
-        String content = new String(Files.readAllBytes(path), charset);
-        content = content.replaceAll("<svg width", "<svg xmlns=\"" + SVGConstants.SVG_NAMESPACE_URI + "\" width");
-        Files.write(path, content.getBytes(charset));
+    /**
+     * Stores result of the last conversion in the trace cache, now that the
+     * viewer has optimized it and written it to file. Called on the viewer's
+     * file writer thread.
+     */
+    private void storeInCache() {
+        Conversion conversion = uncachedConversion;
+        uncachedConversion = null;
+
+        if(conversion != null && !conversion.isCancelled()) {
+            try {
+                conversion.storeInCache(uncachedConversionOptimizer);
+            } catch(IOException e) {
+                System.out.println("Cannot cache result: " + e.getMessage());
+            }
+        }
     }
 
     private void enableGuiInEventThread() {
@@ -309,23 +535,15 @@ public class DelineateApplication {
         });
     }
 
-    private void setConvertImageActionEnabled(boolean enabled) {
-        for (Object aConvertPanelList : convertPanelList) {
-            JPanel panel = (JPanel)aConvertPanelList;
-            Action action = panel.getActionMap().get(CONVERT_IMAGE_ACTION);
-            action.setEnabled(enabled);
-        }
-    }
-
+    /**
+     * Shows wait cursor while converting, settings stay enabled so
+     * a new conversion can be run to replace the current one.
+     */
     private void disableGui() {
-        frame.getGlassPane().setVisible(true);
         frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-        setConvertImageActionEnabled(false);
     }
 
     private void enableGui() {
-        setConvertImageActionEnabled(true);
-        frame.getGlassPane().setVisible(false);
         frame.setCursor(Cursor.getDefaultCursor());
     }
 
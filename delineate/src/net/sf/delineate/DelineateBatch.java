@@ -0,0 +1,548 @@
+/*
+ * DelineateBatch.java - converts raster images to SVG without a GUI
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate;
+
+import net.sf.delineate.command.Command;
+import net.sf.delineate.command.Conversion;
+import net.sf.delineate.utility.ProcessResult;
+import net.sf.delineate.utility.StageTimings;
+import net.sf.delineate.utility.SvgOptimizer;
+import net.sf.delineate.utility.TraceCache;
+import net.sf.delineate.utility.XPathTool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts raster images to SVG without a GUI, running conversions on a
+ * pool of worker threads and writing a summary of per file statistics.
+ *
+ * Usage: DelineateBatch [options] parameters-file input...
+ *
+ * Each input is a file, a directory or a glob pattern such as scans/*.png.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class DelineateBatch {
+
+    private static final String USAGE = "Usage: DelineateBatch [options] parameters-file input...\n" +
+            "  -threads <count>      worker threads, defaults to number of processors\n" +
+            "  -output <dir>         directory for SVG results, defaults to input file directory\n" +
+            "  -optimize <type>      no-groups, one-group, group-by-color, one-path-per-color\n" +
+            "                        or create-style-definitions\n" +
+            "  -threshold <percent>  brightness threshold for black and white conversion, default 50\n" +
+            "  -precision <places>   decimal places in path coordinates, default 2, -1 to keep path data as traced\n" +
+            "  -simplify <pixels>    simplify paths, keeping within tolerance of the traced paths\n" +
+            "  -despeckle <area>     remove paths enclosing fewer square pixels, and background color paths\n" +
+            "  -despeckle-width <px> remove paths narrower than this across and down\n" +
+            "  -cull                 remove paths hidden by the paths drawn over them\n" +
+            "  -flatten              apply potrace's group transform to path coordinates, at -precision places\n" +
+            "  -merge-colors <dE>    merge colors within CIE Lab color difference, 2.3 is barely noticeable\n" +
+            "  -tracer <path>        location of autotrace or potrace application\n" +
+            "  -timeout <seconds>    destroy tracing application if it runs longer than this\n" +
+            "  -parallel             optimize each result on all processors, for a few large traces\n" +
+            "  -svgz                 write gzip compressed .svgz files\n" +
+            "  -stream               pipe images to and SVG from the tracing application\n" +
+            "  -cache <dir>          reuse results of converting the same image with the same settings\n" +
+            "  -cache-size <mb>      maximum size of cache directory, default 256\n" +
+            "  -stats <file>         write statistics summary to file instead of standard output";
+
+    private static final String SETTINGS_FILE = "./settings/settings.prop";
+
+    private final Command command;
+    private final String optimizerClassName;
+    private final String[] optimizerPasses;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private File outputDirectory;
+    private String optimizeType = SvgOptimizer.NO_GROUPS;
+    private int thresholdPercent = 50;
+    private int pathPrecision = SvgOptimizer.DEFAULT_PATH_PRECISION;
+    private double simplifyTolerance = 0;
+    private double colorMergeDistance = 0;
+    private double despeckleArea = 0;
+    private double despeckleWidth = 0;
+    private boolean occlusionCulled = false;
+    private boolean transformFlattened = false;
+    private long timeout = 0;
+    private boolean streaming = false;
+    private boolean compressed = false;
+    private boolean parallel = false;
+    private TraceCache traceCache;
+
+    public DelineateBatch(File parameterFile) throws Exception {
+        XPathTool xpathTool = new XPathTool(parameterFile);
+        optimizerClassName = xpathTool.string("/parameters/command/svg-optimizer");
+        optimizerPasses = SvgOptimizer.readPasses(xpathTool);
+        ((SvgOptimizer)Class.forName(optimizerClassName).newInstance()).setPasses(optimizerPasses); // fails on unknown passes before converting
+        command = Command.load(xpathTool);
+        command.setTracingApplication(findTracingApplication(command.getCommandName()));
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    public void setOptimizeType(String optimizeType) {
+        this.optimizeType = optimizeType;
+    }
+
+    public void setThresholdPercent(int thresholdPercent) {
+        this.thresholdPercent = thresholdPercent;
+    }
+
+    /**
+     * @param pathPrecision decimal places kept in path coordinates, -1 to keep path data as traced
+     */
+    public void setPathPrecision(int pathPrecision) {
+        this.pathPrecision = pathPrecision;
+    }
+
+    /**
+     * @param simplifyTolerance distance in pixels simplified paths may be from traced paths, 0 to not simplify
+     */
+    public void setSimplifyTolerance(double simplifyTolerance) {
+        this.simplifyTolerance = simplifyTolerance;
+    }
+
+    /**
+     * @param area  paths enclosing fewer square pixels are removed, 0 to not remove by area
+     * @param width paths narrower than this many pixels across and down are removed, 0 to not remove by width
+     */
+    public void setDespeckle(double area, double width) {
+        despeckleArea = area;
+        despeckleWidth = width;
+    }
+
+    /**
+     * @param occlusionCulled true to remove paths completely covered by paths drawn after them
+     */
+    public void setOcclusionCulled(boolean occlusionCulled) {
+        this.occlusionCulled = occlusionCulled;
+    }
+
+    /**
+     * @param transformFlattened true to apply the transform of the group holding paths to their coordinates
+     */
+    public void setTransformFlattened(boolean transformFlattened) {
+        this.transformFlattened = transformFlattened;
+    }
+
+    /**
+     * @param colorMergeDistance CIE Lab color difference within which colors are merged, 0 to not merge
+     */
+    public void setColorMergeDistance(double colorMergeDistance) {
+        this.colorMergeDistance = colorMergeDistance;
+    }
+
+    public void setTracingApplication(String path) {
+        command.setTracingApplication(path);
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @param parallel true to compact path data of each result on all processors
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param compressed true to write results as gzip compressed .svgz files
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public void setTraceCache(TraceCache traceCache) {
+        this.traceCache = traceCache;
+    }
+
+    /**
+     * @param timeout milliseconds a tracing application may run for, 0 for no limit
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Converts each file and writes a line of statistics per file.
+     * @return number of files that failed to convert
+     */
+    public int convert(List<File> files, PrintWriter statsWriter) throws InterruptedException {
+        List<File> outputFiles = getOutputFiles(files);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<Conversion>> futures = new ArrayList<Future<Conversion>>(files.size());
+
+        for(int i = 0; i < files.size(); i++) {
+            futures.add(executor.submit(createJob(files.get(i), outputFiles.get(i))));
+        }
+        executor.shutdown();
+
+        statsWriter.println("file\ttrace ms\tconvert ms\ttracer wall ms\ttracer cpu ms\ttracer peak rss kb" +
+                "\toptimize ms\ttraced paths\tpaths\ttraced nodes\tnodes\tcolors merged\tgroups merged\tculled paths\tculled bytes\tbytes\tpasses\tstatus");
+        int failureCount = 0;
+
+        for(int i = 0; i < files.size(); i++) {
+            statsWriter.print(files.get(i).getPath());
+
+            try {
+                Conversion conversion = futures.get(i).get();
+                ProcessResult tracerResult = conversion.getTracerResult();
+                StageTimings stageTimings = conversion.getStageTimings();
+                statsWriter.print('\t');
+                statsWriter.print(conversion.getTraceTime());
+                printValue(statsWriter, stageTimings.getTime(StageTimings.CONVERT_IMAGE));
+
+                if(tracerResult != null) {
+                    printValue(statsWriter, tracerResult.getWallTime());
+                    printValue(statsWriter, tracerResult.getCpuTime());
+                    printValue(statsWriter, tracerResult.getPeakRss());
+                } else {
+                    statsWriter.print("\t\t\t");
+                }
+
+                statsWriter.print('\t');
+                statsWriter.print(conversion.getOptimizeTime());
+                printValue(statsWriter, conversion.getTracedPathCount());
+                statsWriter.print('\t');
+                statsWriter.print(conversion.getPathCount());
+                printValue(statsWriter, conversion.getTracedNodeCount());
+                printValue(statsWriter, conversion.getNodeCount());
+                printValue(statsWriter, conversion.getMergedColorCount());
+                printValue(statsWriter, conversion.getMergedGroupCount());
+                printValue(statsWriter, conversion.getCulledPathCount());
+                printValue(statsWriter, conversion.getCulledByteCount());
+                statsWriter.print('\t');
+                statsWriter.print(conversion.getOutputSize());
+                statsWriter.print('\t');
+                if(conversion.getPassStatistics() != null) {
+                    statsWriter.print(conversion.getPassStatistics());
+                }
+                statsWriter.println(conversion.isCacheHit() ? "\tcached" : "\tok");
+            } catch(ExecutionException e) {
+                failureCount++;
+                Throwable cause = e.getCause();
+                statsWriter.println("\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\tfailed: " + cause);
+            }
+            statsWriter.flush();
+        }
+
+        return failureCount;
+    }
+
+    /**
+     * Prints tab then value, or just tab if value is -1 for not available.
+     */
+    private static void printValue(PrintWriter statsWriter, long value) {
+        statsWriter.print('\t');
+        if(value != -1) {
+            statsWriter.print(value);
+        }
+    }
+
+    private Callable<Conversion> createJob(File file, File outputFile) {
+        final Command jobCommand = command.copy();
+        jobCommand.setParameterValue(Command.INPUT_FILE_PARAMETER, file.getPath(), false);
+        jobCommand.setParameterValue(Command.OUTPUT_FILE_PARAMETER, outputFile.getPath(), false);
+
+        return new Callable<Conversion>() {
+            public Conversion call() throws Exception {
+                SvgOptimizer svgOptimizer = (SvgOptimizer)Class.forName(optimizerClassName).newInstance();
+                svgOptimizer.setPasses(optimizerPasses);
+                svgOptimizer.setOptimizeType(optimizeType);
+                svgOptimizer.setThresholdPercent(thresholdPercent);
+                svgOptimizer.setPathPrecision(pathPrecision);
+                svgOptimizer.setSimplifyTolerance(simplifyTolerance);
+                svgOptimizer.setColorMergeDistance(colorMergeDistance);
+                svgOptimizer.setDespeckle(despeckleArea, despeckleWidth);
+                svgOptimizer.setOcclusionCulled(occlusionCulled);
+                svgOptimizer.setTransformFlattened(transformFlattened);
+                svgOptimizer.setParallel(parallel);
+
+                Conversion conversion = new Conversion(jobCommand, thresholdPercent);
+                conversion.setTimeout(timeout);
+                conversion.setStreaming(streaming);
+                conversion.setTraceCache(traceCache);
+                conversion.convert(svgOptimizer);
+                return conversion;
+            }
+        };
+    }
+
+    /**
+     * Returns output file of each input. Inputs that would otherwise share an
+     * output file, such as a.png and a.bmp, keep their extension in its name,
+     * as a.png.svg and a.bmp.svg, so no two jobs write the same file.
+     * @throws IllegalArgumentException if inputs still share an output file,
+     * as two x.png files from different directories do with -output
+     */
+    private List<File> getOutputFiles(List<File> files) {
+        Map<Path, Integer> countMap = new HashMap<Path, Integer>();
+
+        for(File file : files) {
+            Path path = getPath(getOutputFile(file, false));
+            Integer count = countMap.get(path);
+            countMap.put(path, (count == null) ? 1 : count + 1);
+        }
+
+        List<File> outputFiles = new ArrayList<File>(files.size());
+        Map<Path, File> inputMap = new HashMap<Path, File>();
+
+        for(File file : files) {
+            File outputFile = getOutputFile(file, false);
+            if(countMap.get(getPath(outputFile)) > 1) {
+                outputFile = getOutputFile(file, true);
+            }
+
+            File otherFile = inputMap.put(getPath(outputFile), file);
+            if(otherFile != null) {
+                throw new IllegalArgumentException("Inputs " + otherFile + " and " + file +
+                        " would both be written to " + outputFile);
+            }
+            outputFiles.add(outputFile);
+        }
+
+        return outputFiles;
+    }
+
+    private static Path getPath(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * @param keepExtension true to keep the input file's extension in the output file name
+     */
+    private File getOutputFile(File inputFile, boolean keepExtension) {
+        String name = inputFile.getName();
+        int index = name.lastIndexOf('.');
+        if(index > 0 && !keepExtension) {
+            name = name.substring(0, index);
+        }
+
+        File directory = (outputDirectory == null) ? inputFile.getAbsoluteFile().getParentFile() : outputDirectory;
+        return new File(directory, name + (compressed ? ".svgz" : ".svg"));
+    }
+
+    private static String findTracingApplication(String commandName) throws IOException {
+        File settingsFile = new File(SETTINGS_FILE);
+
+        if(settingsFile.exists()) {
+            Properties properties = new Properties();
+            InputStream inputStream = new FileInputStream(settingsFile);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+
+            String path = properties.getProperty(commandName);
+            if(path != null) {
+                return path;
+            }
+        }
+
+        return commandName;
+    }
+
+    /**
+     * Expands input arguments into a list of files. Directories contribute
+     * the files they directly contain, glob patterns the files they match.
+     */
+    public static List<File> findFiles(List<String> inputs) throws IOException {
+        final List<File> files = new ArrayList<File>();
+
+        for(String input : inputs) {
+            File file = new File(input);
+
+            if(file.isDirectory()) {
+                File[] children = file.listFiles();
+                Arrays.sort(children);
+                for(File child : children) {
+                    if(isRasterFile(child)) {
+                        files.add(child);
+                    }
+                }
+            } else if(file.exists()) {
+                files.add(file);
+            } else if(isGlob(input)) {
+                final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+                final List<File> matches = new ArrayList<File>();
+
+                Files.walkFileTree(getGlobBase(input), new SimpleFileVisitor<Path>() {
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                        if(matcher.matches(path) && isRasterFile(path.toFile())) {
+                            matches.add(path.toFile());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+                Collections.sort(matches);
+                files.addAll(matches);
+            } else {
+                throw new IOException("Input does not exist: " + input);
+            }
+        }
+
+        return files;
+    }
+
+    private static boolean isGlob(String input) {
+        return input.indexOf('*') != -1 || input.indexOf('?') != -1 || input.indexOf('[') != -1 || input.indexOf('{') != -1;
+    }
+
+    /**
+     * Returns directory part of glob pattern preceding the first wildcard.
+     */
+    private static Path getGlobBase(String glob) {
+        String prefix = glob.split("[*?\\[{]", 2)[0];
+        int index = prefix.lastIndexOf(File.separatorChar);
+        return Paths.get(index == -1 ? "" : prefix.substring(0, index + 1));
+    }
+
+    private static boolean isRasterFile(File file) {
+        String name = file.getName().toLowerCase();
+        return file.isFile() && !name.startsWith(".") && !name.endsWith(".svg") && !name.endsWith(".svgz");
+    }
+
+    public static void main(String args[]) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        String threads = removeOption(arguments, "-threads");
+        String output = removeOption(arguments, "-output");
+        String optimize = removeOption(arguments, "-optimize");
+        String threshold = removeOption(arguments, "-threshold");
+        String precision = removeOption(arguments, "-precision");
+        String simplify = removeOption(arguments, "-simplify");
+        String despeckle = removeOption(arguments, "-despeckle");
+        String despeckleWidth = removeOption(arguments, "-despeckle-width");
+        String mergeColors = removeOption(arguments, "-merge-colors");
+        String tracer = removeOption(arguments, "-tracer");
+        String stats = removeOption(arguments, "-stats");
+        String timeout = removeOption(arguments, "-timeout");
+        String cache = removeOption(arguments, "-cache");
+        String cacheSize = removeOption(arguments, "-cache-size");
+        boolean stream = arguments.remove("-stream");
+        boolean svgz = arguments.remove("-svgz");
+        boolean parallel = arguments.remove("-parallel");
+        boolean cull = arguments.remove("-cull");
+        boolean flatten = arguments.remove("-flatten");
+
+        if(arguments.size() < 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        DelineateBatch batch = new DelineateBatch(new File(arguments.remove(0)));
+
+        if(threads != null) batch.setThreadCount(Integer.parseInt(threads));
+        if(output != null) batch.setOutputDirectory(new File(output));
+        if(optimize != null) batch.setOptimizeType(getOptimizeType(optimize));
+        if(threshold != null) batch.setThresholdPercent(Integer.parseInt(threshold));
+        if(precision != null) batch.setPathPrecision(Integer.parseInt(precision));
+        if(simplify != null) batch.setSimplifyTolerance(Double.parseDouble(simplify));
+        if(despeckle != null || despeckleWidth != null) {
+            batch.setDespeckle(despeckle == null ? 0 : Double.parseDouble(despeckle),
+                    despeckleWidth == null ? 0 : Double.parseDouble(despeckleWidth));
+        }
+        if(mergeColors != null) batch.setColorMergeDistance(Double.parseDouble(mergeColors));
+        if(tracer != null) batch.setTracingApplication(tracer);
+        if(timeout != null) batch.setTimeout(Long.parseLong(timeout) * 1000);
+        batch.setStreaming(stream);
+        batch.setCompressed(svgz);
+        batch.setParallel(parallel);
+        batch.setOcclusionCulled(cull);
+        batch.setTransformFlattened(flatten);
+
+        if(cache != null) {
+            long maxSize = (cacheSize == null) ? 256 : Long.parseLong(cacheSize);
+            batch.setTraceCache(new TraceCache(new File(cache), maxSize * 1024 * 1024));
+        }
+
+        List<File> files = findFiles(arguments);
+        if(files.isEmpty()) {
+            System.err.println("No input files found.");
+            System.exit(2);
+        }
+
+        PrintWriter statsWriter = (stats == null) ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(stats));
+
+        int failureCount = batch.convert(files, statsWriter);
+        statsWriter.close();
+
+        System.exit(failureCount == 0 ? 0 : 1);
+    }
+
+    private static String getOptimizeType(String name) {
+        String[] types = new String[] {SvgOptimizer.NO_GROUPS, SvgOptimizer.ONE_GROUP, SvgOptimizer.COLOR_GROUPS, SvgOptimizer.STYLE_DEFS,
+                SvgOptimizer.COLOR_PATHS};
+        for(String type : types) {
+            if(type.equals(name.replace('-', ' '))) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown optimize type: " + name);
+    }
+
+    private static String removeOption(List<String> arguments, String option) {
+        int index = arguments.indexOf(option);
+
+        if(index == -1) {
+            return null;
+        } else if(index + 1 == arguments.size()) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        } else {
+            arguments.remove(index);
+            return arguments.remove(index);
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * ImageCorpusGenerator.java - writes synthetic images for scaling tests
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate;
+
+import net.sf.delineate.utility.ImageUtilities;
+import net.sourceforge.jiu.data.BilevelImage;
+import net.sourceforge.jiu.data.MemoryBilevelImage;
+import net.sourceforge.jiu.data.PixelImage;
+import net.sourceforge.jiu.gui.awt.ImageCreator;
+import net.sourceforge.jiu.ops.OperationFailedException;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Polygon;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Writes synthetic raster images with controlled properties, for seeing how
+ * conversion time, path count and memory use scale with image complexity.
+ * Generates every combination of the given sizes, palette sizes, shape
+ * densities, noise levels and kinds of image, in each given format, and
+ * writes a manifest.tsv describing each file.
+ *
+ * Kinds of image are bilevel (black shapes on white), flat (shapes filled
+ * with colors from a palette) and photo (gradient filled, anti-aliased
+ * shapes). Palette size only applies to flat images. The same name always
+ * gives the same pixels, whatever other images are generated with it.
+ *
+ * Usage: ImageCorpusGenerator [options] output-directory
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class ImageCorpusGenerator {
+
+    public static final String BILEVEL = "bilevel";
+    public static final String FLAT = "flat";
+    public static final String PHOTO = "photo";
+
+    private static final String USAGE = "Usage: ImageCorpusGenerator [options] output-directory\n" +
+            "  -megapixels <list>  image sizes, default 0.25,1\n" +
+            "  -colors <list>      palette sizes of flat images, default 2,16,256\n" +
+            "  -shapes <list>      shapes per megapixel, sets edge density, default 10,100,1000\n" +
+            "  -noise <list>       noise level from 0 to 255, default 0,16\n" +
+            "  -kinds <list>       bilevel, flat and photo, default all\n" +
+            "  -formats <list>     png, bmp and pnm, default all\n" +
+            "  -seed <number>      random seed, default 1";
+
+    private static final String MANIFEST_FILE = "manifest.tsv";
+
+    private double[] megapixels = new double[] {0.25, 1};
+    private int[] colorCounts = new int[] {2, 16, 256};
+    private int[] shapeDensities = new int[] {10, 100, 1000};
+    private int[] noiseLevels = new int[] {0, 16};
+    private String[] kinds = new String[] {BILEVEL, FLAT, PHOTO};
+    private String[] formats = new String[] {"png", "bmp", "pnm"};
+    private long seed = 1;
+
+    public void setMegapixels(double[] megapixels) {
+        this.megapixels = megapixels;
+    }
+
+    public void setColorCounts(int[] colorCounts) {
+        this.colorCounts = colorCounts;
+    }
+
+    /**
+     * @param shapeDensities numbers of shapes per megapixel
+     */
+    public void setShapeDensities(int[] shapeDensities) {
+        this.shapeDensities = shapeDensities;
+    }
+
+    /**
+     * @param noiseLevels most a channel value is moved by noise, or for bilevel
+     *                    images the chance in 255 of a pixel being inverted
+     */
+    public void setNoiseLevels(int[] noiseLevels) {
+        this.noiseLevels = noiseLevels;
+    }
+
+    public void setKinds(String[] kinds) {
+        this.kinds = kinds;
+    }
+
+    public void setFormats(String[] formats) {
+        this.formats = formats;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Writes images and manifest to directory.
+     * @return number of files written, not counting the manifest
+     */
+    public int generate(File directory) throws IOException, OperationFailedException {
+        directory.mkdirs();
+        PrintWriter manifest = new PrintWriter(new FileWriter(new File(directory, MANIFEST_FILE)));
+        manifest.println("file\tformat\tkind\twidth\theight\tmegapixels\tpalette colors\tshapes\tnoise\tseed" +
+                "\tdistinct colors\tedge density\tbytes");
+        int fileCount = 0;
+
+        try {
+            for(String kind : kinds) {
+                int[] palettes = kind.equals(FLAT) ? colorCounts : new int[] {kind.equals(BILEVEL) ? 2 : 0};
+
+                for(double size : megapixels) {
+                    for(int colorCount : palettes) {
+                        for(int shapeDensity : shapeDensities) {
+                            for(int noise : noiseLevels) {
+                                fileCount += generate(directory, manifest, kind, size, colorCount, shapeDensity, noise);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            manifest.close();
+        }
+
+        return fileCount;
+    }
+
+    private int generate(File directory, PrintWriter manifest, String kind, double size, int colorCount, int shapeDensity, int noise)
+            throws IOException, OperationFailedException {
+        String name = kind + '-' + size + "mp-" + (kind.equals(FLAT) ? colorCount + "c-" : "") + shapeDensity + "s-" + noise + 'n';
+        long imageSeed = seed * 31 + name.hashCode();
+        BufferedImage image = createImage(kind, size, colorCount, shapeDensity, noise, imageSeed);
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        String description = kind + '\t' + width + '\t' + height + '\t' + size + '\t' + (colorCount == 0 ? "" : Integer.toString(colorCount))
+                + '\t' + Math.round(size * shapeDensity) + '\t' + noise + '\t' + imageSeed
+                + '\t' + countDistinctColors(image) + '\t' + measureEdgeDensity(image);
+
+        for(String format : formats) {
+            File file = new File(directory, name + '.' + getExtension(kind, format));
+            write(image, kind, format, file);
+            manifest.println(file.getName() + '\t' + format + '\t' + description + '\t' + file.length());
+            manifest.flush();
+        }
+
+        return formats.length;
+    }
+
+    /**
+     * Returns image of about the given size at a 4:3 aspect ratio.
+     */
+    public static BufferedImage createImage(String kind, double size, int colorCount, int shapeDensity, int noise, long seed) {
+        int width = (int)Math.max(1, Math.round(Math.sqrt(size * 1000000 * 4 / 3)));
+        int height = (int)Math.max(1, Math.round(size * 1000000 / width));
+        Random random = new Random(seed);
+
+        boolean bilevel = kind.equals(BILEVEL);
+        boolean photo = kind.equals(PHOTO);
+        Color[] palette = bilevel ? new Color[] {Color.WHITE, Color.BLACK} : createPalette(Math.max(2, colorCount), random);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                photo ? RenderingHints.VALUE_ANTIALIAS_ON : RenderingHints.VALUE_ANTIALIAS_OFF);
+
+        if(photo) {
+            graphics.setPaint(new GradientPaint(0, 0, randomColor(random), 0, height, randomColor(random)));
+        } else {
+            graphics.setColor(palette[0]);
+        }
+        graphics.fillRect(0, 0, width, height);
+
+        long shapeCount = Math.round(size * shapeDensity);
+        int minimumSize = Math.max(2, Math.min(width, height) / 200);
+        int maximumSize = Math.max(minimumSize + 1, Math.min(width, height) / 8);
+
+        for(long i = 0; i < shapeCount; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int shapeWidth = minimumSize + random.nextInt(maximumSize - minimumSize);
+            int shapeHeight = minimumSize + random.nextInt(maximumSize - minimumSize);
+
+            if(photo) {
+                graphics.setPaint(new GradientPaint(x, y, randomColor(random), x + shapeWidth, y + shapeHeight, randomColor(random)));
+            } else {
+                graphics.setColor(palette[1 + random.nextInt(palette.length - 1)]);
+            }
+            graphics.fill(createShape(x, y, shapeWidth, shapeHeight, random));
+        }
+        graphics.dispose();
+
+        if(noise > 0) {
+            addNoise(image, noise, bilevel, random);
+        }
+        return image;
+    }
+
+    private static Color[] createPalette(int colorCount, Random random) {
+        Color[] palette = new Color[colorCount];
+        for(int i = 0; i < colorCount; i++) {
+            palette[i] = randomColor(random);
+        }
+        return palette;
+    }
+
+    private static Color randomColor(Random random) {
+        return new Color(random.nextInt(0x1000000));
+    }
+
+    private static Shape createShape(int x, int y, int width, int height, Random random) {
+        switch(random.nextInt(3)) {
+            case 0:
+                return new Ellipse2D.Double(x, y, width, height);
+            case 1:
+                return new Rectangle2D.Double(x, y, width, height);
+            default:
+                Polygon triangle = new Polygon();
+                triangle.addPoint(x + random.nextInt(width), y);
+                triangle.addPoint(x, y + height);
+                triangle.addPoint(x + width, y + height - random.nextInt(height));
+                return triangle;
+        }
+    }
+
+    private static void addNoise(BufferedImage image, int noise, boolean bilevel, Random random) {
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+
+        for(int i = 0; i < pixels.length; i++) {
+            if(bilevel) {
+                if(random.nextInt(255) < noise) {
+                    pixels[i] ^= 0xFFFFFF;
+                }
+            } else {
+                int pixel = pixels[i];
+                int red = addNoise((pixel >> 16) & 0xFF, noise, random);
+                int green = addNoise((pixel >> 8) & 0xFF, noise, random);
+                int blue = addNoise(pixel & 0xFF, noise, random);
+                pixels[i] = red << 16 | green << 8 | blue;
+            }
+        }
+    }
+
+    private static int addNoise(int value, int noise, Random random) {
+        return Math.max(0, Math.min(255, value + random.nextInt(2 * noise + 1) - noise));
+    }
+
+    private static int countDistinctColors(BufferedImage image) {
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        BitSet colors = new BitSet(0x1000000);
+
+        for(int pixel : pixels) {
+            colors.set(pixel & 0xFFFFFF);
+        }
+        return colors.cardinality();
+    }
+
+    /**
+     * Returns fraction of pixels that differ from the pixel to their right or below.
+     */
+    private static String measureEdgeDensity(BufferedImage image) {
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long edgeCount = 0;
+
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if((x + 1 < width && pixels[i] != pixels[i + 1]) || (y + 1 < height && pixels[i] != pixels[i + width])) {
+                    edgeCount++;
+                }
+            }
+        }
+        return String.format(Locale.US, "%.4f", (double)edgeCount / pixels.length);
+    }
+
+    private static String getExtension(String kind, String format) {
+        if(format.equals("pnm")) {
+            return kind.equals(BILEVEL) ? "pbm" : "ppm";
+        } else {
+            return format;
+        }
+    }
+
+    private static void write(BufferedImage image, String kind, String format, File file) throws IOException, OperationFailedException {
+        boolean bilevel = kind.equals(BILEVEL);
+
+        if(format.equals("pnm")) {
+            PixelImage pixelImage = bilevel ? toBilevelImage(image) : ImageCreator.convertImageToRGB24Image(image);
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            try {
+                ImageUtilities.writePnm(pixelImage, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } else {
+            BufferedImage outputImage = image;
+
+            if(bilevel) {
+                outputImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
+                Graphics2D graphics = outputImage.createGraphics();
+                graphics.drawImage(image, 0, 0, null);
+                graphics.dispose();
+            }
+
+            if(!ImageIO.write(outputImage, format, file)) {
+                throw new IOException("Cannot write " + format + " format.");
+            }
+        }
+    }
+
+    private static BilevelImage toBilevelImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        MemoryBilevelImage bilevelImage = new MemoryBilevelImage(width, height);
+
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                if((pixels[y * width + x] & 0xFFFFFF) == 0) {
+                    bilevelImage.putBlack(x, y);
+                } else {
+                    bilevelImage.putWhite(x, y);
+                }
+            }
+        }
+        return bilevelImage;
+    }
+
+    public static void main(String args[]) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        String megapixels = removeOption(arguments, "-megapixels");
+        String colors = removeOption(arguments, "-colors");
+        String shapes = removeOption(arguments, "-shapes");
+        String noise = removeOption(arguments, "-noise");
+        String kinds = removeOption(arguments, "-kinds");
+        String formats = removeOption(arguments, "-formats");
+        String seed = removeOption(arguments, "-seed");
+
+        if(arguments.size() != 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        ImageCorpusGenerator generator = new ImageCorpusGenerator();
+
+        if(megapixels != null) generator.setMegapixels(parseDoubles(megapixels));
+        if(colors != null) generator.setColorCounts(parseInts(colors));
+        if(shapes != null) generator.setShapeDensities(parseInts(shapes));
+        if(noise != null) generator.setNoiseLevels(parseInts(noise));
+        if(kinds != null) generator.setKinds(kinds.split(","));
+        if(formats != null) generator.setFormats(formats.split(","));
+        if(seed != null) generator.setSeed(Long.parseLong(seed));
+
+        File directory = new File(arguments.get(0));
+        int fileCount = generator.generate(directory);
+        System.out.println("Wrote " + fileCount + " images and " + new File(directory, MANIFEST_FILE).getPath());
+    }
+
+    private static int[] parseInts(String list) {
+        String[] values = list.split(",");
+        int[] numbers = new int[values.length];
+        for(int i = 0; i < values.length; i++) {
+            numbers[i] = Integer.parseInt(values[i].trim());
+        }
+        return numbers;
+    }
+
+    private static double[] parseDoubles(String list) {
+        String[] values = list.split(",");
+        double[] numbers = new double[values.length];
+        for(int i = 0; i < values.length; i++) {
+            numbers[i] = Double.parseDouble(values[i].trim());
+        }
+        return numbers;
+    }
+
+    private static String removeOption(List<String> arguments, String option) {
+        int index = arguments.indexOf(option);
+
+        if(index == -1) {
+            return null;
+        } else if(index + 1 == arguments.size()) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        } else {
+            arguments.remove(index);
+            return arguments.remove(index);
+        }
+    }
+
+}
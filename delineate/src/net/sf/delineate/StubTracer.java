@@ -0,0 +1,437 @@
+/*
+ * StubTracer.java - stands in for autotrace or potrace when testing
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Stand in for the autotrace and potrace applications, for testing and
+ * benchmarking conversions on machines without them installed. Accepts
+ * the arguments Command.getCommandAsArray() produces and writes SVG in the
+ * style of the application being replaced. Output depends only on the
+ * arguments, the image dimensions and these environment variables:
+ *
+ *   DELINEATE_STUB_PATHS     number of paths, default 100
+ *   DELINEATE_STUB_COLORS    number of colors, defaults to the color-count
+ *                            argument, or 8
+ *   DELINEATE_STUB_SEGMENTS  curve and line segments per path, default 8
+ *   DELINEATE_STUB_SEED      random seed, default 1
+ *   DELINEATE_STUB_DELAY     milliseconds to wait before writing, default 0
+ *   DELINEATE_STUB_STYLE     autotrace or potrace, by default potrace if
+ *                            there is a --svg argument, else autotrace
+ *
+ * Writes to standard output when there is no output file argument, and in
+ * potrace style reads the image from standard input when there is no input
+ * file argument.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class StubTracer {
+
+    private static final String VERSION = "stub tracer 1.0";
+    private static final int DEFAULT_WIDTH = 400;
+    private static final int DEFAULT_HEIGHT = 300;
+
+    private final List<String> arguments;
+    private final Random random;
+    private final boolean potraceStyle;
+    private final boolean centerline;
+    private final int pathCount;
+    private final int colorCount;
+    private final int segmentCount;
+
+    private int width = -1;
+    private int height = -1;
+
+    public StubTracer(String[] args) {
+        arguments = Arrays.asList(args);
+        random = new Random(getSetting("DELINEATE_STUB_SEED", 1));
+
+        String style = System.getenv("DELINEATE_STUB_STYLE");
+        potraceStyle = (style == null) ? arguments.contains("--svg") : style.equals("potrace");
+        centerline = arguments.contains("--centerline");
+
+        pathCount = getSetting("DELINEATE_STUB_PATHS", 100);
+        String colorCountArgument = getOptionValue("--color-count");
+        int defaultColorCount = (colorCountArgument == null) ? 8 : Integer.parseInt(colorCountArgument);
+        colorCount = Math.max(1, getSetting("DELINEATE_STUB_COLORS", defaultColorCount));
+        segmentCount = Math.max(3, getSetting("DELINEATE_STUB_SEGMENTS", 8));
+    }
+
+    /**
+     * Creates stub tracer for generating SVG documents without running it as an application.
+     */
+    public StubTracer(boolean potraceStyle, boolean centerline, int width, int height, int pathCount,
+                      int colorCount, int segmentCount, long seed) {
+        arguments = Arrays.asList(new String[0]);
+        random = new Random(seed);
+        this.potraceStyle = potraceStyle;
+        this.centerline = centerline;
+        this.width = width;
+        this.height = height;
+        this.pathCount = pathCount;
+        this.colorCount = Math.max(1, colorCount);
+        this.segmentCount = Math.max(3, segmentCount);
+    }
+
+    private static int getSetting(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return (value == null || value.length() == 0) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private String getOptionValue(String option) {
+        int index = arguments.indexOf(option);
+        return (index == -1 || index + 1 == arguments.size()) ? null : arguments.get(index + 1);
+    }
+
+    private File getOutputFile() {
+        String path = getOptionValue(potraceStyle ? "--output" : "--output-file");
+        return (path == null) ? null : new File(path);
+    }
+
+    /**
+     * Returns last argument naming an existing file that is not the output file.
+     */
+    private File getInputFile() {
+        File outputFile = getOutputFile();
+        File inputFile = null;
+
+        for(String argument : arguments) {
+            File file = new File(argument);
+            if(!argument.startsWith("-") && file.isFile() && !file.equals(outputFile)) {
+                inputFile = file;
+            }
+        }
+        return inputFile;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        File inputFile = getInputFile();
+
+        if(inputFile != null) {
+            InputStream inputStream = new FileInputStream(inputFile);
+            try {
+                readDimensions(readHeader(inputStream, false));
+            } finally {
+                inputStream.close();
+            }
+        } else if(potraceStyle) {
+            readDimensions(readHeader(System.in, true));
+        } else {
+            throw new IOException("No input file given.");
+        }
+
+        if(potraceStyle) {
+            readPotraceDimensions();
+        }
+        if(width <= 0 || height <= 0) {
+            width = DEFAULT_WIDTH;
+            height = DEFAULT_HEIGHT;
+        }
+
+        long delay = getSetting("DELINEATE_STUB_DELAY", 0);
+        if(delay > 0) {
+            Thread.sleep(delay);
+        }
+
+        File outputFile = getOutputFile();
+        OutputStream outputStream = (outputFile == null) ? System.out : new FileOutputStream(outputFile);
+        Writer w = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 64 * 1024);
+
+        try {
+            writeSvg(w);
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Writes SVG in the style of the application being replaced.
+     */
+    public void writeSvg(Writer w) throws IOException {
+        if(potraceStyle) {
+            writePotraceSvg(w);
+        } else {
+            writeAutotraceSvg(w);
+        }
+    }
+
+    /**
+     * Reads start of image, or all of it when reading standard input so the
+     * writer is not blocked.
+     */
+    private static byte[] readHeader(InputStream inputStream, boolean readAll) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+
+        while((length = inputStream.read(buffer)) != -1) {
+            if(header.size() < 1024) {
+                header.write(buffer, 0, Math.min(length, 1024 - header.size()));
+            } else if(!readAll) {
+                break;
+            }
+        }
+        return header.toByteArray();
+    }
+
+    /**
+     * Sets width and height from a BMP or PNM header, if the image is in either format.
+     */
+    private void readDimensions(byte[] header) {
+        if(header.length >= 26 && header[0] == 'B' && header[1] == 'M') {
+            width = readLittleEndianInt(header, 18);
+            height = Math.abs(readLittleEndianInt(header, 22));
+        } else if(header.length > 2 && header[0] == 'P' && header[1] >= '1' && header[1] <= '6') {
+            String text = new String(header, StandardCharsets.US_ASCII).replaceAll("#[^\n]*\n", " ");
+            String[] tokens = text.substring(2).trim().split("\\s+");
+            if(tokens.length >= 2) {
+                width = Integer.parseInt(tokens[0]);
+                height = Integer.parseInt(tokens[1]);
+            }
+        }
+    }
+
+    private static int readLittleEndianInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24;
+    }
+
+    /**
+     * Sets width and height from potrace --width and --height arguments, given in inches.
+     */
+    private void readPotraceDimensions() {
+        String widthValue = getOptionValue("--width");
+        String heightValue = getOptionValue("--height");
+
+        if(widthValue != null && heightValue != null) {
+            width = (int)Math.round(Double.parseDouble(widthValue) * 72);
+            height = (int)Math.round(Double.parseDouble(heightValue) * 72);
+        }
+    }
+
+    private String[] createPalette() {
+        String[] palette = new String[colorCount];
+        palette[0] = centerline ? "000000" : "ffffff";
+
+        for(int i = 1; i < colorCount; i++) {
+            palette[i] = String.format("%06x", random.nextInt(0x1000000));
+        }
+        return palette;
+    }
+
+    /**
+     * Writes paths with a style attribute each, the first filling the
+     * background unless a background color argument is given.
+     */
+    private void writeAutotraceSvg(Writer w) throws IOException {
+        String[] palette = createPalette();
+
+        w.write("<?xml version=\"1.0\" standalone=\"yes\"?>\n");
+        w.write("<svg width=\"" + width + "\" height=\"" + height + "\">\n");
+
+        int start = 0;
+        if(!centerline && getOptionValue("--background-color") == null) {
+            w.write("<path style=\"fill:#" + palette[0] + "; stroke:none;\" d=\"M0 0L" + width + " 0L"
+                    + width + " " + height + "L0 " + height + "L0 0z\"/>\n");
+            start = 1;
+        }
+
+        StringBuffer d = new StringBuffer();
+        for(int i = start; i < pathCount; i++) {
+            String color = palette[(colorCount == 1) ? 0 : 1 + random.nextInt(colorCount - 1)];
+
+            if(centerline) {
+                w.write("<path style=\"stroke:#" + color + "; fill:none;\" d=\"");
+            } else {
+                w.write("<path style=\"fill:#" + color + "; stroke:none;\" d=\"");
+            }
+
+            d.setLength(0);
+            appendAbsolutePath(d);
+            w.write(d.toString());
+            w.write("\"/>\n");
+        }
+
+        w.write("</svg>\n");
+    }
+
+    /**
+     * Appends shape around a random center, of curves and lines in absolute
+     * coordinates. Outlines return to the start with a line before closing.
+     */
+    private void appendAbsolutePath(StringBuffer d) {
+        int[][] points = createShape(1);
+
+        d.append('M').append(points[0][0]).append(' ').append(points[0][1]);
+        for(int i = 1; i < points.length; i++) {
+            appendSegment(d, points[i - 1], points[i], false);
+        }
+
+        if(!centerline) {
+            d.append('L').append(points[0][0]).append(' ').append(points[0][1]).append('z');
+        }
+    }
+
+    private void appendSegment(StringBuffer d, int[] from, int[] to, boolean relative) {
+        int dx = to[0] - from[0];
+        int dy = to[1] - from[1];
+
+        if(random.nextBoolean()) {
+            int[] control1 = new int[] {from[0] + dx / 3 + jitter(dx), from[1] + dy / 3 + jitter(dy)};
+            int[] control2 = new int[] {from[0] + 2 * dx / 3 + jitter(dx), from[1] + 2 * dy / 3 + jitter(dy)};
+
+            d.append(relative ? 'c' : 'C');
+            appendPoint(d, control1, from, relative).append(' ');
+            appendPoint(d, control2, from, relative).append(' ');
+            appendPoint(d, to, from, relative);
+        } else {
+            d.append(relative ? 'l' : 'L');
+            appendPoint(d, to, from, relative);
+        }
+    }
+
+    private int jitter(int distance) {
+        int range = Math.abs(distance) / 4 + 1;
+        return random.nextInt(2 * range + 1) - range;
+    }
+
+    private static StringBuffer appendPoint(StringBuffer d, int[] point, int[] from, boolean relative) {
+        if(relative) {
+            return d.append(point[0] - from[0]).append(' ').append(point[1] - from[1]);
+        } else {
+            return d.append(point[0]).append(' ').append(point[1]);
+        }
+    }
+
+    /**
+     * Returns points around a random center, within the image scaled by scale.
+     */
+    private int[][] createShape(int scale) {
+        int maxRadius = Math.max(2, Math.min(width, height) / 8);
+        int radius = 1 + random.nextInt(maxRadius);
+        int centerX = random.nextInt(width);
+        int centerY = random.nextInt(height);
+        int[][] points = new int[segmentCount][];
+
+        for(int i = 0; i < segmentCount; i++) {
+            double angle = 2 * Math.PI * i / segmentCount;
+            double distance = radius * (0.5 + random.nextDouble() / 2);
+            int x = (int)Math.round(centerX + distance * Math.cos(angle));
+            int y = (int)Math.round(centerY + distance * Math.sin(angle));
+            points[i] = new int[] {Math.max(0, Math.min(width, x)) * scale, Math.max(0, Math.min(height, y)) * scale};
+        }
+        return points;
+    }
+
+    /**
+     * Writes black paths in a group that flips and scales coordinates, each
+     * path with relative coordinates and some with a hole.
+     */
+    private void writePotraceSvg(Writer w) throws IOException {
+        w.write("<?xml version=\"1.0\" standalone=\"no\"?>\n");
+        w.write("<svg width=\"" + width + ".000000pt\" height=\"" + height + ".000000pt\">\n");
+        w.write("<g transform=\"translate(0.000000," + height + ".000000) scale(0.100000,-0.100000)\" fill=\"#000000\" stroke=\"none\">\n");
+
+        StringBuffer d = new StringBuffer();
+        for(int i = 0; i < pathCount; i++) {
+            d.setLength(0);
+            int[][] outline = createShape(10);
+            appendRelativeSubpath(d, outline, null);
+
+            if(random.nextInt(4) == 0) {
+                int[][] hole = shrink(outline);
+                d.append(' ');
+                appendRelativeSubpath(d, hole, outline[0]); // closing returns to start of outline
+            }
+
+            w.write("<path d=\"");
+            w.write(d.toString());
+            w.write("\"/>\n");
+        }
+
+        w.write("</g>\n");
+        w.write("</svg>\n");
+    }
+
+    /**
+     * Returns shape moved halfway to its center, with points in reverse
+     * order as potrace draws holes the opposite way round to outlines.
+     */
+    private static int[][] shrink(int[][] shape) {
+        int centerX = 0;
+        int centerY = 0;
+        for(int[] point : shape) {
+            centerX += point[0];
+            centerY += point[1];
+        }
+        centerX /= shape.length;
+        centerY /= shape.length;
+
+        int[][] shrunk = new int[shape.length][];
+        for(int i = 0; i < shape.length; i++) {
+            shrunk[shape.length - 1 - i] = new int[] {(shape[i][0] + centerX) / 2, (shape[i][1] + centerY) / 2};
+        }
+        return shrunk;
+    }
+
+    private void appendRelativeSubpath(StringBuffer d, int[][] points, int[] previousPoint) {
+        if(previousPoint == null) {
+            d.append('M').append(points[0][0]).append(' ').append(points[0][1]).append(' ');
+        } else {
+            d.append('m');
+            appendPoint(d, points[0], previousPoint, true).append(' ');
+        }
+
+        for(int i = 1; i < points.length; i++) {
+            appendSegment(d, points[i - 1], points[i], true);
+            d.append(' ');
+        }
+        appendSegment(d, points[points.length - 1], points[0], true);
+        d.append(" z");
+    }
+
+    public static void main(String args[]) {
+        if(args.length == 1 && (args[0].equals("-version") || args[0].equals("--version"))) {
+            System.out.println(VERSION);
+            return;
+        }
+
+        try {
+            new StubTracer(args).run();
+        } catch(Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
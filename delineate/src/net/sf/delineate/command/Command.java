@@ -19,6 +19,9 @@
  */
 package net.sf.delineate.command;
 
+import net.sf.delineate.utility.XPathTool;
+
+import javax.xml.xpath.XPathExpressionException;
 import java.util.*;
 
 /**
@@ -32,10 +35,20 @@ public class Command {
     public static final String BACKGROUND_COLOR_PARAMETER = "background-color";
     public static final String CENTERLINE_PARAMETER = "centerline";
 
+    private static final CommandChangeListener NO_CHANGE_LISTENER = new CommandChangeListener() {
+        public void enabledChanged(Parameter parameter) {
+        }
+
+        public void valueChanged(Parameter parameter) {
+        }
+    };
+
     private CommandChangeListener changeListener;
     private String commandName;
     private String tracingApplication;
     private String optionIndicator = "-";
+    private boolean standardInputSupported = false;
+    private boolean standardOutputSupported = false;
 
     private Parameter[] parameters;
 
@@ -51,16 +64,85 @@ public class Command {
         this.commandName = commandName;
     }
 
+    /**
+     * Creates command from a parameters file, using the default value and
+     * enabled setting of each parameter. For use when there are no settings
+     * controls listening to the command.
+     */
+    public static Command load(XPathTool xpathTool) throws XPathExpressionException {
+        String commandName = xpathTool.string("/parameters/command/name");
+        String optionIndicator = xpathTool.string("/parameters/command/option-indicator");
+        int parameterCount = xpathTool.count("/parameters/parameter");
+
+        Command command = new Command(commandName, optionIndicator, parameterCount, NO_CHANGE_LISTENER);
+        command.loadStandardStreamSupport(xpathTool);
+
+        for(int i = 0; i < parameterCount; i++) {
+            xpathTool.setXpathPrefix("/parameters/parameter[" + (i + 1) + "]/");
+            boolean optional = xpathTool.toBoolean("optional");
+            boolean enabled = !optional || xpathTool.toBoolean("enabled");
+
+            command.addParameter(xpathTool.string("name"), enabled, xpathTool.string("default"), xpathTool.string("function"));
+        }
+        xpathTool.setXpathPrefix("");
+
+        return command;
+    }
+
+    /**
+     * Returns a copy of this command with its current parameter settings.
+     * Changes to the copy are not reported to this command's listener,
+     * so a copy can be handed to a conversion running on another thread.
+     */
+    public Command copy() {
+        Command command = new Command(commandName, optionIndicator, parameters.length, NO_CHANGE_LISTENER);
+        command.setTracingApplication(tracingApplication);
+        command.standardInputSupported = standardInputSupported;
+        command.standardOutputSupported = standardOutputSupported;
+
+        for(int i = 0; i < parameterCount; i++) {
+            command.addParameter(parameters[i].copy());
+        }
+
+        return command;
+    }
+
+    /**
+     * Reads whether the tracing application can read its input image from
+     * standard input and write SVG to standard output.
+     */
+    public void loadStandardStreamSupport(XPathTool xpathTool) throws XPathExpressionException {
+        standardInputSupported = xpathTool.toBoolean("/parameters/command/standard-input");
+        standardOutputSupported = xpathTool.toBoolean("/parameters/command/standard-output");
+    }
+
+    public boolean isStandardInputSupported() {
+        return standardInputSupported;
+    }
+
+    public boolean isStandardOutputSupported() {
+        return standardOutputSupported;
+    }
+
     public String getCommandName() {
         return commandName;
     }
 
+    public String getTracingApplication() {
+        return tracingApplication;
+    }
+
     public void addParameter(String name, boolean enabled, String value, String function) {
+        addParameter(new Parameter(name, enabled, value, function));
+    }
+
+    private void addParameter(Parameter parameter) {
         if(parameterCount == parameters.length) {
             throw new IllegalStateException("Command can only hold " + parameters.length + " parameters.");
         }
 
-        Parameter parameter = new Parameter(name, enabled, value, function);
+        String name = parameter.getName();
+        String function = parameter.getFunction();
         parameters[parameterCount] = parameter;
         parameterCount++;
 
@@ -112,11 +194,28 @@ public class Command {
     }
 
     public String[] getCommandAsArray() {
+        return getCommandAsArray(false, false);
+    }
+
+    /**
+     * Returns command without the output file parameter, so SVG is written to
+     * standard output, and if readInputFile is false, without the input file
+     * parameter, so the image is read from standard input.
+     */
+    public String[] getStreamingCommandAsArray(boolean readInputFile) {
+        return getCommandAsArray(true, !readInputFile);
+    }
+
+    private String[] getCommandAsArray(boolean streamOutput, boolean streamInput) {
         List<String> commandList = new ArrayList<String>();
 
         commandList.add(tracingApplication);
 
         for (Parameter parameter : parameters) {
+            if ((streamOutput && parameter.isOutputFileParameter()) || (streamInput && parameter.isInputFileParameter())) {
+                continue;
+            }
+
             String option = parameter.parameterOption(optionIndicator);
 
             if (option.length() > 0) {
@@ -133,6 +232,26 @@ public class Command {
         return commandArray;
     }
 
+    /**
+     * Returns tracing application and parameter settings in a fixed order,
+     * without input and output file names, for identifying the result of
+     * tracing an image with this command.
+     */
+    public String getCanonicalSettings() {
+        StringBuffer buffer = new StringBuffer(commandName);
+        buffer.append(' ').append(tracingApplication);
+
+        for (Parameter parameter : parameters) {
+            if (!parameter.isInputFileParameter() && !parameter.isOutputFileParameter()) {
+                buffer.append(' ').append(parameter.getName());
+                buffer.append(parameter.isEnabled() ? '=' : '!');
+                buffer.append(parameter.getValue());
+            }
+        }
+
+        return buffer.toString();
+    }
+
     private Parameter getParameter(String name) {
         return (Parameter)parameterMap.get(name);
 //        if(name.startsWith("input")) {
@@ -157,6 +276,21 @@ public class Command {
         return getParameter(name).getValue();
     }
 
+    /**
+     * Returns background color if the background color parameter is enabled, else null.
+     */
+    public String getBackgroundColor() {
+        if(getParameterEnabled(BACKGROUND_COLOR_PARAMETER)) {
+            return getParameterValue(BACKGROUND_COLOR_PARAMETER);
+        } else {
+            return null;
+        }
+    }
+
+    public boolean getCenterlineEnabled() {
+        return getParameterEnabled(CENTERLINE_PARAMETER);
+    }
+
     public void setCommandDefaultValues() {
         for (Parameter parameter : parameters) {
             if (!parameter.isInputFileParameter() && !parameter.isOutputFileParameter()) {
@@ -0,0 +1,672 @@
+/*
+ * Conversion.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.command;
+
+import net.sf.delineate.utility.FileUtilities;
+import net.sf.delineate.utility.ImageUtilities;
+import net.sf.delineate.utility.PassStatistics;
+import net.sf.delineate.utility.ProcessResult;
+import net.sf.delineate.utility.ProcessRunner;
+import net.sf.delineate.utility.RuntimeUtility;
+import net.sf.delineate.utility.StageTimings;
+import net.sf.delineate.utility.SvgOptimizer;
+import net.sf.delineate.utility.TraceCache;
+import net.sf.delineate.utility.TracedGeometry;
+import net.sourceforge.jiu.data.BilevelImage;
+import net.sourceforge.jiu.ops.OperationFailedException;
+import org.apache.batik.util.SVGConstants;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Converts one raster image to SVG with a tracing command. Does not depend
+ * on any GUI component, so it can be run from the settings panel or in batch.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class Conversion {
+
+    private final Command command;
+    private final File inputFile;
+    private final File outputFile;
+    private File tracedFile;
+    private final int thresholdPercent;
+
+    private volatile boolean cancelled = false;
+    private volatile ProcessRunner processRunner;
+    private long timeout = 0;
+    private ProcessResult tracerResult;
+    private boolean streaming = false;
+    private TraceCache traceCache;
+    private String cacheKey;
+    private boolean cacheHit = false;
+    private String traceKey;
+    private TracedGeometry tracedGeometry;
+    private boolean traceCacheHit = false;
+    private final StageTimings stageTimings = new StageTimings();
+
+    private long traceTime;
+    private long optimizeTime;
+    private int pathCount;
+    private int tracedPathCount = -1;
+    private long tracedNodeCount = -1;
+    private long nodeCount = -1;
+    private int mergedColorCount = -1;
+    private int mergedGroupCount = -1;
+    private int culledPathCount = -1;
+    private long culledByteCount = -1;
+    private PassStatistics passStatistics;
+    private Color[] colors;
+
+    /**
+     * @param command command to run, should be a copy that no other thread changes
+     * @param thresholdPercent brightness threshold used when converting to black and white
+     */
+    public Conversion(Command command, int thresholdPercent) {
+        this.command = command;
+        this.thresholdPercent = thresholdPercent;
+        inputFile = new File(command.getParameterValue(Command.INPUT_FILE_PARAMETER));
+        outputFile = new File(command.getParameterValue(Command.OUTPUT_FILE_PARAMETER));
+        tracedFile = outputFile;
+    }
+
+    /**
+     * @return time taken by each stage of this conversion, add a listener
+     *         to be told of stages as they complete
+     */
+    public StageTimings getStageTimings() {
+        return stageTimings;
+    }
+
+    public void addStageListener(StageTimings.StageListener listener) {
+        stageTimings.addStageListener(listener);
+    }
+
+    public void removeStageListener(StageTimings.StageListener listener) {
+        stageTimings.removeStageListener(listener);
+    }
+
+    /**
+     * @param timeout milliseconds after which the tracing application is destroyed, 0 for no timeout
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * In streaming mode the input image is piped to the tracing application
+     * and SVG read from its output, where the tracing application supports it,
+     * rather than going through temporary files.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @param traceCache cache to reuse results from and store results in, null for none
+     */
+    public void setTraceCache(TraceCache traceCache) {
+        this.traceCache = traceCache;
+    }
+
+    /**
+     * Traces and optimizes the input image, unless the cache holds the result
+     * of a previous conversion of the same image with the same settings. The
+     * trace itself is cached, and optimized from the cache when only
+     * optimizer settings have changed.
+     */
+    public void convert(SvgOptimizer svgOptimizer) throws IOException, InterruptedException, OperationFailedException {
+        if(!loadFromCache(svgOptimizer)) {
+            if(loadTraceFromCache(svgOptimizer)) {
+                optimize(svgOptimizer);
+            } else if(isOutputStreamed()) {
+                traceStreamed(svgOptimizer);
+            } else {
+                trace();
+                storeTraceInCache();
+                optimize(svgOptimizer);
+            }
+            storeInCache(svgOptimizer);
+        }
+    }
+
+    /**
+     * Traces the input image, reading SVG from the tracing application's
+     * output as it is written. When the trace is to be cached the SVG is
+     * converted to traced geometry, which is then optimized, otherwise it is
+     * optimized straight to the output file. Optimizing then overlaps tracing.
+     */
+    private void traceStreamed(final SvgOptimizer svgOptimizer) throws IOException, InterruptedException, OperationFailedException {
+        if(traceKey != null && svgOptimizer.isPathDataEncoded()) {
+            final File temporaryFile = traceCache.createTraceFile(traceKey);
+
+            try {
+                trace(new ProcessRunner.OutputReader() {
+                    public void read(InputStream inputStream) throws IOException {
+                        TracedGeometry.convert(createSvgReader(inputStream), temporaryFile);
+                    }
+                });
+                long start = System.currentTimeMillis();
+                tracedGeometry = TracedGeometry.open(traceCache.putTrace(traceKey, temporaryFile));
+                stageTimings.record(StageTimings.STORE_TRACE, start);
+            } finally {
+                temporaryFile.delete();
+            }
+            optimize(svgOptimizer);
+        } else {
+            final File optimizedFile = createOptimizedFile(svgOptimizer);
+            final long[] start = new long[1];
+
+            try {
+                trace(new ProcessRunner.OutputReader() {
+                    public void read(InputStream inputStream) throws IOException {
+                        start[0] = System.currentTimeMillis();
+                        svgOptimizer.optimize(optimizedFile, createSvgReader(inputStream));
+                    }
+                });
+                Files.move(optimizedFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                optimizedFile.delete();
+            }
+            recordOptimizeStatistics(svgOptimizer, start[0]);
+        }
+    }
+
+    /**
+     * Copies cached result for the input image and current settings to the
+     * output file. Sets the optimizer to write SVGZ if the output file has
+     * the .svgz extension, which is part of the settings the cache is keyed by.
+     * @return true if there was a cached result
+     */
+    public boolean loadFromCache(SvgOptimizer svgOptimizer) throws IOException {
+        svgOptimizer.setCompressed(FileUtilities.isSvgz(outputFile));
+
+        if(traceCache == null) {
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        String[] settings = new String[] {command.getCanonicalSettings(), svgOptimizer.getCacheKey()};
+        cacheKey = TraceCache.createKey(inputFile, settings);
+        TraceCache.Entry entry = traceCache.get(cacheKey, outputFile);
+
+        if(entry != null) {
+            pathCount = entry.getPathCount();
+            colors = entry.getColors();
+            cacheHit = true;
+        }
+        stageTimings.record(StageTimings.CACHE_LOOKUP, start);
+        return cacheHit;
+    }
+
+    /**
+     * Stores optimized output file in the cache, under the key
+     * found by {@link #loadFromCache(SvgOptimizer)}.
+     */
+    public void storeInCache(SvgOptimizer svgOptimizer) throws IOException {
+        if(traceCache != null && cacheKey != null && !cacheHit) {
+            traceCache.put(cacheKey, outputFile, svgOptimizer.getPathCount(), svgOptimizer.getColors());
+        }
+    }
+
+    /**
+     * Opens cached trace of the input image with the current tracing
+     * settings, for {@link #optimize(SvgOptimizer)} to read instead of
+     * tracing the image. The cached trace is not used when the optimizer
+     * writes path data as traced, as it holds paths as absolute coordinates.
+     * @return true if there was a cached trace
+     */
+    public boolean loadTraceFromCache(SvgOptimizer svgOptimizer) throws IOException {
+        if(traceCache == null) {
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        String[] settings = new String[] {command.getCanonicalSettings(), "threshold=" + thresholdPercent, "traced geometry"};
+        traceKey = TraceCache.createKey(inputFile, settings);
+        File traceFile = svgOptimizer.isPathDataEncoded() ? traceCache.getTrace(traceKey) : null;
+
+        if(traceFile != null) {
+            try {
+                tracedGeometry = TracedGeometry.open(traceFile);
+                traceCacheHit = true;
+            } catch(IOException e) {
+                System.err.println("Cached trace of " + inputFile.getName() + " not read: " + e.getMessage());
+            }
+        }
+        stageTimings.record(StageTimings.CACHE_LOOKUP, start);
+        return traceCacheHit;
+    }
+
+    /**
+     * Converts SVG written by the tracing application to traced geometry and
+     * stores it in the cache, under the key found by {@link #loadTraceFromCache(SvgOptimizer)}.
+     * {@link #optimize(SvgOptimizer)} then reads paths from the geometry
+     * rather than parsing the SVG again. A trace that cannot be converted,
+     * such as one with arcs, is not cached and is optimized from its SVG.
+     */
+    public void storeTraceInCache() throws IOException {
+        if(traceCache != null && traceKey != null && !traceCacheHit) {
+            long start = System.currentTimeMillis();
+            File temporaryFile = traceCache.createTraceFile(traceKey);
+
+            try {
+                Reader reader = createSvgReader(new FileInputStream(tracedFile));
+                try {
+                    TracedGeometry.convert(reader, temporaryFile);
+                } finally {
+                    reader.close();
+                }
+                tracedGeometry = TracedGeometry.open(traceCache.putTrace(traceKey, temporaryFile));
+            } catch(IOException e) {
+                System.err.println("Trace of " + inputFile.getName() + " not cached: " + e.getMessage());
+            } finally {
+                temporaryFile.delete();
+            }
+            stageTimings.record(StageTimings.STORE_TRACE, start);
+        }
+    }
+
+    /**
+     * @return true if the result was copied from the cache
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * @return colors used in the result, null if not known
+     */
+    public Color[] getColors() {
+        return colors;
+    }
+
+    /**
+     * @return exit status and resource usage of the tracing application, null before it has run
+     */
+    public ProcessResult getTracerResult() {
+        return tracerResult;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public File getInputFile() {
+        return inputFile;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Converts input image to a format the tracing application reads and runs
+     * the tracing application. In streaming mode the SVG it writes to its
+     * standard output is copied to the traced file. When the output file is
+     * SVGZ, the traced file is a temporary plain SVG file beside it, which
+     * {@link #optimize(SvgOptimizer)} removes, as tracing applications choose
+     * their output format by file extension.
+     * @return SVG file written by the tracing application
+     */
+    public File trace() throws IOException, InterruptedException, OperationFailedException {
+        trace(null);
+        return tracedFile;
+    }
+
+    /**
+     * @param svgReader reads SVG from the tracing application's standard output
+     *                  in streaming mode, null to copy it to the traced file
+     */
+    private void trace(ProcessRunner.OutputReader svgReader) throws IOException, InterruptedException, OperationFailedException {
+        long start = System.currentTimeMillis();
+        boolean streamOutput = isOutputStreamed();
+        boolean streamInput = streamOutput && command.isStandardInputSupported() && isPotrace();
+        ProcessRunner.InputWriter inputWriter = null;
+        File convertedFile = null;
+        boolean traced = false;
+
+        try {
+            long convertStart = System.currentTimeMillis();
+            if(streamInput) {
+                BilevelImage image = ImageUtilities.loadAsBilevel(inputFile, thresholdPercent);
+                setDimension(image.getWidth(), image.getHeight());
+                inputWriter = getPnmWriter(image);
+            } else if(isPotrace()) {
+                convertedFile = ImageUtilities.convertToPbm(inputFile, thresholdPercent);
+                Dimension dimension = ImageUtilities.getDimension(convertedFile);
+                setDimension(dimension.getWidth(), dimension.getHeight());
+            } else if(!(ImageUtilities.inBmpFormat(inputFile) || ImageUtilities.inPnmFormat(inputFile))) {
+                convertedFile = ImageUtilities.convertToPnm(inputFile);
+            }
+            if(streamInput || convertedFile != null) {
+                stageTimings.record(StageTimings.CONVERT_IMAGE, convertStart);
+            }
+
+            if(convertedFile != null) {
+                command.setParameterValue(Command.INPUT_FILE_PARAMETER, convertedFile.getPath(), false);
+            }
+
+            checkCancelled();
+            long traceStart = System.currentTimeMillis();
+            if(svgReader == null && FileUtilities.isSvgz(outputFile)) {
+                File directory = outputFile.getAbsoluteFile().getParentFile();
+                tracedFile = File.createTempFile(outputFile.getName(), ".svg", directory);
+            }
+
+            if(svgReader != null) {
+                execute(command.getStreamingCommandAsArray(!streamInput), inputWriter, null, svgReader);
+            } else if(streamOutput) {
+                OutputStream svgOutput = new BufferedOutputStream(new FileOutputStream(tracedFile), 64 * 1024);
+                try {
+                    execute(command.getStreamingCommandAsArray(!streamInput), inputWriter, svgOutput, null);
+                } finally {
+                    svgOutput.close();
+                }
+            } else {
+                if(tracedFile != outputFile) {
+                    command.setParameterValue(Command.OUTPUT_FILE_PARAMETER, tracedFile.getPath(), false);
+                }
+                execute(command.getCommandAsArray(), null, null, null);
+            }
+            stageTimings.record(StageTimings.TRACE, traceStart);
+            traced = true;
+        } finally {
+            if(tracedFile != outputFile) {
+                command.setParameterValue(Command.OUTPUT_FILE_PARAMETER, outputFile.getPath(), false);
+
+                if(!traced) {
+                    tracedFile.delete();
+                    tracedFile = outputFile;
+                }
+            }
+
+            if(convertedFile != null) {
+                command.setParameterValue(Command.INPUT_FILE_PARAMETER, inputFile.getPath(), false);
+
+                if(!convertedFile.equals(inputFile)) {
+                    convertedFile.delete();
+                }
+            }
+        }
+
+        checkCancelled();
+        traceTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Adds the SVG namespace, which tracing applications leave out, to the
+     * traced file so that Batik loads it as SVG. The optimizers read SVG
+     * without namespaces, so only a traced file loaded as a document needs it.
+     */
+    public void fixSvgNamespace() throws IOException {
+        long start = System.currentTimeMillis();
+        Path path = tracedFile.toPath();
+        Charset charset = StandardCharsets.UTF_8;
+
+        String content = new String(Files.readAllBytes(path), charset);
+        content = content.replaceAll("<svg width", "<svg xmlns=\"" + SVGConstants.SVG_NAMESPACE_URI + "\" width");
+        Files.write(path, content.getBytes(charset));
+        stageTimings.record(StageTimings.FIX_NAMESPACE, start);
+    }
+
+    private void setDimension(double width, double height) {
+        command.setParameterValue("height", Double.toString(height / 72), false);
+        command.setParameterValue("width", Double.toString(width / 72), false);
+    }
+
+    private static ProcessRunner.InputWriter getPnmWriter(final BilevelImage image) {
+        return new ProcessRunner.InputWriter() {
+            public void write(OutputStream outputStream) throws IOException {
+                try {
+                    ImageUtilities.writePnm(image, new BufferedOutputStream(outputStream, 64 * 1024));
+                } catch(OperationFailedException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    private void execute(String[] commandArray, ProcessRunner.InputWriter inputWriter, OutputStream outputStream,
+                         ProcessRunner.OutputReader outputReader) throws IOException, InterruptedException {
+        processRunner = new ProcessRunner(commandArray);
+        processRunner.setTimeout(timeout);
+        processRunner.setInputWriter(inputWriter);
+        processRunner.setOutputStream(outputStream);
+        processRunner.setOutputReader(outputReader);
+
+        if(cancelled) {
+            processRunner.destroy();
+        }
+
+        try {
+            tracerResult = processRunner.run();
+        } finally {
+            processRunner = null;
+        }
+
+        checkCancelled();
+        RuntimeUtility.checkExitCode(commandArray, tracerResult);
+    }
+
+    /**
+     * Stops conversion, destroying the tracing application process if it is
+     * running. The conversion thread then removes any temporary image file
+     * and {@link #trace()} throws a {@link CancellationException}.
+     */
+    public void cancel() {
+        cancelled = true;
+        ProcessRunner runner = processRunner;
+
+        if(runner != null) {
+            runner.destroy();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void checkCancelled() {
+        if(cancelled) {
+            throw new CancellationException("Conversion of " + inputFile.getName() + " cancelled.");
+        }
+    }
+
+    /**
+     * Rewrites traced SVG using the given optimizer, streaming it through the
+     * optimizer rather than loading it as a document. Paths are read from
+     * traced geometry instead once the trace is cached, unless path data is
+     * to be written as traced.
+     */
+    public void optimize(SvgOptimizer svgOptimizer) throws IOException {
+        long start = System.currentTimeMillis();
+        File optimizedFile = createOptimizedFile(svgOptimizer);
+
+        try {
+            if(isOptimizedFromGeometry(svgOptimizer)) {
+                svgOptimizer.optimize(optimizedFile, tracedGeometry);
+            } else {
+                Reader reader = createSvgReader(new FileInputStream(tracedFile));
+                try {
+                    svgOptimizer.optimize(optimizedFile, reader);
+                } finally {
+                    reader.close();
+                }
+            }
+            Files.move(optimizedFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            optimizedFile.delete();
+            if(tracedFile != outputFile) {
+                tracedFile.delete();
+                tracedFile = outputFile;
+            }
+        }
+
+        recordOptimizeStatistics(svgOptimizer, start);
+    }
+
+    /**
+     * Sets the optimizer options given by the command and output file, and
+     * returns a temporary file beside the output file to optimize to.
+     */
+    private File createOptimizedFile(SvgOptimizer svgOptimizer) throws IOException {
+        svgOptimizer.setBackgroundColor(command.getBackgroundColor());
+        svgOptimizer.setCenterlineEnabled(command.getCenterlineEnabled());
+        svgOptimizer.setCompressed(FileUtilities.isSvgz(outputFile));
+
+        File directory = outputFile.getAbsoluteFile().getParentFile();
+        return File.createTempFile(outputFile.getName(), ".tmp", directory);
+    }
+
+    /**
+     * Records optimize stage, begun at start, and the optimizer's counts.
+     */
+    private void recordOptimizeStatistics(SvgOptimizer svgOptimizer, long start) {
+        stageTimings.record(StageTimings.OPTIMIZE, start);
+        pathCount = svgOptimizer.getPathCount();
+        tracedPathCount = svgOptimizer.getTracedPathCount();
+        tracedNodeCount = svgOptimizer.getTracedNodeCount();
+        nodeCount = svgOptimizer.getNodeCount();
+        mergedColorCount = svgOptimizer.getMergedColorCount();
+        mergedGroupCount = svgOptimizer.getMergedGroupCount();
+        culledPathCount = svgOptimizer.getCulledPathCount();
+        culledByteCount = svgOptimizer.getCulledByteCount();
+        passStatistics = svgOptimizer.getPassStatistics();
+        colors = svgOptimizer.getColors();
+
+        optimizeTime = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return true if paths are read from traced geometry, rather than the traced SVG
+     */
+    public boolean isOptimizedFromGeometry(SvgOptimizer svgOptimizer) {
+        return tracedGeometry != null && svgOptimizer.isPathDataEncoded();
+    }
+
+    /**
+     * @return geometry of the trace, null if the trace is not cached
+     */
+    public TracedGeometry getTracedGeometry() {
+        return tracedGeometry;
+    }
+
+    public long getTraceTime() {
+        return traceTime;
+    }
+
+    public long getOptimizeTime() {
+        return optimizeTime;
+    }
+
+    public int getPathCount() {
+        return pathCount;
+    }
+
+    /**
+     * @return paths traced, including those removed as specks, -1 if result came from the cache
+     */
+    public int getTracedPathCount() {
+        return tracedPathCount;
+    }
+
+    /**
+     * @return nodes in paths as traced, -1 if not counted or result came from the cache
+     */
+    public long getTracedNodeCount() {
+        return tracedNodeCount;
+    }
+
+    /**
+     * @return nodes in paths of the result, -1 if not counted or result came from the cache
+     */
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return traced colors merged into other colors, -1 if not merged or result came from the cache
+     */
+    public int getMergedColorCount() {
+        return mergedColorCount;
+    }
+
+    /**
+     * @return color groups eliminated by merging colors, -1 if not merged or result came from the cache
+     */
+    public int getMergedGroupCount() {
+        return mergedGroupCount;
+    }
+
+    /**
+     * @return hidden paths removed, -1 if not looked for or result came from the cache
+     */
+    public int getCulledPathCount() {
+        return culledPathCount;
+    }
+
+    /**
+     * @return characters of path data in hidden paths removed, -1 if not looked for or result came from the cache
+     */
+    public long getCulledByteCount() {
+        return culledByteCount;
+    }
+
+    /**
+     * @return statistics of each optimizer pass run, null if result came from the cache
+     */
+    public PassStatistics getPassStatistics() {
+        return passStatistics;
+    }
+
+    public long getOutputSize() {
+        return outputFile.length();
+    }
+
+    private boolean isPotrace() {
+        return command.getCommandName().equals("potrace");
+    }
+
+    private boolean isOutputStreamed() {
+        return streaming && command.isStandardOutputSupported();
+    }
+
+    private static Reader createSvgReader(InputStream inputStream) {
+        return new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+}
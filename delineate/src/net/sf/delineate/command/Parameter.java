@@ -41,6 +41,16 @@ public class Parameter implements Comparable {
         this.function = function;
     }
 
+    /**
+     * Returns a detached copy of this parameter, with the same name, function,
+     * current value and enabled state.
+     */
+    public Parameter copy() {
+        Parameter parameter = new Parameter(name, enabled, value, function);
+        parameter.setDefaultValue(defaultValue);
+        return parameter;
+    }
+
     public boolean isInputFileParameter() {
         return function.equals(Command.INPUT_FILE_PARAMETER);
     }
@@ -132,11 +132,7 @@ public class SettingsPanel implements RenderingListener {
     }
 
     public String getBackgroundColor() {
-        if(command.getParameterEnabled(Command.BACKGROUND_COLOR_PARAMETER)) {
-            return command.getParameterValue(Command.BACKGROUND_COLOR_PARAMETER);
-        } else {
-            return null;
-        }
+        return command.getBackgroundColor();
     }
 
     public File getInputFile() {
@@ -199,6 +195,7 @@ public class SettingsPanel implements RenderingListener {
             }
         });
 
+        command.loadStandardStreamSupport(xpathTool);
         loadTracingApplicationPath(panel);
 
         for(int type = 0; type < 3; type++) {
@@ -498,7 +495,14 @@ public class SettingsPanel implements RenderingListener {
     }
 
     public boolean getCenterlineEnabled() {
-        return command.getParameterEnabled(Command.CENTERLINE_PARAMETER);
+        return command.getCenterlineEnabled();
+    }
+
+    /**
+     * Returns copy of the current command settings, for use by a conversion.
+     */
+    public Command copyCommand() {
+        return command.copy();
     }
 
     public String[] getCommandAsArray() {
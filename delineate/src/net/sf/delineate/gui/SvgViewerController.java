@@ -20,6 +20,8 @@
 package net.sf.delineate.gui;
 
 import net.sf.delineate.utility.FileUtilities;
+import net.sf.delineate.utility.PassStatistics;
+import net.sf.delineate.utility.StageTimings;
 import net.sf.delineate.utility.SvgOptimizer;
 import org.apache.batik.swing.JSVGCanvas;
 import org.w3c.dom.Document;
@@ -76,10 +78,28 @@ public class SvgViewerController {
         panel.add(splitPane);
     }
 
+    /**
+     * Returns element count and file size of the result, and of the previous
+     * result if there is one, for comparing the effect of result options.
+     */
+    public String getResultSizeText() {
+        String text = svgViewerA.getElementCount() + " - " + svgViewerA.getFileSize();
+        String previousSize = svgViewerB.getFileSize();
+
+        if(previousSize.length() > 0) {
+            text += ", previous result " + svgViewerB.getElementCount() + " - " + previousSize;
+        }
+        return text;
+    }
+
     public void addRenderingListener(RenderingListener listener) {
         svgViewerA.addRenderingListener(listener);
     }
 
+    public void addResultFileListener(ResultFileListener listener) {
+        svgViewerA.addResultFileListener(listener);
+    }
+
     private void installListeners() {
         ScrollListener scrollListenerA = new ScrollListener(svgViewerB.getHorizontalScrollBar(), svgViewerB.getVerticalScrollBar());
         ScrollListener scrollListenerB = new ScrollListener(svgViewerA.getHorizontalScrollBar(), svgViewerA.getVerticalScrollBar());
@@ -185,7 +205,10 @@ public class SvgViewerController {
     }
 
     public void movePreviousSvg(String newOutputFile) throws InterruptedException, InvocationTargetException {
-        if(uri != null) {
+        svgViewerA.waitForFiles();
+        boolean resultShown = svgViewerA.getSvgDocument() != null; // false if a cancelled conversion stopped loading
+
+        if(uri != null && resultShown && FileUtilities.getFile(uri).exists()) {
             svgViewerA.closeViewSourceFrame();
             svgViewerB.closeViewSourceFrame();
 
@@ -207,6 +230,11 @@ public class SvgViewerController {
             }
 
             svgViewerB.setPathCount(svgViewerA.getPathCount());
+            svgViewerB.setTracedPathCount(svgViewerA.getTracedPathCount());
+            svgViewerB.setNodeCounts(svgViewerA.getTracedNodeCount(), svgViewerA.getNodeCount());
+            svgViewerB.setMergedCounts(svgViewerA.getMergedColorCount(), svgViewerA.getMergedGroupCount());
+            svgViewerB.setCulledCounts(svgViewerA.getCulledPathCount(), svgViewerA.getCulledByteCount());
+            svgViewerB.setPassStatistics(svgViewerA.getPassStatistics());
             final SVGDocument svgDocument = (SVGDocument)svgViewerA.getSvgDocument().cloneNode(true);
 
             String uri = FileUtilities.getUri(previousFile.getPath());
@@ -258,6 +286,11 @@ public class SvgViewerController {
         });
     }
 
+    /**
+     * Loads and optimizes a traced result. Like results loaded already
+     * optimized, it may be gzip compressed SVGZ, which the canvas reads as
+     * it would plain SVG.
+     */
     public void load(final String uri) {
         this.uri = uri;
         System.out.println("loading " + uri);
@@ -271,6 +304,30 @@ public class SvgViewerController {
         });
     }
 
+    /**
+     * Loads a result that is already optimized, such as one from the trace cache.
+     * @param passStatistics statistics of each optimizer pass run, null if result came from the cache
+     */
+    public void loadOptimized(final String uri, final int pathCount, final Color[] colors, final PassStatistics passStatistics) {
+        this.uri = uri;
+        System.out.println("loading " + uri);
+        svgViewerA.setOptimize(false);
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                svgViewerA.setPathCount(pathCount);
+                svgViewerA.setTracedPathCount(-1);
+                svgViewerA.setNodeCounts(-1, -1);
+                svgViewerA.setMergedCounts(-1, -1);
+                svgViewerA.setCulledCounts(-1, -1);
+                svgViewerA.setPassStatistics(passStatistics);
+                if(colors != null) svgViewerA.setColors(colors);
+                if(zoomState.isZoomed()) svgViewerA.hideCanvas();
+                svgViewerA.setURI(uri);
+                zoomIfRequired(svgViewerA);
+            }
+        });
+    }
+
     public static void main(String[] args) {
         JFrame frame = new JFrame("Batik");
         SvgViewerController app = new SvgViewerController();
@@ -285,10 +342,24 @@ public class SvgViewerController {
         svgViewerA.setStatus(text, "");
     }
 
+    /**
+     * Stops any loading or rendering of the current result.
+     */
+    public void stopLoading() {
+        svgViewerA.stopProcessing();
+    }
+
     public Document getSvgDocument() {
         return svgViewerA.getSvgDocument();
     }
 
+    /**
+     * @param stageTimings record to add viewer stage times of the next result to
+     */
+    public void setStageTimings(StageTimings stageTimings) {
+        svgViewerA.setStageTimings(stageTimings);
+    }
+
     public void setSvgOptimizer(SvgOptimizer svgOptimizer) {
         svgViewerA.setSvgOptimizer(svgOptimizer);
     }
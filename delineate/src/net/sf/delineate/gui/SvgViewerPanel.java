@@ -19,7 +19,10 @@
  */
 package net.sf.delineate.gui;
 
+import net.sf.delineate.utility.DocumentSvgOutput;
 import net.sf.delineate.utility.FileUtilities;
+import net.sf.delineate.utility.PassStatistics;
+import net.sf.delineate.utility.StageTimings;
 import net.sf.delineate.utility.SvgOptimizer;
 import org.apache.batik.swing.JSVGCanvas;
 import org.apache.batik.swing.gvt.GVTTreeRendererAdapter;
@@ -28,6 +31,7 @@ import org.apache.batik.swing.svg.GVTTreeBuilderAdapter;
 import org.apache.batik.swing.svg.GVTTreeBuilderEvent;
 import org.apache.batik.swing.svg.SVGDocumentLoaderAdapter;
 import org.apache.batik.swing.svg.SVGDocumentLoaderEvent;
+import org.w3c.dom.Node;
 import org.w3c.dom.svg.SVGDocument;
 
 import javax.swing.Action;
@@ -41,6 +45,7 @@ import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.KeyStroke;
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Container;
 import java.awt.EventQueue;
 import java.awt.event.AdjustmentListener;
@@ -50,6 +55,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Panel for viewing SVG files.
@@ -59,6 +69,9 @@ public class SvgViewerPanel {
 
     public static final String VIEW_SOURCE_ACTION = "ViewSource";
 
+    /** Writes optimized results to file while they are shown */
+    private static final ExecutorService FILE_WRITER = Executors.newSingleThreadExecutor();
+
     private final ScrollableJSVGCanvas svgCanvas = new ScrollableJSVGCanvas();
     private final JLabel statusLabel = new JLabel(" ");
     private final JLabel sizeLabel = new JLabel("");
@@ -67,6 +80,7 @@ public class SvgViewerPanel {
     private SvgOptimizer svgOptimizer;
 
     private List<RenderingListener> renderingListenerList = new ArrayList<RenderingListener>();
+    private final List<ResultFileListener> resultFileListenerList = new CopyOnWriteArrayList<ResultFileListener>();
     private JScrollBar horizontalScrollBar;
     private JScrollBar verticalScrollBar;
     private JPanel viewerPanel;
@@ -74,7 +88,22 @@ public class SvgViewerPanel {
     private String uri;
 
     private boolean optimize = false;
+    private volatile Future<?> fileWrite;
     private int pathCount = 0;
+    private int tracedPathCount = -1;
+    private long tracedNodeCount = -1;
+    private long nodeCount = -1;
+    private int mergedColorCount = -1;
+    private int mergedGroupCount = -1;
+    private int culledPathCount = -1;
+    private long culledByteCount = -1;
+    private PassStatistics passStatistics;
+    private int elementCount = 0;
+    private StageTimings stageTimings;
+    private String stageTimingsText = "";
+    private long loadStart;
+    private long buildStart;
+    private long renderStart;
     private int modifier;
 
     public SvgViewerPanel(String resultText, int modifier) {
@@ -117,10 +146,109 @@ public class SvgViewerPanel {
         return pathCount;
     }
 
+    public int getTracedPathCount() {
+        return tracedPathCount;
+    }
+
+    /**
+     * @param tracedPathCount paths traced, including those removed as specks, -1 if not known
+     */
+    public void setTracedPathCount(int tracedPathCount) {
+        this.tracedPathCount = tracedPathCount;
+    }
+
     public void setPathCount(int pathCount) {
         this.pathCount = pathCount;
     }
 
+    /**
+     * @return number of elements in the document last rendered
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    public String getFileSize() {
+        return uri == null ? "" : FileUtilities.getFileSize(FileUtilities.getFile(uri));
+    }
+
+    public long getTracedNodeCount() {
+        return tracedNodeCount;
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param tracedNodeCount nodes in paths as traced, -1 if not known
+     * @param nodeCount nodes in paths of the result, -1 if not known
+     */
+    public void setNodeCounts(long tracedNodeCount, long nodeCount) {
+        this.tracedNodeCount = tracedNodeCount;
+        this.nodeCount = nodeCount;
+    }
+
+    public int getMergedColorCount() {
+        return mergedColorCount;
+    }
+
+    public int getMergedGroupCount() {
+        return mergedGroupCount;
+    }
+
+    /**
+     * @param mergedColorCount traced colors merged into other colors, -1 if colors were not merged
+     * @param mergedGroupCount color groups eliminated by merging colors, -1 if colors were not merged
+     */
+    public void setMergedCounts(int mergedColorCount, int mergedGroupCount) {
+        this.mergedColorCount = mergedColorCount;
+        this.mergedGroupCount = mergedGroupCount;
+    }
+
+    public int getCulledPathCount() {
+        return culledPathCount;
+    }
+
+    public long getCulledByteCount() {
+        return culledByteCount;
+    }
+
+    /**
+     * @param culledPathCount hidden paths removed, -1 if hidden paths were not looked for
+     * @param culledByteCount characters of path data in hidden paths removed
+     */
+    public void setCulledCounts(int culledPathCount, long culledByteCount) {
+        this.culledPathCount = culledPathCount;
+        this.culledByteCount = culledByteCount;
+    }
+
+    public PassStatistics getPassStatistics() {
+        return passStatistics;
+    }
+
+    /**
+     * @param passStatistics statistics of each optimizer pass run, null if not known
+     */
+    public void setPassStatistics(PassStatistics passStatistics) {
+        this.passStatistics = passStatistics;
+    }
+
+    /**
+     * @param stageTimings record to add load, optimize, build and render times
+     *                     of the next result to, null to not record times
+     */
+    public void setStageTimings(StageTimings stageTimings) {
+        this.stageTimings = stageTimings;
+        stageTimingsText = "";
+    }
+
+    private void recordStage(String stage, long start) {
+        if(stageTimings != null) {
+            stageTimings.record(stage, start);
+        }
+    }
+
     private void installActions() {
         InputMap inputMap = svgCanvas.getInputMap();
         KeyStroke[] keys = inputMap.keys();
@@ -140,42 +268,48 @@ public class SvgViewerPanel {
         svgCanvas.addSVGDocumentLoaderListener(new
             SVGDocumentLoaderAdapter() {
                 public void documentLoadingStarted(SVGDocumentLoaderEvent e) {
+                    loadStart = System.currentTimeMillis();
                     sizeLabel.setText("");
                     setStatus("Loading...");
                 }
 
                 public void documentLoadingCompleted(SVGDocumentLoaderEvent e) {
+                    recordStage(StageTimings.LOAD_DOCUMENT, loadStart);
                     getSvgOptimizer().addBackground(e.getSVGDocument());
                     getSvgOptimizer().adjustDimensions(e.getSVGDocument());
 
-                    if(optimize) {
-                        optimize();
-                        if(getSvgOptimizer().groupByColor()) {
-                            svgCanvas.stopProcessing();
-                            EventQueue.invokeLater(new Runnable() {
-                                public void run() {
-                                    setURI(uri);
-                                }
-                            });
-
-                        }
+                    if(optimize) { // show optimized document, rather than reading it back from file
+                        final SVGDocument optimizedDocument = optimize();
+                        svgCanvas.stopProcessing();
+                        EventQueue.invokeLater(new Runnable() {
+                            public void run() {
+                                setSvgDocument(uri, optimizedDocument);
+                            }
+                        });
                     }
                 }
             });
 
         svgCanvas.addGVTTreeBuilderListener(new GVTTreeBuilderAdapter() {
             public void gvtBuildStarted(GVTTreeBuilderEvent e) {
+                buildStart = System.currentTimeMillis();
                 setStatus("Interpreting...");
             }
+
+            public void gvtBuildCompleted(GVTTreeBuilderEvent e) {
+                recordStage(StageTimings.BUILD, buildStart);
+            }
         });
 
         svgCanvas.addGVTTreeRendererListener(new GVTTreeRendererAdapter() {
             public void gvtRenderingPrepare(GVTTreeRendererEvent e) {
+                renderStart = System.currentTimeMillis();
                 setStatus("Rendering...");
             }
 
 
             public void gvtRenderingCompleted(GVTTreeRendererEvent e) {
+                recordStage(StageTimings.RENDER, renderStart);
                 final File file = FileUtilities.getFile(uri);
                 finishConversion(file, resultText);
             }
@@ -183,35 +317,197 @@ public class SvgViewerPanel {
 
     }
 
-    private void optimize() {
+    /**
+     * Optimizes loaded document into a new document, writing it to file in the background.
+     */
+    private SVGDocument optimize() {
+        long start = System.currentTimeMillis();
         File file = FileUtilities.getFile(uri);
-        getSvgOptimizer().optimize(file, getSvgDocument());
+        DocumentSvgOutput documentOutput = new DocumentSvgOutput();
+        fileWrite = getSvgOptimizer().optimize(file, getSvgDocument(), documentOutput, FILE_WRITER);
+        recordStage(StageTimings.OPTIMIZE, start);
+
+        setColors(getSvgOptimizer().getColors());
+        setPathCount(getSvgOptimizer().getPathCount());
+        setTracedPathCount(getSvgOptimizer().getTracedPathCount());
+        setNodeCounts(getSvgOptimizer().getTracedNodeCount(), getSvgOptimizer().getNodeCount());
+        setMergedCounts(getSvgOptimizer().getMergedColorCount(), getSvgOptimizer().getMergedGroupCount());
+        setCulledCounts(getSvgOptimizer().getCulledPathCount(), getSvgOptimizer().getCulledByteCount());
+        setPassStatistics(getSvgOptimizer().getPassStatistics());
+        optimize = false;
 
+        SVGDocument document = documentOutput.getDocument();
+        document.setDocumentURI(uri);
+        return document;
+    }
+
+    /**
+     * Waits for results to be written to file, and for result file listeners
+     * to finish with them. Must not be called on the event thread.
+     */
+    public void waitForFiles() throws InterruptedException {
+        try {
+            FILE_WRITER.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch(ExecutionException e) {
+            throw new IllegalStateException(e.getMessage(), e); // cannot happen, task does nothing
+        }
+    }
+
+    /**
+     * Waits for optimized result to be written to file, on the file writer thread.
+     */
+    private static void waitForFile(Future<?> write) {
+        if(write != null) {
+            try {
+                write.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Tells rendering listeners the colors used in the result.
+     */
+    public void setColors(Color[] colors) {
         for(Iterator<RenderingListener> iterator = renderingListenerList.iterator(); iterator.hasNext();) {
             RenderingListener renderingListener = iterator.next();
-            renderingListener.setColors(getSvgOptimizer().getColors());
+            renderingListener.setColors(colors);
+        }
+    }
+
+    /**
+     * Returns path count, with the number of paths traced if paths were removed.
+     */
+    private String getPathCountText() {
+        if(tracedPathCount > pathCount) {
+            return pathCount + " of " + tracedPathCount + " paths - ";
+        } else {
+            return pathCount + " paths - ";
         }
+    }
 
-        setPathCount(getSvgOptimizer().getPathCount());
-        optimize = false;
+    /**
+     * Returns node count followed by the percentage of traced nodes removed
+     * by path simplification, or empty string if node count is not known.
+     */
+    private String getNodeCountText() {
+        if(nodeCount < 0) {
+            return "";
+        } else if(tracedNodeCount > nodeCount) {
+            int percent = (int)Math.round(100.0 * (tracedNodeCount - nodeCount) / tracedNodeCount);
+            return nodeCount + " nodes (" + percent + "% fewer) - ";
+        } else {
+            return nodeCount + " nodes - ";
+        }
     }
 
-    private void finishConversion(File file, String resultText) {
+    /**
+     * Returns number of colors, and color groups, eliminated by merging
+     * similar colors, or empty string if colors were not merged.
+     */
+    private String getMergedCountText() {
+        if(mergedColorCount < 0) {
+            return "";
+        } else if(mergedGroupCount > 0) {
+            return mergedColorCount + " colors and groups merged - ";
+        } else {
+            return mergedColorCount + " colors merged - ";
+        }
+    }
+
+    /**
+     * Returns number of hidden paths removed and their path data size, or
+     * empty string if hidden paths were not looked for.
+     */
+    private String getCulledCountText() {
+        if(culledPathCount <= 0) {
+            return culledPathCount == 0 ? "no hidden paths - " : "";
+        } else {
+            return culledPathCount + " hidden paths removed (" + FileUtilities.getSize(culledByteCount) + ") - ";
+        }
+    }
+
+    /**
+     * Returns time taken by each optimizer pass and the elements and bytes
+     * it removed, or empty string if not known.
+     */
+    private String getPassStatisticsText() {
+        if(passStatistics == null || passStatistics.getPasses().length == 0) {
+            return "";
+        } else {
+            return "passes: " + passStatistics + " - ";
+        }
+    }
+
+    private static int countElements(Node node) {
+        int count = 0;
+        for(Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if(child.getNodeType() == Node.ELEMENT_NODE) {
+                count += 1 + countElements(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Shows status of the rendered result. Once the file writer thread has
+     * written the result to file, it tells result file listeners, then the
+     * status is updated with the file size and rendering listeners are told
+     * on the event thread.
+     */
+    private void finishConversion(final File file, String resultText) {
+        final Future<?> write = fileWrite;
+        fileWrite = null;
+        SVGDocument document = getSvgDocument();
+        elementCount = document == null ? 0 : countElements(document);
         viewSourceAction.setSourceUrl(uri);
 
         Container ancestor = svgCanvas.getTopLevelAncestor();
         int top = ancestor.getInsets().top;
         viewSourceAction.setLocation(ancestor.getX() + (top / 2), ancestor.getY() + top);
 
-        String fileSize = FileUtilities.getFileSize(file);
-        setStatus(resultText + file.getName(), pathCount + " paths - " + fileSize);
+        if(stageTimings != null) { // later renderings, such as when zooming, are not part of the conversion
+            stageTimingsText = stageTimings.toString();
+            stageTimings = null;
+        }
+
+        String text = resultText + file.getName();
+        if(stageTimingsText.length() > 0) {
+            text += " - " + stageTimingsText;
+        }
+        final String statusText = text;
+        final String countText = getPathCountText() + getNodeCountText() + getMergedCountText() + getCulledCountText() +
+                getPassStatisticsText();
+        setStatus(statusText, countText + "writing file...");
+        statusLabel.setToolTipText(stageTimingsText.length() == 0 ? null : stageTimingsText);
 
-        EventQueue.invokeLater(new Runnable() {
+        FILE_WRITER.execute(new Runnable() {
             public void run() {
-                for(Iterator<RenderingListener> iterator = renderingListenerList.iterator(); iterator.hasNext();) {
-                    RenderingListener renderingListener = iterator.next();
-                    renderingListener.renderingCompleted();
+                waitForFile(write);
+                for(ResultFileListener listener : resultFileListenerList) {
+                    try {
+                        listener.resultFileWritten(file);
+                    } catch(RuntimeException e) {
+                        e.printStackTrace(); // status must still be updated
+                    }
                 }
+                final String fileSize = FileUtilities.getFileSize(file);
+
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        setStatus(statusText, countText + fileSize);
+                        for(Iterator<RenderingListener> iterator = renderingListenerList.iterator(); iterator.hasNext();) {
+                            RenderingListener renderingListener = iterator.next();
+                            renderingListener.renderingCompleted();
+                        }
+                    }
+                });
             }
         });
     }
@@ -230,6 +526,10 @@ public class SvgViewerPanel {
         return svgCanvas.getActionMap().get(actionKey);
     }
 
+    public void stopProcessing() {
+        svgCanvas.stopProcessing();
+    }
+
     public void setURI(String uri) {
         setSvgDocument(uri, null);  // hack to prevent problem loading relative URI
         svgCanvas.setURI(uri);
@@ -319,6 +619,10 @@ public class SvgViewerPanel {
         renderingListenerList.remove(listener);
     }
 
+    public void addResultFileListener(ResultFileListener listener) {
+        resultFileListenerList.add(listener);
+    }
+
     public void setOptimize(boolean optimize) {
         this.optimize = optimize;
     }
@@ -34,7 +34,8 @@ import java.io.InputStream;
 import java.io.Reader;
 
 /**
- * To view the source of the current document.
+ * To view the source of the current document. Gzip compressed SVGZ
+ * documents are shown uncompressed, as ParsedURL decompresses them.
  */
 public class ViewSourceAction extends AbstractAction {
 
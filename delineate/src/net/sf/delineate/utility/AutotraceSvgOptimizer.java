@@ -27,16 +27,15 @@ import org.w3c.dom.svg.SVGPathElement;
 import org.w3c.dom.svg.SVGSVGElement;
 import org.w3c.dom.svg.SVGDocument;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.awt.Color;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,27 +47,77 @@ import java.util.ArrayList;
  */
 public class AutotraceSvgOptimizer extends SvgOptimizer {
 
+    /**
+     * Bytes of a path element with no path data as written without groups,
+     * the same for fill and centerline stroke colors.
+     */
+    private static final int PATH_ELEMENT_LENGTH = "<path stroke=\"none\" fill=\"#000000\" d=\"\"/>".length() + LINE_SEPARATOR_LENGTH;
+    private static final int COLOR_GROUP_LENGTH = "<g stroke=\"none\" fill=\"#000000\">".length() + "</g>".length() + 2 * LINE_SEPARATOR_LENGTH;
+
     private boolean centerlineEnabled;
-    private Map<String, String> colorToStyleMap = new HashMap<String, String>();
-    private Map<String, List<String>> colorToPathsMap = new HashMap<String, List<String>>();
-    private List<String> colorList = new ArrayList<String>();
-    private Set<Color> colorSet = new HashSet<Color>();
+    private Map<Integer, String> colorToStyleMap = new HashMap<Integer, String>();
+    private Set<Integer> colorSet = new HashSet<Integer>();
+    private Map<String, Integer> styleToColorMap = new HashMap<String, Integer>();
+    private List<String> styleList = new ArrayList<String>();
+    private int styleCount;
     private Color[] colors;
+    private int backgroundColor;
+    private ColorMerger colorMerger;
+    private OcclusionCuller occlusionCuller;
+    private int culledPathCount = -1;
+    private long culledByteCount = -1;
+    private long pathsStartByteCount;
+    private int groupElementCount;
+    private int backgroundPathCount;
+    private long backgroundByteCount;
+    private long backgroundTime;
+    private long mergeTime;
+    private long cullTime;
+    private long groupTime;
 
     public Color[] getColors() {
         return colors;
     }
 
-    public void setCenterlineEnabled(boolean enabled) {
-        centerlineEnabled = enabled;
+    public int getMergedColorCount() {
+        return colorMerger == null ? -1 : colorMerger.getMergedCount();
+    }
+
+    public int getMergedGroupCount() {
+        if(colorMerger == null) {
+            return -1;
+        }
+        return groupByColor() ? colorMerger.getMergedCount() : 0;
+    }
+
+    public int getCulledPathCount() {
+        return culledPathCount;
     }
 
-    public void setOptimizeType(String type) {
-        this.type = type;
+    public long getCulledByteCount() {
+        return culledByteCount;
+    }
+
+    /**
+     * Returns passes in the order they run. Remove background removes paths
+     * the color of the background when removing specks, merge colors writes
+     * similar colors as one color, cull removes hidden paths and group
+     * writes paths in groups, or joined, as the optimize type sets.
+     */
+    public String[] getPassNames() {
+        return new String[] {ENCODE_PASS, REMOVE_BACKGROUND_PASS, MERGE_COLORS_PASS, CULL_PASS, GROUP_PASS};
+    }
+
+    protected int getPathElementLength() {
+        return PATH_ELEMENT_LENGTH;
+    }
+
+    public void setCenterlineEnabled(boolean enabled) {
+        centerlineEnabled = enabled;
     }
 
     public boolean groupByColor() {
-        return type == COLOR_GROUPS;
+        return type == COLOR_GROUPS || type == COLOR_PATHS;
     }
 
     public void addBackground(SVGDocument document) {
@@ -84,205 +133,442 @@ public class AutotraceSvgOptimizer extends SvgOptimizer {
         }
     }
 
-    public void optimize(File file, SVGDocument svgDocument) {
-        try {
-            long start = System.currentTimeMillis();
+    public void optimize(SvgOutput output, SVGDocument svgDocument) {
+        SVGSVGElement rootElement = svgDocument.getRootElement();
+
+        writeDocumentStart(output, rootElement);
+        startPaths(output);
 
-            SVGSVGElement rootElement = svgDocument.getRootElement();
-            PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(file.getPath())));
+        NodeList childNodes = rootElement.getChildNodes();
 
-            Map<String, String> styleToColorMap = new HashMap<String, String>();
-            List<String> styleList = new LinkedList<String>();
+        for(int i = 0; i < childNodes.getLength(); i++) {
+            Node node = childNodes.item(i);
 
-            if(extractStyles()) {
-                styleToColorMap = new HashMap<String, String>();
-                styleList = new LinkedList<String>();
+            if(node instanceof SVGPathElement) {
+                SVGPathElement path = (SVGPathElement)node;
+                addPath(getColor(path.getAttribute("style")), path.getAttribute("d"));
             }
+        }
 
-            writeDocumentStart(w, rootElement);
+        endPaths(output);
+        output.endElement();
+    }
+
+    /**
+     * Writes paths as they are read. Only when grouping by color, joining
+     * paths of a color or culling hidden paths are paths held until the end
+     * of the document, and then only as their geometry and color.
+     */
+    public void optimize(SvgOutput output, Reader reader) throws IOException {
+        XMLStreamReader r = createStreamReader(reader);
+
+        try {
+            int depth = 0;
 
-            if(oneGroup()) {
-                if(centerlineEnabled) {
-                    w.println("<g fill=\"none\">");
-                } else {
-                    w.println("<g stroke=\"none\">");
+            while(r.hasNext()) {
+                int event = r.next();
+
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = r.getLocalName();
+
+                    if(depth == 1 && name.equals("svg")) {
+                        writeDocumentStart(output, adjustDimension(r.getAttributeValue(null, "width")),
+                                adjustDimension(r.getAttributeValue(null, "height")));
+                        startPaths(output);
+                    } else if(depth == 2 && name.equals("path")) {
+                        addPath(getColor(r.getAttributeValue(null, "style")), r.getAttributeValue(null, "d"));
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    if(depth == 1) {
+                        endPaths(output);
+                        output.endElement();
+                    }
+                    depth--;
                 }
             }
+        } catch(XMLStreamException e) {
+            throw createIOException(e);
+        } finally {
+            closeStreamReader(r);
+        }
+    }
+
+    public void optimize(SvgOutput output, TracedGeometry geometry) {
+        writeDocumentStart(output, adjustDimension(geometry.getWidth()), adjustDimension(geometry.getHeight()));
+        startPaths(output);
+        addPaths(geometry);
 
-            pathCount = writePaths(rootElement, styleList, styleToColorMap, w);
+        endPaths(output);
+        output.endElement();
+    }
+
+    private void writeStyles(SvgOutput output, List<String> codeList, Map<String, Integer> codeToFillMap) {
+        output.startElement("defs");
+        output.startElement("style");
+        output.attribute("type", "text/css");
 
-            if(oneGroup()) {
-                w.println("</g>");
+        StringBuilder styles = new StringBuilder("\n");
+        Iterator<String> iterator = codeList.iterator();
+
+        while(iterator.hasNext()) {
+            String name = iterator.next();
+            styles.append('.');
+            styles.append(name);
+            if(centerlineEnabled) {
+                styles.append("{stroke:#");
+            } else {
+                styles.append("{fill:#");
             }
+            styles.append(getHexColor(codeToFillMap.get(name).intValue()));
+            styles.append("}\n");
+        }
+        output.cdata(styles.toString());
+        output.endElement();
+        output.endElement();
+        groupElementCount += 2;
+    }
 
-            if(extractStyles()) {
-                writeStyles(w, styleList, styleToColorMap);
+    private void startPaths(final SvgOutput output) {
+        startPathData(new PathWriter() {
+            public void writePath(int path) {
+                writePathElement(output, path);
             }
+        });
+        pathCount = 0;
+        styleCount = 0;
+        styleList.clear();
+        styleToColorMap.clear();
+        clearColorCollections();
+        culledPathCount = -1;
+        culledByteCount = -1;
+        occlusionCuller = isOcclusionCulled() && !centerlineEnabled && isPassEnabled(CULL_PASS) ? new OcclusionCuller() : null;
+        backgroundColor = background == null ? -1 : Integer.parseInt(background, 16);
+        pathsStartByteCount = output.getByteCount();
+        groupElementCount = 0;
+        backgroundPathCount = 0;
+        backgroundByteCount = 0;
+        backgroundTime = 0;
+        mergeTime = 0;
+        cullTime = 0;
+        groupTime = 0;
+
+        if(oneGroup()) {
+            output.startElement("g");
+            output.attribute(centerlineEnabled ? "fill" : "stroke", "none");
+            groupElementCount++;
+        }
+    }
 
-            w.println("</svg>");
-            w.flush();
-            w.close();
+    /**
+     * Returns color of traced path as packed RGB, given its style attribute.
+     */
+    private int getColor(String styleText) {
+        int start = centerlineEnabled ? 8 : 6;
+        int color = 0;
 
-            System.out.println("optimizing took " + (System.currentTimeMillis() - start));
+        for(int i = start; i < start + 6; i++) {
+            color = (color << 4) | Character.digit(styleText.charAt(i), 16);
+        }
+        return color;
+    }
+
+    /**
+     * Returns true if paths are held until the end of the document, to be
+     * written by color or once hidden paths are culled.
+     */
+    private boolean isHoldingPaths() {
+        return groupByColor() || occlusionCuller != null;
+    }
+
+    /**
+     * Returns true if paths the color of the background are removed, which
+     * they are when removing specks.
+     */
+    private boolean isBackgroundRemoved() {
+        return background != null && isDespeckled() && isPassEnabled(REMOVE_BACKGROUND_PASS);
+    }
+
+    /**
+     * Writes path, or holds it for writing by color or until hidden paths
+     * are culled, given path already compacted if path data is encoded.
+     */
+    private void writePathElement(SvgOutput output, int path) {
+        if(isBackgroundRemoved() && paths.getColor(path) == backgroundColor) {
+            long start = System.nanoTime();
+            long encodeStart = getEncodeTime();
+            backgroundByteCount += getPathData(path).length();
+            backgroundPathCount++;
+            removePath();
+            paths.removeLast();
+            backgroundTime += System.nanoTime() - start - (getEncodeTime() - encodeStart);
+            return;
+        }
 
-        } catch(IOException e) {
-            e.printStackTrace();
+        if(colorMerger != null) {
+            long start = System.nanoTime();
+            paths.setColor(path, colorMerger.merge(paths.getColor(path)));
+            mergeTime += System.nanoTime() - start;
+        }
+
+        if(!isPathDataEncoded()) {
+            paths.setText(path, removeClosingLine(paths.getText(path)));
+        }
+
+        if(!isHoldingPaths()) {
+            countPath(path);
+            writeColorPath(output, path);
+            paths.clear();
         }
     }
 
-    private void writeStyles(PrintWriter w, List codeList, Map codeToFillMap) {
-        w.println("<defs>");
-        w.println("<style type=\"text/css\"><![CDATA[");
+    /**
+     * Removes the last line of path data as traced, where it is followed by
+     * a close path command that draws the line anyway.
+     */
+    private static String removeClosingLine(String pathText) {
+        int index = pathText.length() - 1;
+        char c = pathText.charAt(index);
+
+        if(c == 'z') {
+            do {
+                c = pathText.charAt(--index);
+            } while(Character.isDigit(c) || Character.isWhitespace(c));
+
+            if(c == 'L') {
+                pathText = pathText.substring(0, index) + 'z';
+            }
+        }
+        return pathText;
+    }
 
-        Iterator iterator = codeList.iterator();
+    /**
+     * Counts path written, noting its color for the colors of the result.
+     */
+    private void countPath(int path) {
+        pathCount++;
 
-        while(iterator.hasNext()) {
-            String name = (String)iterator.next();
-            w.print(".");
-            w.print(name);
-            if(centerlineEnabled) {
-                w.print("{stroke:#");
-            } else {
-                w.print("{fill:#");
+        if(pathCount <= 279) {
+            colorSet.add(Integer.valueOf(paths.getColor(path)));
+        }
+    }
+
+    /**
+     * Writes path element with its color, for results not grouped by color.
+     */
+    private void writeColorPath(SvgOutput output, int path) {
+        int color = paths.getColor(path);
+        output.startElement("path");
+
+        if(noGroups()) {
+            writeColorAttributes(output, color);
+        } else if(oneGroup()) {
+            writeColor(output, centerlineEnabled ? "stroke" : "fill", color);
+        } else if(extractStyles()) {
+            Integer key = Integer.valueOf(color);
+            if(!colorToStyleMap.containsKey(key)) {
+                String style = getStyleName(styleCount);
+                styleList.add(style);
+                colorToStyleMap.put(key, style);
+                styleToColorMap.put(style, key);
+                styleCount++;
             }
-            w.print(codeToFillMap.get(name).toString());
-            w.println("}");
+            output.attribute("class", colorToStyleMap.get(key));
         }
-        w.println("]]></style>");
-        w.println("</defs>");
+
+        output.attribute("d", getPathData(path));
+        output.endElement();
     }
 
-    private int writePaths(SVGSVGElement rootElement, List<String> styleList, Map<String, String> styleToColorMap, PrintWriter w) {
-        NodeList childNodes = rootElement.getChildNodes();
-        int pathCount = 0;
-        int styleCount = 0;
-        String colorText = null;
-        clearColorCollections();
+    private void endPaths(SvgOutput output) {
+        endPathData();
 
-        for(int i = 0; i < childNodes.getLength(); i++) {
-            Node node = childNodes.item(i);
+        if(isHoldingPaths()) {
+            writeHeldPaths(output);
+        }
 
-            if(node instanceof SVGPathElement) {
-                pathCount++;
-                SVGPathElement path = (SVGPathElement)node;
-                String styleText = path.getAttribute("style");
+        colors = new Color[colorSet.size()];
+        int index = 0;
+        for(Iterator<Integer> iterator = colorSet.iterator(); iterator.hasNext();) {
+            colors[index++] = new Color(iterator.next().intValue());
+        }
 
-                if(centerlineEnabled) {
-                    colorText = styleText.substring(8, 14);
-                } else {
-                    colorText = styleText.substring(6, 12);
-                }
+        if(oneGroup()) {
+            output.endElement();
+        }
 
-                if(pathCount <= 279 && !colorSet.contains(colorText)) {
-                    Color color = ColorUtilities.getColor(colorText);
-                    colorSet.add(color);
-                }
+        if(extractStyles()) {
+            writeStyles(output, styleList, styleToColorMap);
+        }
+        recordPasses(output);
+    }
 
-                if(noGroups()) {
-                    w.print("<path ");
-                    if(centerlineEnabled) {
-                        w.print("fill=\"none\" stroke=\"#");
-                    } else {
-                        w.print("stroke=\"none\" fill=\"#");
-                    }
-                    w.print(colorText);
-                } else if(oneGroup()) {
-                    if(centerlineEnabled) {
-                        w.print("<path stroke=\"#");
-                    } else {
-                        w.print("<path fill=\"#");
-                    }
-                    w.print(colorText);
-                } else if(extractStyles()) {
-                    if(!colorToStyleMap.containsKey(colorText)) {
-                        String style = getStyleName(styleCount);
-                        styleList.add(style);
-                        colorToStyleMap.put(colorText, style);
-                        styleToColorMap.put(style, colorText);
-                        styleCount++;
-                    }
+    /**
+     * Records statistics of each pass that ran. The group pass is given the
+     * bytes written for paths and groups beyond those of the paths written
+     * without groups, less the groups saved by merging colors. Its byte
+     * delta is 0 for outputs that do not count bytes.
+     */
+    private void recordPasses(SvgOutput output) {
+        recordEncodePass();
+
+        if(isBackgroundRemoved()) {
+            recordPass(REMOVE_BACKGROUND_PASS, backgroundTime, -backgroundPathCount,
+                    -backgroundByteCount - (long)backgroundPathCount * PATH_ELEMENT_LENGTH);
+        }
 
-                    w.print("<path class=\"");
-                    w.print((String)colorToStyleMap.get(colorText));
-                }
+        int mergedGroupCount = colorMerger != null && groupByColor() ? colorMerger.getMergedCount() : 0;
+        long mergedGroupBytes = (long)mergedGroupCount * (joinPaths() ? PATH_ELEMENT_LENGTH : COLOR_GROUP_LENGTH);
+        if(colorMerger != null) {
+            recordPass(MERGE_COLORS_PASS, mergeTime, -mergedGroupCount, -mergedGroupBytes);
+        }
 
-                if(!groupByColor()) {
-                    w.print("\" d=\"");
-                }
+        if(culledPathCount != -1) {
+            recordPass(CULL_PASS, cullTime, -culledPathCount,
+                    -culledByteCount - (long)culledPathCount * PATH_ELEMENT_LENGTH);
+        }
 
-                String pathText = path.getAttribute("d");
-                int index = pathText.length() - 1;
-                char c = pathText.charAt(index);
+        if(!noGroups()) {
+            int elementCount = joinPaths() ? groupElementCount : pathCount + groupElementCount;
+            long byteDelta = 0;
 
-                if(c == 'z') {
-                    do {
-                        c = pathText.charAt(--index);
-                    } while(Character.isDigit(c) || Character.isWhitespace(c));
+            if(pathsStartByteCount != -1) {
+                long pathDataByteCount = getPathDataByteCount() - backgroundByteCount - Math.max(culledByteCount, 0);
+                byteDelta = output.getByteCount() - pathsStartByteCount - pathDataByteCount
+                        - (long)pathCount * PATH_ELEMENT_LENGTH + mergedGroupBytes;
+            }
+            recordPass(GROUP_PASS, groupTime, elementCount - pathCount + mergedGroupCount, byteDelta);
+        }
+    }
 
-                    if(c == 'L') {
-                        pathText = pathText.substring(0, index) + 'z';
-                    }
+    /**
+     * Writes paths held, leaving out those hidden by paths drawn after them
+     * if culling. Groups keep the order of their colors' first paths traced,
+     * including paths culled, so culling does not change which paths are
+     * drawn over others.
+     */
+    private void writeHeldPaths(SvgOutput output) {
+        long orderStart = System.nanoTime();
+        int[] drawOrder = groupByColor() ? paths.getColorOrder() : null;
+        boolean[] culled = new boolean[paths.getPathCount()];
+        groupTime += System.nanoTime() - orderStart;
+
+        if(occlusionCuller != null) {
+            long cullStart = System.nanoTime();
+            long encodeStart = getEncodeTime();
+            occlusionCuller.cull(paths, drawOrder);
+            culledByteCount = 0;
+            for(int i = 0; i < culled.length; i++) {
+                culled[i] = occlusionCuller.isCulled(i);
+                if(culled[i]) {
+                    culledByteCount += getPathData(i).length();
                 }
+            }
+            culledPathCount = occlusionCuller.getCulledCount();
+            occlusionCuller = null;
+            cullTime += System.nanoTime() - cullStart - (getEncodeTime() - encodeStart);
+        }
 
-                if(!groupByColor()) {
-                    w.print(pathText);
-                    w.println("\"/>");
-                } else {
-                    List<String> list;
-                    if(colorToPathsMap.containsKey(colorText)) {
-                        list = (List<String>)colorToPathsMap.get(colorText);
-                    } else {
-                        list = new ArrayList<String>();
-                        colorList.add(colorText);
-                        colorToPathsMap.put(colorText, list);
-                    }
+        for(int i = 0; i < culled.length; i++) {
+            if(culled[i]) {
+                removePath();
+            } else {
+                countPath(i);
+            }
+        }
+
+        long writeStart = System.nanoTime();
+        long encodeStart = getEncodeTime();
 
-                    list.add(pathText);
+        if(drawOrder == null) {
+            for(int i = 0; i < culled.length; i++) {
+                if(!culled[i]) {
+                    writeColorPath(output, i);
                 }
             }
+        } else {
+            writeColorGroups(output, drawOrder, culled);
         }
+        groupTime += System.nanoTime() - writeStart - (getEncodeTime() - encodeStart);
+        paths.clear();
+    }
 
-        colors = (Color[])colorSet.toArray(new Color[colorSet.size()]);
+    /**
+     * Writes a group of path elements per color or, when joining paths, a
+     * path element per color with the paths of that color as its subpaths.
+     * The path data encoder has given every path the same winding direction,
+     * so the default nonzero fill rule fills each subpath as it was filled
+     * on its own, even where paths of a color overlap.
+     */
+    private void writeColorGroups(SvgOutput output, int[] drawOrder, boolean[] culled) {
+        boolean started = false;
+        int groupColor = 0;
+
+        for(int i = 0; i < drawOrder.length; i++) {
+            int path = drawOrder[i];
+            if(culled[path]) {
+                continue;
+            }
 
-        if(groupByColor()) {
-            for(Iterator iterator = colorList.iterator(); iterator.hasNext();) {
-                colorText = (String)iterator.next();
-                List pathList = (List)colorToPathsMap.get(colorText);
-                if(centerlineEnabled) {
-                    w.print("<g fill=\"none\" stroke=\"#");
-                } else {
-                    w.print("<g stroke=\"none\" fill=\"#");
-                }
-                w.print(colorText);
-                w.println("\">");
-                for(Iterator i = pathList.iterator(); i.hasNext();) {
-                    String pathText = (String)i.next();
-                    w.print("<path d=\"");
-                    w.print(pathText);
-                    w.println("\"/>");
-                    i.remove();
+            int color = paths.getColor(path);
+            if(!started || color != groupColor) {
+                if(started) {
+                    endColorGroup(output);
                 }
-                w.println("</g>");
-                iterator.remove();
+                startColorGroup(output, color);
+                started = true;
+                groupColor = color;
+            }
+
+            if(joinPaths()) {
+                output.append(getPathData(path));
+            } else {
+                output.startElement("path");
+                output.attribute("d", getPathData(path));
+                output.endElement();
             }
         }
 
-        return pathCount;
+        if(started) {
+            endColorGroup(output);
+        }
+    }
+
+    private void startColorGroup(SvgOutput output, int color) {
+        output.startElement(joinPaths() ? "path" : "g");
+        groupElementCount++;
+        writeColorAttributes(output, color);
+        if(joinPaths()) {
+            output.startAttribute("d");
+        }
+    }
+
+    private void endColorGroup(SvgOutput output) {
+        if(joinPaths()) {
+            output.endAttribute();
+        }
+        output.endElement();
+    }
+
+    /**
+     * Writes color of path or group, as stroke for centerline paths or else as fill.
+     */
+    private void writeColorAttributes(SvgOutput output, int color) {
+        if(centerlineEnabled) {
+            output.attribute("fill", "none");
+            writeColor(output, "stroke", color);
+        } else {
+            output.attribute("stroke", "none");
+            writeColor(output, "fill", color);
+        }
     }
 
     private void clearColorCollections() {
         colorSet.clear();
+        colorMerger = getColorMergeDistance() > 0 && isPassEnabled(MERGE_COLORS_PASS) ? new ColorMerger(getColorMergeDistance()) : null;
 
         if(extractStyles()) {
             colorToStyleMap.clear();
-        } else if(groupByColor()) {
-            colorList.clear();
-            colorToPathsMap.clear();
-//            Iterator iterator = colorToPathsMap.values().iterator();
-//            while (iterator.hasNext()) {
-//                List list = (List)iterator.next();
-//                list.clear();
-//            }
         }
     }
 
@@ -312,4 +598,8 @@ public class AutotraceSvgOptimizer extends SvgOptimizer {
         return type == STYLE_DEFS;
     }
 
+    private boolean joinPaths() {
+        return type == COLOR_PATHS;
+    }
+
 }
\ No newline at end of file
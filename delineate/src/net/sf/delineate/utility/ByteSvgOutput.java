@@ -0,0 +1,232 @@
+/*
+ * ByteSvgOutput.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes SVG text as UTF-8 bytes, with each element on a line of its own.
+ * Characters are encoded straight into a reusable buffer, written to the
+ * channel each time it fills, so writing a path allocates nothing. Start
+ * tags are left open until the element's first child or its end, so
+ * elements without children are written as empty element tags.
+ *
+ * Errors writing to the channel are kept until {@link #close()}, which
+ * throws them, and nothing more is written once one has occurred.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class ByteSvgOutput implements SvgOutput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final WritableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    private int count;
+    private long flushedCount;
+    private IOException exception;
+
+    private final List<String> elementNames = new ArrayList<String>();
+    private boolean startTagOpen;
+
+    ByteSvgOutput(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void startDocument() {
+        writeLine("<?xml version=\"1.0\" standalone=\"no\"?>");
+        writeLine("<!DOCTYPE svg PUBLIC \"-//W3C//DTD SVG 1.1//EN\" \"http://www.w3.org/Graphics/SVG/1.1/DTD/svg11.dtd\">");
+    }
+
+    public void startElement(String name) {
+        if(startTagOpen) {
+            write('>');
+            writeLineSeparator();
+        }
+        write('<');
+        write(name);
+        elementNames.add(name);
+        startTagOpen = true;
+    }
+
+    public void attribute(String name, CharSequence value) {
+        startAttribute(name);
+        append(value);
+        endAttribute();
+    }
+
+    public void startAttribute(String name) {
+        write(' ');
+        write(name);
+        write("=\"");
+    }
+
+    public void append(CharSequence text) {
+        write(text, true);
+    }
+
+    public void endAttribute() {
+        write('"');
+    }
+
+    public void cdata(String text) {
+        if(startTagOpen) {
+            write('>');
+            startTagOpen = false;
+        }
+        write("<![CDATA[");
+        write(text);
+        write("]]>");
+    }
+
+    public void endElement() {
+        String name = elementNames.remove(elementNames.size() - 1);
+
+        if(startTagOpen) {
+            write("/>");
+            startTagOpen = false;
+        } else {
+            write("</");
+            write(name);
+            write('>');
+        }
+        writeLineSeparator();
+    }
+
+    public long getByteCount() {
+        long byteCount = flushedCount + count;
+        if(startTagOpen) {
+            byteCount += 1 + LINE_SEPARATOR.length;
+        }
+        return byteCount;
+    }
+
+    public void close() throws IOException {
+        flush();
+        try {
+            channel.close();
+        } catch(IOException e) {
+            if(exception == null) {
+                exception = e;
+            }
+        }
+        if(exception != null) {
+            throw new IOException("Cannot write optimized SVG: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Writes markup or CDATA text, without escaping.
+     */
+    private void write(String text) {
+        write(text, false);
+    }
+
+    /**
+     * Encodes text as UTF-8, writing unpaired surrogates as '?', as the
+     * standard encoder does.
+     * @param escape true to escape characters that cannot appear in attribute values
+     */
+    private void write(CharSequence text, boolean escape) {
+        int length = text.length();
+
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if(escape && (c == '"' || c == '&' || c == '<')) {
+                write(c == '"' ? "&quot;" : c == '&' ? "&amp;" : "&lt;");
+            } else if(c < 0x80) {
+                write(c);
+            } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else if(Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeLine(String text) {
+        write(text);
+        writeLineSeparator();
+    }
+
+    private void writeLineSeparator() {
+        for(int i = 0; i < LINE_SEPARATOR.length; i++) {
+            write((char)LINE_SEPARATOR[i]);
+        }
+    }
+
+    /**
+     * Writes an ASCII character.
+     */
+    private void write(char c) {
+        if(count == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[count++] = (byte)c;
+    }
+
+    private void writeCodePoint(int codePoint) {
+        if(count + 4 > BUFFER_SIZE) {
+            flush();
+        }
+
+        if(codePoint < 0x800) {
+            buffer[count++] = (byte)(0xc0 | (codePoint >> 6));
+        } else {
+            if(codePoint < 0x10000) {
+                buffer[count++] = (byte)(0xe0 | (codePoint >> 12));
+            } else {
+                buffer[count++] = (byte)(0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+            }
+            buffer[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+        }
+        buffer[count++] = (byte)(0x80 | (codePoint & 0x3f));
+    }
+
+    /**
+     * Writes buffer to the channel, unless writing has already failed.
+     */
+    private void flush() {
+        if(exception == null) {
+            byteBuffer.clear();
+            byteBuffer.limit(count);
+            try {
+                while(byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer);
+                }
+            } catch(IOException e) {
+                exception = e;
+            }
+        }
+        flushedCount += count;
+        count = 0;
+    }
+
+}
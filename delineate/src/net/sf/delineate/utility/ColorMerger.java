@@ -0,0 +1,97 @@
+/*
+ * ColorMerger.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges colors that are within a CIE Lab color difference of each other.
+ * Each color is merged into the nearest color seen before it within the
+ * distance, or else becomes a color others may merge into. Works in one
+ * pass, so paths can be written as their colors are read, and colors
+ * never drift further than the distance from the color they merge into.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class ColorMerger {
+
+    private final double distance;
+    private final Map<Integer, Integer> colorToMergedColorMap = new HashMap<Integer, Integer>();
+    private int[] mergedColors = new int[16];
+    private final List<float[]> mergedLabColors = new ArrayList<float[]>();
+
+    /**
+     * @param distance CIE76 color difference within which colors merge
+     */
+    ColorMerger(double distance) {
+        this.distance = distance;
+    }
+
+    /**
+     * @param color color as packed RGB
+     * @return color the given color merges into, itself if no other is near enough
+     */
+    int merge(int color) {
+        Integer mergedColor = colorToMergedColorMap.get(Integer.valueOf(color));
+
+        if(mergedColor == null) {
+            float[] lab = ColorUtilities.getLab(color);
+            double nearestDistance = distance;
+
+            for(int i = 0; i < mergedLabColors.size(); i++) {
+                double deltaE = ColorUtilities.getDeltaE(lab, mergedLabColors.get(i));
+
+                if(deltaE <= nearestDistance) {
+                    nearestDistance = deltaE;
+                    mergedColor = Integer.valueOf(mergedColors[i]);
+                }
+            }
+
+            if(mergedColor == null) {
+                mergedColor = Integer.valueOf(color);
+                if(mergedLabColors.size() == mergedColors.length) {
+                    int[] larger = new int[mergedColors.length * 2];
+                    System.arraycopy(mergedColors, 0, larger, 0, mergedColors.length);
+                    mergedColors = larger;
+                }
+                mergedColors[mergedLabColors.size()] = color;
+                mergedLabColors.add(lab);
+            }
+            colorToMergedColorMap.put(Integer.valueOf(color), mergedColor);
+        }
+
+        return mergedColor.intValue();
+    }
+
+    /**
+     * @return number of colors merged into other colors
+     */
+    int getMergedCount() {
+        return colorToMergedColorMap.size() - mergedLabColors.size();
+    }
+
+    void clear() {
+        colorToMergedColorMap.clear();
+        mergedLabColors.clear();
+    }
+
+}
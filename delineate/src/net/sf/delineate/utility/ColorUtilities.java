@@ -23,7 +23,7 @@ import java.awt.Color;
 import java.util.Comparator;
 import java.util.Arrays;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Colour utility methods.
@@ -33,7 +33,7 @@ public class ColorUtilities {
 
     private static final int THRESHOLD = 3 * Integer.parseInt("66", 16) + 1;
 
-    private static Map<String, Color> hexToColorMap = new HashMap<String, Color>(301);
+    private static Map<String, Color> hexToColorMap = new ConcurrentHashMap<String, Color>(301);
 
     private static final Comparator<Color> comparator = new Comparator<Color>() {
         public int compare(Color color, Color otherColor) {
@@ -91,6 +91,53 @@ public class ColorUtilities {
         return hex;
     }
 
+    /**
+     * Returns CIE L*a*b* coordinates of an sRGB color, for the D65 white point.
+     */
+    public static float[] getLab(Color color) {
+        return getLab(color.getRGB());
+    }
+
+    /**
+     * Returns CIE L*a*b* coordinates of an sRGB color given as packed RGB.
+     */
+    public static float[] getLab(int color) {
+        double red = getLinearComponent((color >> 16) & 0xff);
+        double green = getLinearComponent((color >> 8) & 0xff);
+        double blue = getLinearComponent(color & 0xff);
+
+        double x = (0.4124564 * red + 0.3575761 * green + 0.1804375 * blue) / 0.95047;
+        double y = 0.2126729 * red + 0.7151522 * green + 0.0721750 * blue;
+        double z = (0.0193339 * red + 0.1191920 * green + 0.9503041 * blue) / 1.08883;
+
+        double fx = getLabComponent(x);
+        double fy = getLabComponent(y);
+        double fz = getLabComponent(z);
+
+        return new float[] {(float)(116 * fy - 16), (float)(500 * (fx - fy)), (float)(200 * (fy - fz))};
+    }
+
+    /**
+     * Returns CIE76 color difference, the distance between two colors in
+     * L*a*b* space. Differences under about 2.3 are barely noticeable.
+     */
+    public static double getDeltaE(float[] lab, float[] otherLab) {
+        double l = lab[0] - otherLab[0];
+        double a = lab[1] - otherLab[1];
+        double b = lab[2] - otherLab[2];
+        return Math.sqrt(l * l + a * a + b * b);
+    }
+
+    private static double getLinearComponent(int component) {
+        double value = component / 255.0;
+        return value <= 0.04045 ? value / 12.92 : Math.pow((value + 0.055) / 1.055, 2.4);
+    }
+
+    private static double getLabComponent(double value) {
+        double epsilon = 216.0 / 24389.0;
+        return value > epsilon ? Math.cbrt(value) : (24389.0 / 27.0 * value + 16) / 116;
+    }
+
     public static void sortColors(Color[] colors) {
         Arrays.sort(colors, comparator);        
     }
@@ -0,0 +1,95 @@
+/*
+ * DocumentSvgOutput.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import org.apache.batik.anim.dom.SVGDOMImplementation;
+import org.apache.batik.util.SVGConstants;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.svg.SVGDocument;
+
+/**
+ * Builds an SVG document from what an optimizer writes, for showing a
+ * result without writing it to file and reading it back.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class DocumentSvgOutput implements SvgOutput {
+
+    private SVGDocument document;
+    private Node node;
+    private String attributeName;
+    private final StringBuilder attributeValue = new StringBuilder();
+
+    /**
+     * @return document built, or null if no element was written
+     */
+    public SVGDocument getDocument() {
+        return document;
+    }
+
+    public void startDocument() {
+        document = null;
+    }
+
+    public void startElement(String name) {
+        if(document == null) {
+            document = (SVGDocument)SVGDOMImplementation.getDOMImplementation().createDocument(
+                    SVGConstants.SVG_NAMESPACE_URI, name, null);
+            node = document.getDocumentElement();
+        } else {
+            node = node.appendChild(document.createElementNS(SVGConstants.SVG_NAMESPACE_URI, name));
+        }
+    }
+
+    public void attribute(String name, CharSequence value) {
+        if(!name.equals("xmlns")) { // namespace is given to each element created
+            ((Element)node).setAttributeNS(null, name, value.toString());
+        }
+    }
+
+    public void startAttribute(String name) {
+        attributeName = name;
+        attributeValue.setLength(0);
+    }
+
+    public void append(CharSequence text) {
+        attributeValue.append(text);
+    }
+
+    public void endAttribute() {
+        attribute(attributeName, attributeValue);
+    }
+
+    public void cdata(String text) {
+        node.appendChild(document.createCDATASection(text));
+    }
+
+    public void endElement() {
+        node = node.getParentNode();
+    }
+
+    public long getByteCount() {
+        return -1;
+    }
+
+    public void close() {
+    }
+
+}
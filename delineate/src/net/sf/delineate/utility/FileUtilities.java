@@ -20,9 +20,9 @@
 package net.sf.delineate.utility;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * File helper methods.
@@ -55,9 +55,14 @@ public class FileUtilities {
     }
 
     public static String getFileSize(File file) {
-        String size;
+        return getSize(file.length());
+    }
 
-        long bytes = file.length();
+    /**
+     * Returns number of bytes in b, kb or mb, or empty string if there are none.
+     */
+    public static String getSize(long bytes) {
+        String size;
 
         if(bytes == 0) {
            size = "";
@@ -87,17 +92,18 @@ public class FileUtilities {
         return value;
     }
 
+    /**
+     * Copies file byte for byte, so compressed SVGZ files copy intact.
+     */
     public static void copy(File inputFile, File outputFile) throws IOException {
-        FileReader in = new FileReader(inputFile);
-        FileWriter out = new FileWriter(outputFile);
-        int c;
-
-        while((c = in.read()) != -1) {
-            out.write(c);
-        }
+        Files.copy(inputFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
 
-        in.close();
-        out.close();
+    /**
+     * @return true if file name has the .svgz extension of gzip compressed SVG
+     */
+    public static boolean isSvgz(File file) {
+        return getExtension(file).equalsIgnoreCase("svgz");
     }
 
     /**
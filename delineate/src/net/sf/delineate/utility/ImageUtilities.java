@@ -27,14 +27,18 @@ import net.sourceforge.jiu.data.GrayIntegerImage;
 import net.sourceforge.jiu.data.PixelImage;
 import net.sourceforge.jiu.data.RGB24Image;
 import net.sourceforge.jiu.data.BilevelImage;
+import net.sourceforge.jiu.gui.awt.ImageCreator;
 import net.sourceforge.jiu.gui.awt.ToolkitLoader;
 import net.sourceforge.jiu.ops.OperationFailedException;
 import net.sourceforge.jiu.ops.MissingParameterException;
 import net.sourceforge.jiu.ops.WrongParameterException;
 
+import javax.imageio.ImageIO;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Image helper methods.
@@ -42,9 +46,6 @@ import java.io.IOException;
  */
 public class ImageUtilities {
 
-    private static RGBToGrayConversion rgbConverter = new RGBToGrayConversion();
-    private static ReduceToBilevelThreshold greyConverter = new ReduceToBilevelThreshold();
-
     /**
      * True if file is in bitmap format.
      */
@@ -113,26 +114,45 @@ public class ImageUtilities {
             return file;
         }
 
-        boolean needsConversion = !inPnmFormat(file);
-        if (needsConversion) {
-            file = convertToPnm(file);
-        }
+        return saveAsPnm(loadAsBilevel(file, thresholdPercent), file.getName());
+    }
 
-        GrayIntegerImage greyImage = convertRgbToGrey(promoteToRgb(loadPnm(file)));
-        PixelImage image = convertGreyToBilevel(greyImage, thresholdPercent);
+    /**
+     * Loads image contained in file and converts it to black and white,
+     * using the given darkness threshold.
+     *
+     * @param file containing image to be converted
+     * @param thresholdPercent brightness level between 0 and 100
+     * @return black and white image
+     */
+    public static BilevelImage loadAsBilevel(File file, int thresholdPercent) throws IOException, OperationFailedException {
+        PixelImage image = inPnmFormat(file) ? loadPnm(file) : loadViaToolkitOrCodecs(file);
 
-        File outputFile = saveAsPnm(image, file.getName());
-        if (needsConversion) {
-            file.delete();
+        if(image == null) {
+            throw new OperationFailedException("Unsupported input file format.");
+        } else if(image instanceof BilevelImage) {
+            return (BilevelImage) image;
+        } else {
+            GrayIntegerImage greyImage = convertRgbToGrey(promoteToRgb(image));
+            return convertGreyToBilevel(greyImage, thresholdPercent);
         }
+    }
 
-        return outputFile;
+    /**
+     * Writes image in PBM, PGM or PPM format to the given stream.
+     */
+    public static void writePnm(PixelImage pixelImage, OutputStream outputStream) throws IOException, OperationFailedException {
+        PNMCodec codec = new PNMCodec();
+        codec.setImage(pixelImage);
+        codec.setOutputStream(outputStream);
+        codec.process();
+        outputStream.flush();
     }
 
-    private static File saveAsPnm(PixelImage pixelImage, String namePrefix) throws IOException, OperationFailedException {
+    static File saveAsPnm(PixelImage pixelImage, String namePrefix) throws IOException, OperationFailedException {
         PNMCodec codec = new PNMCodec();
         String extension = codec.suggestFileExtension(pixelImage);
-        File outputFile = new File(FileUtilities.getTempDir(), namePrefix + extension);
+        File outputFile = File.createTempFile(namePrefix + '-', extension, FileUtilities.getTempDir());
         codec.setImage(pixelImage);
         codec.setFile(outputFile, CodecMode.SAVE);
         codec.process();
@@ -141,7 +161,7 @@ public class ImageUtilities {
         return outputFile;
     }
 
-    private static PixelImage loadPnm(File inputFile) throws IOException, OperationFailedException {
+    static PixelImage loadPnm(File inputFile) throws IOException, OperationFailedException {
         PNMCodec codec = new PNMCodec();
         codec.setFile(inputFile, CodecMode.LOAD);
         codec.process();
@@ -151,38 +171,43 @@ public class ImageUtilities {
         return image;
     }
 
-    private static RGB24Image promoteToRgb(PixelImage image) throws MissingParameterException, WrongParameterException {
+    static RGB24Image promoteToRgb(PixelImage image) throws MissingParameterException, WrongParameterException {
         if (!(image instanceof RGB24Image)) {
             PromotionRGB24 promoter = new PromotionRGB24();
             promoter.setInputImage(image);
             promoter.process();
+            image = promoter.getOutputImage();
         }
 
         return (RGB24Image) image;
     }
 
-    private static GrayIntegerImage convertRgbToGrey(RGB24Image image) throws OperationFailedException {
+    static GrayIntegerImage convertRgbToGrey(RGB24Image image) throws OperationFailedException {
+        RGBToGrayConversion rgbConverter = new RGBToGrayConversion();
         rgbConverter.setInputImage(image);
 //        rgbConverter.setColorWeights(0.33f, 0.33f, 0.33f);
         rgbConverter.process();
-        GrayIntegerImage outputImage = (GrayIntegerImage) rgbConverter.getOutputImage();
-        rgbConverter.setOutputImage(null);
-
-        return outputImage;
+        return (GrayIntegerImage) rgbConverter.getOutputImage();
     }
 
-    private static BilevelImage convertGreyToBilevel(GrayIntegerImage image, int thresholdPercent) throws OperationFailedException {
+    static BilevelImage convertGreyToBilevel(GrayIntegerImage image, int thresholdPercent) throws OperationFailedException {
+        ReduceToBilevelThreshold greyConverter = new ReduceToBilevelThreshold();
         greyConverter.setInputImage(image);
         greyConverter.setThreshold(image.getMaxSample(0) * thresholdPercent / 100);
         greyConverter.process();
-        BilevelImage outputImage = (BilevelImage) greyConverter.getOutputImage();
-        greyConverter.setOutputImage(null);
-
-        return outputImage;
+        return (BilevelImage) greyConverter.getOutputImage();
     }
 
-    private static PixelImage loadViaToolkitOrCodecs(File file) throws IOException, OperationFailedException {
-        PixelImage result = ToolkitLoader.loadAsRgb24Image(file.getPath());
+    static PixelImage loadViaToolkitOrCodecs(File file) throws IOException, OperationFailedException {
+        PixelImage result;
+
+        if(GraphicsEnvironment.isHeadless()) { // toolkit loader needs a frame
+            BufferedImage image = ImageIO.read(file);
+            result = (image == null) ? null : ImageCreator.convertImageToRGB24Image(image);
+        } else {
+            result = ToolkitLoader.loadAsRgb24Image(file.getPath());
+        }
+
         if(result == null) {
             result = load(file);
         }
@@ -0,0 +1,241 @@
+/*
+ * OcclusionCuller.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds filled paths that are completely covered by paths drawn after
+ * them, so leaving them out changes nothing that is seen. Paths are tested
+ * from the top down. A grid of cells indexes the bounding boxes of paths
+ * found visible so far, giving the paths above a path that may cover it.
+ * The area of the path is then taken away by the area of each of those
+ * paths in turn, until nothing visible is left or there are no more.
+ *
+ * Paths are tested in the order they are drawn, traced order or, when
+ * grouped by color, group by group, see {@link PathGeometry#getColorOrder()}.
+ * Outlines are made from the paths' geometry as each is tested. Paths held
+ * as path data that cannot be parsed are kept and hide nothing.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class OcclusionCuller {
+
+    /** Uncovered area, in square pixels, below which a path is taken as hidden */
+    private static final double HIDDEN_AREA = 0.01;
+
+    /** Most paths above a path whose areas are taken away from it, bounding time spent on each path */
+    private static final int MAX_COVERING_PATHS = 64;
+
+    private static final int CELL_SIZE = 32;
+
+    private boolean[] culled = new boolean[0];
+    private int culledCount;
+
+    private final Map<Long, List<Integer>> cellToPathsMap = new HashMap<Long, List<Integer>>();
+    private Area[] areas;
+    private Rectangle2D[] bounds;
+    private int[] visited;
+
+    boolean isCulled(int index) {
+        return culled[index];
+    }
+
+    int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * Marks paths hidden by the paths drawn after them.
+     * @param drawOrder indexes of paths in the order they are drawn, or null
+     *                  if they are drawn in the order they were traced
+     */
+    void cull(PathGeometry paths, int[] drawOrder) {
+        int count = paths.getPathCount();
+        culled = new boolean[count];
+        culledCount = 0;
+        areas = new Area[count];
+        bounds = new Rectangle2D[count];
+        visited = new int[count];
+        Arrays.fill(visited, -1);
+        cellToPathsMap.clear();
+
+        List<Integer> covering = new ArrayList<Integer>();
+
+        for(int i = count - 1; i >= 0; i--) {
+            int index = drawOrder == null ? i : drawOrder[i];
+            Shape shape = paths.createShape(index);
+
+            if(shape == null) {
+                continue;
+            }
+
+            Area area = new Area(shape);
+            Rectangle2D box = area.getBounds2D();
+            findPathsAbove(index, box, covering);
+
+            if(isCovered(area, box, covering)) {
+                culled[index] = true;
+                culledCount++;
+            } else {
+                areas[index] = area;
+                bounds[index] = box;
+                addToCells(index, box);
+            }
+        }
+
+        areas = null;
+        bounds = null;
+        visited = null;
+        cellToPathsMap.clear();
+    }
+
+    /**
+     * Finds visible paths above this one, whose bounding boxes overlap its own.
+     */
+    private void findPathsAbove(int index, Rectangle2D box, List<Integer> covering) {
+        covering.clear();
+        int minX = getCell(box.getMinX());
+        int maxX = getCell(box.getMaxX());
+        int minY = getCell(box.getMinY());
+        int maxY = getCell(box.getMaxY());
+
+        for(int x = minX; x <= maxX; x++) {
+            for(int y = minY; y <= maxY; y++) {
+                List<Integer> list = cellToPathsMap.get(getCellKey(x, y));
+                if(list != null) {
+                    for(int i = 0; i < list.size(); i++) {
+                        int pathIndex = list.get(i);
+                        if(visited[pathIndex] != index && bounds[pathIndex].intersects(box)) {
+                            visited[pathIndex] = index;
+                            covering.add(pathIndex);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if a path above contains the bounding box of area, or
+     * else takes areas of paths above away from area in turn, returning true
+     * once no visible area is left.
+     */
+    private boolean isCovered(Area area, Rectangle2D box, List<Integer> covering) {
+        if(covering.isEmpty()) {
+            return false;
+        }
+
+        for(int i = 0; i < covering.size(); i++) {
+            int pathIndex = covering.get(i);
+            if(bounds[pathIndex].contains(box) && areas[pathIndex].contains(box)) {
+                return true;
+            }
+        }
+
+        int subtractions = 0;
+        Area remaining = area;
+
+        for(int i = 0; i < covering.size() && subtractions < MAX_COVERING_PATHS; i++) {
+            int pathIndex = covering.get(i);
+
+            if(bounds[pathIndex].intersects(remaining.getBounds2D())) {
+                if(remaining == area) {
+                    remaining = new Area(area);
+                }
+                remaining.subtract(areas[pathIndex]);
+                subtractions++;
+
+                if(remaining.isEmpty() || getArea(remaining) < HIDDEN_AREA) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addToCells(int index, Rectangle2D box) {
+        int maxX = getCell(box.getMaxX());
+        int maxY = getCell(box.getMaxY());
+
+        for(int x = getCell(box.getMinX()); x <= maxX; x++) {
+            for(int y = getCell(box.getMinY()); y <= maxY; y++) {
+                Long key = getCellKey(x, y);
+                List<Integer> list = cellToPathsMap.get(key);
+                if(list == null) {
+                    list = new ArrayList<Integer>();
+                    cellToPathsMap.put(key, list);
+                }
+                list.add(index);
+            }
+        }
+    }
+
+    private static int getCell(double coordinate) {
+        return (int)Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static Long getCellKey(int x, int y) {
+        return Long.valueOf(((long)x << 32) | (y & 0xffffffffL));
+    }
+
+    /**
+     * Returns area enclosed by flattened outlines of area, counting holes as
+     * area too, so that it is never less than the area left.
+     */
+    private static double getArea(Area area) {
+        double doubleArea = 0;
+        double subpathArea = 0;
+        double[] coordinates = new double[6];
+        double x = 0;
+        double y = 0;
+        double startX = 0;
+        double startY = 0;
+
+        for(PathIterator iterator = area.getPathIterator(null, 0.1); !iterator.isDone(); iterator.next()) {
+            int type = iterator.currentSegment(coordinates);
+
+            if(type == PathIterator.SEG_MOVETO) {
+                doubleArea += Math.abs(subpathArea + x * startY - startX * y);
+                subpathArea = 0;
+                x = startX = coordinates[0];
+                y = startY = coordinates[1];
+            } else if(type == PathIterator.SEG_LINETO) {
+                subpathArea += x * coordinates[1] - coordinates[0] * y;
+                x = coordinates[0];
+                y = coordinates[1];
+            } else if(type == PathIterator.SEG_CLOSE) {
+                subpathArea += x * startY - startX * y;
+                x = startX;
+                y = startY;
+            }
+        }
+        doubleArea += Math.abs(subpathArea + x * startY - startX * y);
+        return doubleArea / 2;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * PassStatistics.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time taken by each optimizer pass that ran on one document, and the
+ * number of elements and bytes of SVG it added, or removed if negative, in
+ * the order the passes run. Deltas are relative to the traced paths written
+ * one path element each with their own color, so the deltas of all passes
+ * add up to the difference between that and the SVG written.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class PassStatistics {
+
+    private final Map<String, long[]> passMap = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Adds to the statistics of a pass, recording it as run.
+     * @param nanos time taken, in nanoseconds
+     */
+    void add(String pass, long nanos, long elementDelta, long byteDelta) {
+        long[] values = passMap.get(pass);
+        if(values == null) {
+            values = new long[3];
+            passMap.put(pass, values);
+        }
+        values[0] += nanos;
+        values[1] += elementDelta;
+        values[2] += byteDelta;
+    }
+
+    /**
+     * @return names of passes run, in the order they run
+     */
+    public String[] getPasses() {
+        return passMap.keySet().toArray(new String[passMap.size()]);
+    }
+
+    /**
+     * @return milliseconds taken by pass, -1 if it did not run
+     */
+    public long getTime(String pass) {
+        long[] values = passMap.get(pass);
+        return values == null ? -1 : values[0] / 1000000;
+    }
+
+    public long getElementDelta(String pass) {
+        long[] values = passMap.get(pass);
+        return values == null ? 0 : values[1];
+    }
+
+    public long getByteDelta(String pass) {
+        long[] values = passMap.get(pass);
+        return values == null ? 0 : values[2];
+    }
+
+    public String toString() {
+        StringBuffer buffer = new StringBuffer();
+
+        for(Map.Entry<String, long[]> entry : passMap.entrySet()) {
+            if(buffer.length() > 0) {
+                buffer.append(", ");
+            }
+            long[] values = entry.getValue();
+            buffer.append(entry.getKey()).append(' ').append(values[0] / 1000000).append("ms ");
+            appendDelta(buffer, values[1]).append(" elements ");
+            appendDelta(buffer, values[2]).append(" bytes");
+        }
+        return buffer.toString();
+    }
+
+    private static StringBuffer appendDelta(StringBuffer buffer, long delta) {
+        if(delta > 0) {
+            buffer.append('+');
+        }
+        return buffer.append(delta);
+    }
+
+}
@@ -0,0 +1,672 @@
+/*
+ * PathDataEncoder.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+/**
+ * Rewrites SVG path data in as few characters as possible. Each segment is
+ * written with absolute or relative coordinates, whichever is shorter,
+ * axis aligned lines become H and V commands, repeated command letters are
+ * left out, separators are only written where needed and coordinates are
+ * rounded to a given number of decimal places. A line back to the start of
+ * a subpath just before it is closed is dropped, as closing draws it anyway.
+ *
+ * Smooth quadratic curves are written as Q with their control points.
+ * Paths can also be simplified, see {@link PathSimplifier}, given the
+ * same winding direction, see {@link PathReverser}, and left out when
+ * too small to see, see {@link PathDespeckler}. Coordinates can be scaled
+ * and translated as they are parsed, flattening a group's transform into them.
+ * Paths are parsed into {@link PathGeometry} and written back from it, so
+ * paths held until the end of a document are held compactly. Path data
+ * with arc commands or that cannot be parsed is written unchanged.
+ * Not thread safe, as buffers are reused between calls.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class PathDataEncoder {
+
+    private static final char CLOSE = 'Z';
+    private static final long[] POWERS_OF_TEN = new long[] {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+            10000000L, 100000000L, 1000000000L};
+
+    private final int precision;
+    private final long scale;
+
+    private char[] commands = new char[64];
+    private long[] values = new long[384];
+    private int commandCount;
+    private int valueCount;
+    private double scaleX = 1;
+    private double scaleY = 1;
+    private double translateX = 0;
+    private double translateY = 0;
+
+    private final StringBuilder output = new StringBuilder(1024);
+    private final StringBuilder absolute = new StringBuilder(64);
+    private final StringBuilder relative = new StringBuilder(64);
+    private final double[] numbers = new double[6];
+    private final long[] segment = new long[6];
+    private char lastCommand;
+    private boolean lastNumberHasPoint;
+
+    private PathSimplifier simplifier;
+    private PathReverser reverser;
+    private PathDespeckler despeckler;
+    private long tracedNodeCount;
+    private long nodeCount;
+
+    /**
+     * @param precision number of decimal places kept in coordinates
+     */
+    public PathDataEncoder(int precision) {
+        if(precision < 0 || precision > 9) {
+            throw new IllegalArgumentException("Precision must be from 0 to 9 decimal places: " + precision);
+        }
+        this.precision = precision;
+        scale = POWERS_OF_TEN[precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @param tolerance furthest a simplified path may be from the traced path,
+     *                  in path coordinate units, or 0 to not simplify
+     */
+    public void setSimplifyTolerance(double tolerance) {
+        simplifier = tolerance > 0 ? new PathSimplifier(tolerance * scale) : null;
+    }
+
+    /**
+     * Sets transform applied to coordinates before they are rounded, so
+     * they are written in the units of the group's parent. Tolerances and
+     * speck sizes are in the transformed units.
+     */
+    public void setTransform(double scaleX, double scaleY, double translateX, double translateY) {
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.translateX = translateX;
+        this.translateY = translateY;
+    }
+
+    /**
+     * @param oriented true to reverse paths with negative area, so that all
+     *                 paths encoded wind the same way
+     */
+    public void setOriented(boolean oriented) {
+        reverser = oriented ? new PathReverser() : null;
+    }
+
+    /**
+     * @param area  paths enclosing less area than this are left out, in path
+     *              coordinate units squared, or 0 to keep paths of any area
+     * @param width paths narrower than this across and down are left out, in
+     *              path coordinate units, or 0 to keep paths of any width
+     */
+    public void setDespeckle(double area, double width) {
+        if(area > 0 || width > 0) {
+            despeckler = new PathDespeckler(area * scale * scale, width * scale);
+        } else {
+            despeckler = null;
+        }
+    }
+
+    /**
+     * @return number of nodes, that is segment end points, in path data given
+     *         to encode since counts were last reset
+     */
+    public long getTracedNodeCount() {
+        return tracedNodeCount;
+    }
+
+    /**
+     * @return number of nodes in path data written since counts were last reset
+     */
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    public void resetNodeCounts() {
+        tracedNodeCount = 0;
+        nodeCount = 0;
+    }
+
+    /**
+     * Parses path data and adds it to geometry, simplified and oriented if
+     * set. Path data with arcs or that cannot be parsed is added as text.
+     * @param color color of path as packed RGB
+     * @return index of the path in geometry, or -1 if the path is a speck to leave out
+     */
+    int add(String pathData, int color, PathGeometry geometry) {
+        if(!parse(pathData)) {
+            return geometry.addText(color, pathData);
+        }
+        return add(color, geometry);
+    }
+
+    /**
+     * Adds path of traced geometry to geometry, as {@link #add(String, int, PathGeometry)}
+     * does, without parsing any path data.
+     * @return index of the path in geometry, or -1 if the path is a speck to leave out
+     */
+    int add(TracedGeometry traced, int path, PathGeometry geometry) {
+        commandCount = 0;
+        valueCount = 0;
+        int index = traced.getCoordinateStart(path);
+
+        for(int i = traced.getCommandStart(path); i < traced.getCommandEnd(path); i++) {
+            char command = traced.getCommand(i);
+            addCommand(command);
+
+            for(int j = PathGeometry.getValueCount(command); j > 0; j--) {
+                addValue(traced.getCoordinate(index++));
+            }
+        }
+
+        if(commandCount == 0) {
+            return geometry.addText(traced.getColor(path), "");
+        }
+        return add(traced.getColor(path), geometry);
+    }
+
+    /**
+     * Adds commands and values parsed to geometry, unless they are a speck.
+     */
+    private int add(int color, PathGeometry geometry) {
+        char[] commands = this.commands;
+        long[] values = this.values;
+        int commandCount = this.commandCount;
+
+        for(int i = 0; i < commandCount; i++) {
+            if(commands[i] != CLOSE) {
+                tracedNodeCount++;
+            }
+        }
+
+        if(despeckler != null && despeckler.isSpeck(commands, commandCount, values)) {
+            return -1;
+        }
+
+        if(simplifier != null) {
+            simplifier.simplify(commands, commandCount, values);
+            commands = simplifier.getCommands();
+            values = simplifier.getValues();
+            commandCount = simplifier.getCommandCount();
+        }
+
+        if(reverser != null && reverser.orient(commands, commandCount, values)) {
+            commands = reverser.getCommands();
+            values = reverser.getValues();
+            commandCount = reverser.getCommandCount();
+        }
+
+        nodeCount += countWrittenNodes(commands, commandCount, values);
+        return geometry.add(color, commands, commandCount, values, scale);
+    }
+
+    /**
+     * Returns path of geometry as path data, rewritten as compactly as
+     * possible into a buffer that the next call reuses.
+     */
+    CharSequence write(PathGeometry geometry, int path) {
+        String text = geometry.getText(path);
+        if(text != null) {
+            return text;
+        }
+
+        int count = geometry.read(path);
+        return write(geometry.getCommands(), count, geometry.getValues());
+    }
+
+    /**
+     * Returns number of segments {@link #write(char[], int, long[])} writes,
+     * which leaves out lines back to the start of a subpath just before it closes.
+     */
+    private static int countWrittenNodes(char[] commands, int commandCount, long[] values) {
+        int count = 0;
+        long startX = 0;
+        long startY = 0;
+        int valueIndex = 0;
+
+        for(int i = 0; i < commandCount; i++) {
+            char command = commands[i];
+
+            if(command == 'M') {
+                startX = values[valueIndex];
+                startY = values[valueIndex + 1];
+            } else if(command == 'L' && values[valueIndex] == startX && values[valueIndex + 1] == startY
+                    && i + 1 < commandCount && commands[i + 1] == CLOSE) {
+                valueIndex += 2;
+                continue;
+            }
+            if(command != CLOSE) {
+                count++;
+                valueIndex += getValueCount(command);
+            }
+        }
+        return count;
+    }
+
+    private CharSequence write(char[] commands, int commandCount, long[] values) {
+        output.setLength(0);
+        lastCommand = 0;
+        lastNumberHasPoint = false;
+
+        long x = 0;
+        long y = 0;
+        long startX = 0;
+        long startY = 0;
+        int valueIndex = 0;
+
+        for(int i = 0; i < commandCount; i++) {
+            char command = commands[i];
+
+            switch(command) {
+                case 'M':
+                    segment[0] = values[valueIndex++];
+                    segment[1] = values[valueIndex++];
+                    writeSegment('M', 'm', 2, x, y, i == 0);
+                    x = startX = segment[0];
+                    y = startY = segment[1];
+                    break;
+                case 'L':
+                    long lineX = values[valueIndex++];
+                    long lineY = values[valueIndex++];
+
+                    if(lineX == startX && lineY == startY && i + 1 < commandCount && commands[i + 1] == CLOSE) {
+                        break;
+                    } else if(lineX == x && lineY != y) {
+                        segment[0] = lineY;
+                        writeSegment('V', 'v', 1, x, y, false);
+                    } else if(lineY == y) {
+                        segment[0] = lineX;
+                        writeSegment('H', 'h', 1, x, y, false);
+                    } else {
+                        segment[0] = lineX;
+                        segment[1] = lineY;
+                        writeSegment('L', 'l', 2, x, y, false);
+                    }
+                    x = lineX;
+                    y = lineY;
+                    break;
+                case 'C':
+                case 'S':
+                case 'Q':
+                    int count = getValueCount(command);
+                    System.arraycopy(values, valueIndex, segment, 0, count);
+                    valueIndex += count;
+                    writeSegment(command, Character.toLowerCase(command), count, x, y, false);
+                    x = segment[count - 2];
+                    y = segment[count - 1];
+                    break;
+                case CLOSE:
+                    output.append('z');
+                    lastCommand = 'z';
+                    lastNumberHasPoint = false;
+                    x = startX;
+                    y = startY;
+                    break;
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Appends segment held in the segment array using whichever of the
+     * absolute or relative command gives the shorter text.
+     */
+    private void writeSegment(char absoluteCommand, char relativeCommand, int count, long x, long y, boolean absoluteOnly) {
+        absolute.setLength(0);
+        boolean absolutePoint = appendSegment(absolute, absoluteCommand, count, 0, 0);
+
+        if(absoluteOnly) {
+            output.append(absolute);
+            lastCommand = absoluteCommand;
+            lastNumberHasPoint = absolutePoint;
+            return;
+        }
+
+        relative.setLength(0);
+        boolean relativePoint = appendSegment(relative, relativeCommand, count, x, y);
+
+        if(relative.length() < absolute.length()) {
+            output.append(relative);
+            lastCommand = relativeCommand;
+            lastNumberHasPoint = relativePoint;
+        } else {
+            output.append(absolute);
+            lastCommand = absoluteCommand;
+            lastNumberHasPoint = absolutePoint;
+        }
+    }
+
+    /**
+     * Appends segment values, offset by x and y, after the command letter or,
+     * where the command would repeat the last one, after a separator if needed.
+     * @return true if the last number written has a decimal point
+     */
+    private boolean appendSegment(StringBuilder builder, char command, int count, long x, long y) {
+        boolean hasPoint;
+
+        if(command == lastCommand && command != 'M' && command != 'm'
+                || command == 'L' && lastCommand == 'M' || command == 'l' && lastCommand == 'm') {
+            hasPoint = appendNumber(builder, segment[0] - getOffset(command, 0, x, y), lastNumberHasPoint, true);
+        } else {
+            builder.append(command);
+            hasPoint = appendNumber(builder, segment[0] - getOffset(command, 0, x, y), false, false);
+        }
+
+        for(int i = 1; i < count; i++) {
+            hasPoint = appendNumber(builder, segment[i] - getOffset(command, i, x, y), hasPoint, true);
+        }
+        return hasPoint;
+    }
+
+    private static long getOffset(char command, int index, long x, long y) {
+        if(command == 'H' || command == 'h') {
+            return x;
+        } else if(command == 'V' || command == 'v') {
+            return y;
+        } else {
+            return index % 2 == 0 ? x : y;
+        }
+    }
+
+    /**
+     * Appends scaled value in decimal, without leading or trailing zeros.
+     * @return true if a decimal point was written
+     */
+    private boolean appendNumber(StringBuilder builder, long value, boolean previousHasPoint, boolean separate) {
+        long integerPart = Math.abs(value) / scale;
+        long fraction = Math.abs(value) % scale;
+
+        if(value < 0) {
+            builder.append('-');
+        } else if(separate && (integerPart != 0 || fraction == 0 || !previousHasPoint)) {
+            builder.append(' ');
+        }
+
+        if(integerPart != 0 || fraction == 0) {
+            builder.append(integerPart);
+        }
+
+        if(fraction == 0) {
+            return false;
+        }
+
+        builder.append('.');
+        int digits = precision;
+        while(fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        for(long place = fraction * 10; place < POWERS_OF_TEN[digits]; place *= 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+        return true;
+    }
+
+    /**
+     * Parses path data into absolute commands and scaled, rounded coordinates.
+     * H and V become L, relative commands become absolute.
+     * @return false if path data has arcs or cannot be parsed
+     */
+    private boolean parse(String pathData) {
+        commandCount = 0;
+        valueCount = 0;
+
+        int length = pathData.length();
+        int index = 0;
+        char command = 0;
+        double x = 0;
+        double y = 0;
+        double startX = 0;
+        double startY = 0;
+        double controlX = 0;
+        double controlY = 0;
+        boolean quadratic = false;
+
+        while(true) {
+            index = skipSeparators(pathData, index);
+            if(index == length) {
+                return commandCount > 0;
+            }
+
+            char c = pathData.charAt(index);
+            if(Character.isLetter(c)) {
+                command = c;
+                index++;
+            } else if(command == 0 || command == 'z' || command == 'Z') {
+                return false;
+            } else if(command == 'M') {
+                command = 'L';
+            } else if(command == 'm') {
+                command = 'l';
+            }
+
+            char upper = Character.toUpperCase(command);
+            boolean isRelative = command != upper;
+
+            if(upper == CLOSE) {
+                addCommand(CLOSE);
+                x = startX;
+                y = startY;
+                quadratic = false;
+                continue;
+            }
+
+            int count;
+            if(upper == 'H' || upper == 'V') {
+                count = 1;
+            } else if(upper == 'M' || upper == 'L' || upper == 'C' || upper == 'S' || upper == 'Q' || upper == 'T') {
+                count = getValueCount(upper);
+            } else {
+                return false;
+            }
+
+            for(int i = 0; i < count; i++) {
+                index = skipSeparators(pathData, index);
+                int end = findNumberEnd(pathData, index);
+                if(end == index) {
+                    return false;
+                }
+                try {
+                    numbers[i] = parseNumber(pathData, index, end);
+                } catch(NumberFormatException e) {
+                    return false;
+                }
+                index = end;
+            }
+
+            if(upper == 'T') {
+                // written as Q, as rounding error would build up along a chain of reflected control points
+                controlX = quadratic ? 2 * x - controlX : x;
+                controlY = quadratic ? 2 * y - controlY : y;
+                x = isRelative ? x + numbers[0] : numbers[0];
+                y = isRelative ? y + numbers[1] : numbers[1];
+                addCommand('Q');
+                addValue(controlX);
+                addValue(controlY);
+                addValue(x);
+                addValue(y);
+            } else if(upper == 'H') {
+                x = isRelative ? x + numbers[0] : numbers[0];
+                addCommand('L');
+                addValue(x);
+                addValue(y);
+            } else if(upper == 'V') {
+                y = isRelative ? y + numbers[0] : numbers[0];
+                addCommand('L');
+                addValue(x);
+                addValue(y);
+            } else {
+                addCommand(upper);
+                for(int i = 0; i < count; i += 2) {
+                    addValue(isRelative ? x + numbers[i] : numbers[i]);
+                    addValue(isRelative ? y + numbers[i + 1] : numbers[i + 1]);
+                }
+                if(isRelative) {
+                    x += numbers[count - 2];
+                    y += numbers[count - 1];
+                } else {
+                    x = numbers[count - 2];
+                    y = numbers[count - 1];
+                }
+                if(upper == 'M') {
+                    startX = x;
+                    startY = y;
+                } else if(upper == 'Q') {
+                    controlX = isRelative ? x - numbers[2] + numbers[0] : numbers[0];
+                    controlY = isRelative ? y - numbers[3] + numbers[1] : numbers[1];
+                }
+            }
+            quadratic = upper == 'Q' || upper == 'T';
+        }
+    }
+
+    private static int getValueCount(char command) {
+        switch(command) {
+            case 'C':
+                return 6;
+            case 'S':
+            case 'Q':
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Parses number without creating a string where it has few enough digits
+     * to be converted exactly, as traced coordinates do.
+     */
+    private static double parseNumber(String pathData, int start, int end) {
+        int index = start;
+        char c = pathData.charAt(index);
+        boolean negative = c == '-';
+
+        if(c == '-' || c == '+') {
+            index++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        boolean digit = false;
+
+        for(; index < end; index++) {
+            c = pathData.charAt(index);
+            if(c == '.') {
+                point = true;
+            } else if(c >= '0' && c <= '9' && significantDigits < 15 && fractionDigits < POWERS_OF_TEN.length - 1) {
+                digit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0) {
+                    significantDigits++;
+                }
+                if(point) {
+                    fractionDigits++;
+                }
+            } else {
+                return Double.parseDouble(pathData.substring(start, end));
+            }
+        }
+
+        if(!digit) {
+            throw new NumberFormatException("No digits in number: " + pathData.substring(start, end));
+        }
+
+        double value = mantissa / (double)POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static int skipSeparators(String pathData, int index) {
+        int length = pathData.length();
+        while(index < length) {
+            char c = pathData.charAt(index);
+            if(c == ',' || Character.isWhitespace(c)) {
+                index++;
+            } else {
+                break;
+            }
+        }
+        return index;
+    }
+
+    private static int findNumberEnd(String pathData, int index) {
+        int length = pathData.length();
+        boolean point = false;
+        boolean exponent = false;
+        int i = index;
+
+        if(i < length && (pathData.charAt(i) == '-' || pathData.charAt(i) == '+')) {
+            i++;
+        }
+
+        while(i < length) {
+            char c = pathData.charAt(i);
+            if(c >= '0' && c <= '9') {
+                i++;
+            } else if(c == '.' && !point && !exponent) {
+                point = true;
+                i++;
+            } else if((c == 'e' || c == 'E') && !exponent && i + 1 < length) {
+                exponent = true;
+                i++;
+                if(pathData.charAt(i) == '-' || pathData.charAt(i) == '+') {
+                    i++;
+                }
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private void addCommand(char command) {
+        if(commandCount == commands.length) {
+            char[] larger = new char[commands.length * 2];
+            System.arraycopy(commands, 0, larger, 0, commandCount);
+            commands = larger;
+        }
+        commands[commandCount++] = command;
+    }
+
+    /**
+     * Adds coordinate, transformed, scaled and rounded. Coordinates come in
+     * x and y pairs, so x coordinates are at even indexes.
+     */
+    private void addValue(double value) {
+        if(valueCount == values.length) {
+            long[] larger = new long[values.length * 2];
+            System.arraycopy(values, 0, larger, 0, valueCount);
+            values = larger;
+        }
+        if((valueCount & 1) == 0) {
+            value = value * scaleX + translateX;
+        } else {
+            value = value * scaleY + translateY;
+        }
+        values[valueCount++] = Math.round(value * scale);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * PathDespeckler.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+/**
+ * Finds specks, paths too small to see, among paths parsed by
+ * {@link PathDataEncoder}. A path is a speck if the area it encloses is
+ * less than the minimum area, or if it is narrower than the minimum width
+ * both across and down.
+ *
+ * Area is measured exactly for lines and curves, with the signed areas of
+ * a path's subpaths added so that holes are taken away from the outlines
+ * around them. Paths without closed subpaths, such as centerline strokes,
+ * enclose no area and are only measured by width. Width is that of the
+ * box around end and control points, which contains the path. Works on
+ * absolute M, L, C, S, Q and Z commands, with coordinates scaled to longs
+ * as the encoder holds them.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class PathDespeckler {
+
+    private final double minArea;
+    private final double minWidth;
+
+    /**
+     * @param minArea  paths enclosing less area than this are specks, in scaled units squared
+     * @param minWidth paths narrower than this both ways are specks, in scaled units
+     */
+    PathDespeckler(double minArea, double minWidth) {
+        this.minArea = minArea;
+        this.minWidth = minWidth;
+    }
+
+    boolean isSpeck(char[] commands, int commandCount, long[] values) {
+        double doubleArea = 0;
+        boolean closed = false;
+        long minX = Long.MAX_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long maxY = Long.MIN_VALUE;
+
+        double x = 0;
+        double y = 0;
+        double startX = 0;
+        double startY = 0;
+        double controlX = 0;
+        double controlY = 0;
+        boolean cubic = false;
+        int index = 0;
+
+        for(int i = 0; i < commandCount; i++) {
+            char command = commands[i];
+
+            if(command == 'Z') {
+                doubleArea += x * startY - startX * y;
+                x = startX;
+                y = startY;
+                closed = true;
+                cubic = false;
+                continue;
+            }
+
+            int count = getValueCount(command);
+            for(int j = index; j < index + count; j += 2) {
+                minX = Math.min(minX, values[j]);
+                maxX = Math.max(maxX, values[j]);
+                minY = Math.min(minY, values[j + 1]);
+                maxY = Math.max(maxY, values[j + 1]);
+            }
+
+            if(command == 'M') {
+                doubleArea += x * startY - startX * y;
+                x = startX = values[index];
+                y = startY = values[index + 1];
+                cubic = false;
+            } else if(command == 'L') {
+                double nextX = values[index];
+                double nextY = values[index + 1];
+                doubleArea += x * nextY - nextX * y;
+                x = nextX;
+                y = nextY;
+                cubic = false;
+            } else {
+                double x1;
+                double y1;
+                double x2;
+                double y2;
+                double x3 = values[index + count - 2];
+                double y3 = values[index + count - 1];
+
+                if(command == 'Q') { // elevated to cubic
+                    x1 = x + 2 * (values[index] - x) / 3;
+                    y1 = y + 2 * (values[index + 1] - y) / 3;
+                    x2 = x3 + 2 * (values[index] - x3) / 3;
+                    y2 = y3 + 2 * (values[index + 1] - y3) / 3;
+                } else {
+                    if(command == 'C') {
+                        x1 = values[index];
+                        y1 = values[index + 1];
+                    } else {
+                        x1 = cubic ? 2 * x - controlX : x;
+                        y1 = cubic ? 2 * y - controlY : y;
+                    }
+                    x2 = values[index + count - 4];
+                    y2 = values[index + count - 3];
+                }
+                doubleArea += getCubicDoubleArea(x, y, x1, y1, x2, y2, x3, y3);
+                controlX = x2;
+                controlY = y2;
+                x = x3;
+                y = y3;
+                cubic = command != 'Q';
+            }
+            index += count;
+        }
+        doubleArea += x * startY - startX * y;
+
+        if(minX > maxX) {
+            return true;
+        } else if(closed && Math.abs(doubleArea) / 2 < minArea) {
+            return true;
+        } else {
+            return maxX - minX < minWidth && maxY - minY < minWidth;
+        }
+    }
+
+    /**
+     * Returns twice the signed area between cubic curve and origin, the
+     * curve's part of the area of a closed path, from Green's theorem.
+     */
+    private static double getCubicDoubleArea(double x0, double y0, double x1, double y1,
+                                             double x2, double y2, double x3, double y3) {
+        return 3 * ((y3 - y0) * (x1 + x2) - (x3 - x0) * (y1 + y2)
+                + y1 * (x0 - x2) - x1 * (y0 - y2)
+                + y3 * (x2 + x0 / 3) - x3 * (y2 + y0 / 3)) / 10;
+    }
+
+    private static int getValueCount(char command) {
+        switch(command) {
+            case 'C':
+                return 6;
+            case 'S':
+            case 'Q':
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+}
@@ -0,0 +1,448 @@
+/*
+ * PathGeometry.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import org.apache.batik.parser.AWTPathProducer;
+import org.apache.batik.parser.ParseException;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Paths of a traced document held in a few primitive arrays rather than
+ * as path data strings, with colors packed as RGB ints. Each path is a run
+ * of bytes: absolute M, L, C, S, Q and Z commands, one byte each, each
+ * followed by its coordinates as differences from the current point, each
+ * written in as few bytes as it needs. Coordinates are in units of the path
+ * precision, or of the largest power of ten dividing all of a path's
+ * coordinates, given in the path's first byte, so coordinates traced at
+ * whole pixels mostly take a byte each. They are held exactly, in pages
+ * that are added as paths are, rather than copied into larger arrays. Paths that
+ * {@link PathDataEncoder} cannot parse, or that are kept as traced, are
+ * held as their path data text instead.
+ *
+ * Paths are parsed into this once by the encoder and written back as path
+ * data only when the optimized document is written. Not thread safe, as
+ * paths are read back into buffers reused between calls.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class PathGeometry {
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final long[] POWERS_OF_TEN = new long[] {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+            10000000L, 100000000L, 1000000000L};
+
+    private byte[][] pages = new byte[16][];
+    private int size;
+    private int position;
+    private long scale = 1;
+
+    /** Per path, index after its last byte */
+    private int[] ends = new int[64];
+    private int[] colors = new int[64];
+    private String[] texts = new String[64];
+    private int pathCount;
+
+    private char[] commands = new char[64];
+    private long[] values = new long[384];
+
+    int getPathCount() {
+        return pathCount;
+    }
+
+    /**
+     * @return color of path as packed RGB
+     */
+    int getColor(int path) {
+        return colors[path];
+    }
+
+    void setColor(int path, int color) {
+        colors[path] = color;
+    }
+
+    /**
+     * @return path data of a path held as text, or null if the path is held as commands
+     */
+    String getText(int path) {
+        return texts[path];
+    }
+
+    void setText(int path, String pathData) {
+        texts[path] = pathData;
+    }
+
+    /**
+     * @return number of units in one path coordinate unit
+     */
+    long getScale() {
+        return scale;
+    }
+
+    /**
+     * @return commands of the path read last by {@link #read(int)}
+     */
+    char[] getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return coordinates, in units, of the path read last by {@link #read(int)}
+     */
+    long[] getValues() {
+        return values;
+    }
+
+    /**
+     * Adds path given as absolute commands and coordinates scaled to longs,
+     * as the encoder holds them.
+     * @param scale number of units in one path coordinate unit
+     * @return index of the path added
+     */
+    int add(int color, char[] pathCommands, int commandCount, long[] pathValues, long scale) {
+        this.scale = scale;
+        int valueCount = 0;
+        for(int i = 0; i < commandCount; i++) {
+            valueCount += getValueCount(pathCommands[i]);
+        }
+
+        int exponent = 0;
+        while(exponent + 1 < POWERS_OF_TEN.length && POWERS_OF_TEN[exponent + 1] <= scale
+                && isDivisible(pathValues, valueCount, POWERS_OF_TEN[exponent + 1])) {
+            exponent++;
+        }
+        long unit = POWERS_OF_TEN[exponent];
+        writeByte(exponent);
+
+        long x = 0;
+        long y = 0;
+        long startX = 0;
+        long startY = 0;
+        int index = 0;
+
+        for(int i = 0; i < commandCount; i++) {
+            char command = pathCommands[i];
+            writeByte(command);
+
+            int count = getValueCount(command);
+            for(int j = 0; j < count; j += 2) {
+                writeNumber((pathValues[index + j] - x) / unit);
+                writeNumber((pathValues[index + j + 1] - y) / unit);
+            }
+
+            if(count > 0) {
+                x = pathValues[index + count - 2];
+                y = pathValues[index + count - 1];
+                index += count;
+            }
+            if(command == 'M') {
+                startX = x;
+                startY = y;
+            } else if(command == 'Z') {
+                x = startX;
+                y = startY;
+            }
+        }
+        return addPath(color, null);
+    }
+
+    /**
+     * Adds path held as its path data text.
+     * @return index of the path added
+     */
+    int addText(int color, String pathData) {
+        return addPath(color, pathData);
+    }
+
+    /**
+     * Adds a copy of a path of other geometry, which has the same scale.
+     * @return index of the path added
+     */
+    int add(PathGeometry other, int path) {
+        scale = other.scale;
+        for(int i = other.getStart(path); i < other.ends[path]; i++) {
+            writeByte(other.pages[i >>> PAGE_BITS][i & PAGE_MASK]);
+        }
+        return addPath(other.colors[path], other.texts[path]);
+    }
+
+    /**
+     * Reads path held as commands, leaving them for {@link #getCommands()}
+     * and {@link #getValues()} as absolute commands and coordinates in units.
+     * @return number of commands read
+     */
+    int read(int path) {
+        int commandCount = 0;
+        int valueCount = 0;
+        long x = 0;
+        long y = 0;
+        long startX = 0;
+        long startY = 0;
+        int end = ends[path];
+        position = getStart(path);
+        long unit = POWERS_OF_TEN[pages[position >>> PAGE_BITS][position & PAGE_MASK]];
+        position++;
+
+        while(position < end) {
+            char command = (char)pages[position >>> PAGE_BITS][position & PAGE_MASK];
+            position++;
+
+            if(commandCount == commands.length) {
+                char[] larger = new char[commands.length * 2];
+                System.arraycopy(commands, 0, larger, 0, commandCount);
+                commands = larger;
+            }
+            commands[commandCount++] = command;
+
+            int count = getValueCount(command);
+            if(valueCount + count > values.length) {
+                long[] larger = new long[values.length * 2];
+                System.arraycopy(values, 0, larger, 0, valueCount);
+                values = larger;
+            }
+            for(int j = 0; j < count; j += 2) {
+                values[valueCount++] = x + readNumber() * unit;
+                values[valueCount++] = y + readNumber() * unit;
+            }
+
+            if(count > 0) {
+                x = values[valueCount - 2];
+                y = values[valueCount - 1];
+            }
+            if(command == 'M') {
+                startX = x;
+                startY = y;
+            } else if(command == 'Z') {
+                x = startX;
+                y = startY;
+            }
+        }
+        return commandCount;
+    }
+
+    /**
+     * Removes the path added last.
+     */
+    void removeLast() {
+        pathCount--;
+        size = getStart(pathCount);
+        texts[pathCount] = null;
+    }
+
+    /**
+     * Removes all paths, keeping the first page for paths written one at a time.
+     */
+    void clear() {
+        size = 0;
+        for(int i = 1; i < pages.length && pages[i] != null; i++) {
+            pages[i] = null;
+        }
+        for(int i = 0; i < pathCount; i++) {
+            texts[i] = null;
+        }
+        pathCount = 0;
+    }
+
+    /**
+     * Returns indexes of paths grouped by color, colors in the order they
+     * first appear and the paths of each color in the order they were added.
+     */
+    int[] getColorOrder() {
+        Map<Integer, Integer> colorToGroupMap = new HashMap<Integer, Integer>();
+        int[] pathGroups = new int[pathCount];
+        int[] groupCounts = new int[16];
+
+        for(int i = 0; i < pathCount; i++) {
+            Integer color = Integer.valueOf(colors[i]);
+            Integer group = colorToGroupMap.get(color);
+
+            if(group == null) {
+                group = Integer.valueOf(colorToGroupMap.size());
+                colorToGroupMap.put(color, group);
+                if(group.intValue() == groupCounts.length) {
+                    groupCounts = copyOf(groupCounts, groupCounts.length * 2);
+                }
+            }
+            pathGroups[i] = group.intValue();
+            groupCounts[pathGroups[i]]++;
+        }
+
+        int[] positions = new int[colorToGroupMap.size()];
+        for(int group = 1; group < positions.length; group++) {
+            positions[group] = positions[group - 1] + groupCounts[group - 1];
+        }
+
+        int[] order = new int[pathCount];
+        for(int i = 0; i < pathCount; i++) {
+            order[positions[pathGroups[i]]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Returns outline of path, or null if path data held as text cannot be parsed.
+     */
+    Shape createShape(int path) {
+        if(texts[path] != null) {
+            try {
+                return AWTPathProducer.createShape(new StringReader(texts[path]), Path2D.WIND_NON_ZERO);
+            } catch(IOException e) {
+                return null;
+            } catch(ParseException e) {
+                return null;
+            }
+        }
+
+        int commandCount = read(path);
+        Path2D.Float shape = new Path2D.Float(Path2D.WIND_NON_ZERO, commandCount);
+        float unit = 1f / scale;
+        int index = 0;
+        float x = 0;
+        float y = 0;
+        float controlX = 0;
+        float controlY = 0;
+        boolean cubic = false;
+
+        for(int i = 0; i < commandCount; i++) {
+            char command = commands[i];
+
+            if(command == 'M') {
+                shape.moveTo(x = values[index++] * unit, y = values[index++] * unit);
+            } else if(command == 'L') {
+                shape.lineTo(x = values[index++] * unit, y = values[index++] * unit);
+            } else if(command == 'Q') {
+                shape.quadTo(values[index++] * unit, values[index++] * unit,
+                        x = values[index++] * unit, y = values[index++] * unit);
+            } else if(command == 'C' || command == 'S') {
+                float firstX = command == 'S' ? (cubic ? 2 * x - controlX : x) : values[index++] * unit;
+                float firstY = command == 'S' ? (cubic ? 2 * y - controlY : y) : values[index++] * unit;
+                controlX = values[index++] * unit;
+                controlY = values[index++] * unit;
+                shape.curveTo(firstX, firstY, controlX, controlY, x = values[index++] * unit, y = values[index++] * unit);
+            } else if(command == 'Z') {
+                shape.closePath();
+            }
+            cubic = command == 'C' || command == 'S';
+        }
+        return shape;
+    }
+
+    static int getValueCount(char command) {
+        switch(command) {
+            case 'C':
+                return 6;
+            case 'S':
+            case 'Q':
+                return 4;
+            case 'Z':
+                return 0;
+            default:
+                return 2;
+        }
+    }
+
+    private static boolean isDivisible(long[] values, int valueCount, long divisor) {
+        for(int i = 0; i < valueCount; i++) {
+            if(values[i] % divisor != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getStart(int path) {
+        return path == 0 ? 0 : ends[path - 1];
+    }
+
+    private int addPath(int color, String pathData) {
+        if(pathCount == colors.length) {
+            int length = pathCount * 2;
+            ends = copyOf(ends, length);
+            colors = copyOf(colors, length);
+            String[] largerTexts = new String[length];
+            System.arraycopy(texts, 0, largerTexts, 0, pathCount);
+            texts = largerTexts;
+        }
+        ends[pathCount] = size;
+        colors[pathCount] = color;
+        texts[pathCount] = pathData;
+        return pathCount++;
+    }
+
+    /**
+     * Writes number zigzag encoded, so small negative numbers are small too,
+     * seven bits to a byte with the high bit set on all but the last byte.
+     */
+    private void writeNumber(long value) {
+        long bits = (value << 1) ^ (value >> 63);
+
+        while((bits & ~0x7fL) != 0) {
+            writeByte((int)(bits & 0x7f) | 0x80);
+            bits >>>= 7;
+        }
+        writeByte((int)bits);
+    }
+
+    /**
+     * Reads number at the read position, moving the position past it.
+     */
+    private long readNumber() {
+        long bits = 0;
+        int shift = 0;
+        int b;
+
+        do {
+            b = pages[position >>> PAGE_BITS][position & PAGE_MASK];
+            position++;
+            bits |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    private void writeByte(int b) {
+        int page = size >>> PAGE_BITS;
+
+        if(page == pages.length) {
+            byte[][] morePages = new byte[pages.length * 2][];
+            System.arraycopy(pages, 0, morePages, 0, pages.length);
+            pages = morePages;
+        }
+        if(pages[page] == null) {
+            pages[page] = new byte[PAGE_SIZE];
+        }
+        pages[page][size & PAGE_MASK] = (byte)b;
+        size++;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] larger = new int[length];
+        System.arraycopy(array, 0, larger, 0, Math.min(array.length, length));
+        return larger;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * PathReverser.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+/**
+ * Gives paths parsed by {@link PathDataEncoder} the same winding direction,
+ * reversing every subpath of a path whose signed area is negative. Filled
+ * with the nonzero rule each path covers the same area either way, but
+ * once all paths wind the same way they can be joined into one path
+ * element without overlapping paths cancelling each other out.
+ *
+ * The area is that of the polygon through end and control points, which
+ * has the same sign as the path for the outlines tracing produces. Works on
+ * absolute M, L, C, S, Q and Z commands, with coordinates scaled to longs
+ * as the encoder holds them. S commands are written as C when reversed, as
+ * the command before them changes.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class PathReverser {
+
+    private char[] commands = new char[64];
+    private long[] values = new long[384];
+    private int commandCount;
+    private int valueCount;
+
+    /** Segments of the current subpath, as start point, two control points and end point */
+    private char[] segmentCommands = new char[64];
+    private long[] segmentValues = new long[512];
+    private int segmentCount;
+
+    char[] getCommands() {
+        return commands;
+    }
+
+    long[] getValues() {
+        return values;
+    }
+
+    int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Reverses path given as commands and values if its signed area is
+     * negative, leaving the reversed path for {@link #getCommands()} and
+     * {@link #getValues()}.
+     * @return true if the path was reversed
+     */
+    boolean orient(char[] inputCommands, int inputCommandCount, long[] inputValues) {
+        if(getArea(inputCommands, inputCommandCount, inputValues) >= 0) {
+            return false;
+        }
+        reverse(inputCommands, inputCommandCount, inputValues);
+        return true;
+    }
+
+    /**
+     * Returns twice the signed area of the polygon through each subpath's
+     * points, with the shoelace formula.
+     */
+    private static double getArea(char[] commands, int commandCount, long[] values) {
+        double area = 0;
+        double x = 0;
+        double y = 0;
+        double startX = 0;
+        double startY = 0;
+        int index = 0;
+
+        for(int i = 0; i < commandCount; i++) {
+            char command = commands[i];
+
+            if(command == 'M') {
+                area += x * startY - startX * y;
+                x = startX = values[index++];
+                y = startY = values[index++];
+            } else if(command == 'Z') {
+                area += x * startY - startX * y;
+                x = startX;
+                y = startY;
+            } else {
+                int count = getValueCount(command);
+                for(int j = 0; j < count; j += 2) {
+                    double nextX = values[index++];
+                    double nextY = values[index++];
+                    area += x * nextY - nextX * y;
+                    x = nextX;
+                    y = nextY;
+                }
+            }
+        }
+        return area + x * startY - startX * y;
+    }
+
+    private void reverse(char[] inputCommands, int inputCommandCount, long[] inputValues) {
+        commandCount = 0;
+        valueCount = 0;
+        segmentCount = 0;
+
+        long x = 0;
+        long y = 0;
+        long startX = 0;
+        long startY = 0;
+        long controlX = 0;
+        long controlY = 0;
+        boolean cubic = false;
+        boolean inSubpath = false;
+        int index = 0;
+
+        for(int i = 0; i < inputCommandCount; i++) {
+            char command = inputCommands[i];
+
+            if(command == 'M') {
+                if(inSubpath) {
+                    writeReversedSubpath(startX, startY, false);
+                }
+                x = startX = inputValues[index++];
+                y = startY = inputValues[index++];
+                inSubpath = true;
+                cubic = false;
+            } else if(command == 'Z') {
+                if(inSubpath) {
+                    writeReversedSubpath(startX, startY, true);
+                }
+                x = startX;
+                y = startY;
+                inSubpath = false;
+                cubic = false;
+            } else {
+                inSubpath = true;
+                int offset = addSegment(command == 'S' ? 'C' : command, x, y);
+
+                if(command == 'L') {
+                    x = segmentValues[offset + 6] = inputValues[index++];
+                    y = segmentValues[offset + 7] = inputValues[index++];
+                    cubic = false;
+                } else if(command == 'Q') {
+                    segmentValues[offset + 2] = inputValues[index++];
+                    segmentValues[offset + 3] = inputValues[index++];
+                    x = segmentValues[offset + 6] = inputValues[index++];
+                    y = segmentValues[offset + 7] = inputValues[index++];
+                    cubic = false;
+                } else {
+                    if(command == 'C') {
+                        segmentValues[offset + 2] = inputValues[index++];
+                        segmentValues[offset + 3] = inputValues[index++];
+                    } else {
+                        segmentValues[offset + 2] = cubic ? 2 * x - controlX : x;
+                        segmentValues[offset + 3] = cubic ? 2 * y - controlY : y;
+                    }
+                    controlX = segmentValues[offset + 4] = inputValues[index++];
+                    controlY = segmentValues[offset + 5] = inputValues[index++];
+                    x = segmentValues[offset + 6] = inputValues[index++];
+                    y = segmentValues[offset + 7] = inputValues[index++];
+                    cubic = true;
+                }
+            }
+        }
+
+        if(inSubpath) {
+            writeReversedSubpath(startX, startY, false);
+        }
+    }
+
+    /**
+     * Adds segment starting at the given point to the current subpath.
+     * @return offset of the segment's values
+     */
+    private int addSegment(char command, long x, long y) {
+        segmentCommands = ensureCapacity(segmentCommands, segmentCount + 1);
+        segmentValues = ensureCapacity(segmentValues, (segmentCount + 1) * 8);
+        segmentCommands[segmentCount] = command;
+        int offset = segmentCount * 8;
+        segmentValues[offset] = x;
+        segmentValues[offset + 1] = y;
+        segmentCount++;
+        return offset;
+    }
+
+    /**
+     * Writes segments of the current subpath in reverse order, from the
+     * end of its last segment back to its start.
+     */
+    private void writeReversedSubpath(long startX, long startY, boolean closed) {
+        addCommand('M');
+        if(segmentCount == 0) {
+            addValue(startX);
+            addValue(startY);
+        } else {
+            int last = (segmentCount - 1) * 8;
+            addValue(segmentValues[last + 6]);
+            addValue(segmentValues[last + 7]);
+        }
+
+        for(int i = segmentCount - 1; i >= 0; i--) {
+            char command = segmentCommands[i];
+            int offset = i * 8;
+            addCommand(command);
+
+            if(command == 'C') {
+                addValue(segmentValues[offset + 4]);
+                addValue(segmentValues[offset + 5]);
+            }
+            if(command != 'L') {
+                addValue(segmentValues[offset + 2]);
+                addValue(segmentValues[offset + 3]);
+            }
+            addValue(segmentValues[offset]);
+            addValue(segmentValues[offset + 1]);
+        }
+
+        if(closed) {
+            addCommand('Z');
+        }
+        segmentCount = 0;
+    }
+
+    private static int getValueCount(char command) {
+        switch(command) {
+            case 'C':
+                return 6;
+            case 'S':
+            case 'Q':
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    private void addCommand(char command) {
+        commands = ensureCapacity(commands, commandCount + 1);
+        commands[commandCount++] = command;
+    }
+
+    private void addValue(long value) {
+        values = ensureCapacity(values, valueCount + 1);
+        values[valueCount++] = value;
+    }
+
+    private static char[] ensureCapacity(char[] array, int size) {
+        if(size <= array.length) {
+            return array;
+        }
+        char[] larger = new char[Math.max(size, array.length * 2)];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private static long[] ensureCapacity(long[] array, int size) {
+        if(size <= array.length) {
+            return array;
+        }
+        long[] larger = new long[Math.max(size, array.length * 2)];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+}
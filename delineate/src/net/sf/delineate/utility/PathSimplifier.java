@@ -0,0 +1,577 @@
+/*
+ * PathSimplifier.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+/**
+ * Reduces the number of nodes in paths parsed by {@link PathDataEncoder},
+ * keeping within a tolerance of the traced outline. Curves whose control
+ * points lie within tolerance of their chord become lines. Each run of
+ * lines is reduced with the Douglas-Peucker algorithm and is also fitted
+ * with cubic Bezier curves using Schneider's algorithm from Graphics Gems,
+ * keeping whichever result has fewer segments.
+ *
+ * Works on absolute M, L, C, S, Q and Z commands, with coordinates scaled
+ * to longs as the encoder holds them. S commands are written as C, as the
+ * command before them may change.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class PathSimplifier {
+
+    private static final int MAXIMUM_ITERATIONS = 4;
+
+    private final double toleranceSquared;
+
+    private char[] commands = new char[64];
+    private long[] values = new long[384];
+    private int commandCount;
+    private int valueCount;
+
+    private double[] runX = new double[64];
+    private double[] runY = new double[64];
+    private int runLength;
+
+    private boolean[] kept = new boolean[64];
+    private int[] stack = new int[128];
+    private double[] parameters = new double[64];
+    private double[] newParameters = new double[64];
+    private final double[] bezier = new double[8];
+    private double maximumError;
+
+    private char[] fittedCommands = new char[64];
+    private long[] fittedValues = new long[384];
+    private int fittedCommandCount;
+    private int fittedValueCount;
+
+    /**
+     * @param tolerance furthest the simplified path may be from the original,
+     *                  in the scaled units of the values
+     */
+    PathSimplifier(double tolerance) {
+        toleranceSquared = tolerance * tolerance;
+    }
+
+    char[] getCommands() {
+        return commands;
+    }
+
+    long[] getValues() {
+        return values;
+    }
+
+    int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * Simplifies path given as commands and values, leaving the result for
+     * {@link #getCommands()} and {@link #getValues()}.
+     */
+    void simplify(char[] inputCommands, int inputCommandCount, long[] inputValues) {
+        commandCount = 0;
+        valueCount = 0;
+        runLength = 0;
+
+        double x = 0;
+        double y = 0;
+        double startX = 0;
+        double startY = 0;
+        double controlX = 0;
+        double controlY = 0;
+        boolean cubic = false;
+        int index = 0;
+
+        for(int i = 0; i < inputCommandCount; i++) {
+            char command = inputCommands[i];
+
+            if(command == 'M') {
+                flushRun();
+                x = startX = inputValues[index++];
+                y = startY = inputValues[index++];
+                addCommand('M');
+                addValue(x);
+                addValue(y);
+                cubic = false;
+            } else if(command == 'L') {
+                double endX = inputValues[index++];
+                double endY = inputValues[index++];
+                addLine(x, y, endX, endY);
+                x = endX;
+                y = endY;
+                cubic = false;
+            } else if(command == 'C' || command == 'S') {
+                double x1;
+                double y1;
+                if(command == 'C') {
+                    x1 = inputValues[index++];
+                    y1 = inputValues[index++];
+                } else {
+                    x1 = cubic ? 2 * x - controlX : x;
+                    y1 = cubic ? 2 * y - controlY : y;
+                }
+                controlX = inputValues[index++];
+                controlY = inputValues[index++];
+                double endX = inputValues[index++];
+                double endY = inputValues[index++];
+
+                if(isNearLine(x, y, endX, endY, x1, y1) && isNearLine(x, y, endX, endY, controlX, controlY)) {
+                    addCurveSamples(x, y, x1, y1, controlX, controlY, endX, endY);
+                    addLine(x, y, endX, endY);
+                } else {
+                    flushRun();
+                    addCommand('C');
+                    addValue(x1);
+                    addValue(y1);
+                    addValue(controlX);
+                    addValue(controlY);
+                    addValue(endX);
+                    addValue(endY);
+                }
+                x = endX;
+                y = endY;
+                cubic = true;
+            } else if(command == 'Q') {
+                double x1 = inputValues[index++];
+                double y1 = inputValues[index++];
+                double endX = inputValues[index++];
+                double endY = inputValues[index++];
+
+                if(isNearLine(x, y, endX, endY, x1, y1)) {
+                    addCurveSamples(x, y, x + (x1 - x) * 2 / 3, y + (y1 - y) * 2 / 3,
+                            endX + (x1 - endX) * 2 / 3, endY + (y1 - endY) * 2 / 3, endX, endY);
+                    addLine(x, y, endX, endY);
+                } else {
+                    flushRun();
+                    addCommand('Q');
+                    addValue(x1);
+                    addValue(y1);
+                    addValue(endX);
+                    addValue(endY);
+                }
+                x = endX;
+                y = endY;
+                cubic = false;
+            } else if(command == 'Z') {
+                flushRun();
+                addCommand('Z');
+                x = startX;
+                y = startY;
+                cubic = false;
+            }
+        }
+        flushRun();
+    }
+
+    private boolean isNearLine(double x1, double y1, double x2, double y2, double x, double y) {
+        return getDistanceSquared(x1, y1, x2, y2, x, y) <= toleranceSquared;
+    }
+
+    /**
+     * Returns squared distance from point to the line segment between two points.
+     */
+    private static double getDistanceSquared(double x1, double y1, double x2, double y2, double x, double y) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double distanceX = x1 + t * dx - x;
+        double distanceY = y1 + t * dy - y;
+        return distanceX * distanceX + distanceY * distanceY;
+    }
+
+    /**
+     * Adds points along a curve that is to become part of a run of lines, so
+     * lines are reduced or fitted to the curve rather than to its chord.
+     */
+    private void addCurveSamples(double x0, double y0, double x1, double y1, double x2, double y2, double x3, double y3) {
+        if(runLength == 0) {
+            addRunPoint(x0, y0);
+        }
+        for(int i = 1; i < 4; i++) {
+            double u = i / 4.0;
+            double v = 1 - u;
+            addRunPoint(v * v * v * x0 + 3 * u * v * v * x1 + 3 * u * u * v * x2 + u * u * u * x3,
+                    v * v * v * y0 + 3 * u * v * v * y1 + 3 * u * u * v * y2 + u * u * u * y3);
+        }
+    }
+
+    /**
+     * Adds line to the run of lines, starting a run at the line's start point.
+     */
+    private void addLine(double startX, double startY, double endX, double endY) {
+        if(runLength == 0) {
+            addRunPoint(startX, startY);
+        }
+        addRunPoint(endX, endY);
+    }
+
+    private void addRunPoint(double x, double y) {
+        if(runLength == runX.length) {
+            runX = grow(runX);
+            runY = grow(runY);
+        }
+        runX[runLength] = x;
+        runY[runLength] = y;
+        runLength++;
+    }
+
+    /**
+     * Writes run of lines as the fewest segments found by line reduction or
+     * curve fitting.
+     */
+    private void flushRun() {
+        if(runLength < 2) {
+            runLength = 0;
+            return;
+        }
+
+        int keptCount = reduceLines();
+
+        fittedCommandCount = 0;
+        fittedValueCount = 0;
+        if(runLength > 3 && keptCount > 2) {
+            ensureParameterCapacity();
+            double[] leftTangent = getTangent(1, 0);
+            double[] rightTangent = getTangent(runLength - 2, runLength - 1);
+            fitCubic(0, runLength - 1, leftTangent[0], leftTangent[1], rightTangent[0], rightTangent[1]);
+        }
+
+        if(fittedCommandCount > 0 && fittedCommandCount < keptCount - 1) {
+            for(int i = 0; i < fittedCommandCount; i++) {
+                addCommand(fittedCommands[i]);
+            }
+            for(int i = 0; i < fittedValueCount; i++) {
+                addValue(fittedValues[i]);
+            }
+        } else {
+            for(int i = 1; i < runLength; i++) {
+                if(kept[i]) {
+                    addCommand('L');
+                    addValue(runX[i]);
+                    addValue(runY[i]);
+                }
+            }
+        }
+        runLength = 0;
+    }
+
+    /**
+     * Marks points of run kept by the Douglas-Peucker algorithm.
+     * @return number of points kept, including the first
+     */
+    private int reduceLines() {
+        if(kept.length < runLength) {
+            kept = new boolean[runX.length];
+        }
+        for(int i = 0; i < runLength; i++) {
+            kept[i] = false;
+        }
+        kept[0] = true;
+        kept[runLength - 1] = true;
+        int keptCount = 2;
+
+        int top = 0;
+        stack = ensureCapacity(stack, 2);
+        stack[top++] = 0;
+        stack[top++] = runLength - 1;
+
+        while(top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double maximum = toleranceSquared;
+            int farthest = -1;
+
+            for(int i = first + 1; i < last; i++) {
+                double distance = getDistanceSquared(runX[first], runY[first], runX[last], runY[last], runX[i], runY[i]);
+                if(distance > maximum) {
+                    maximum = distance;
+                    farthest = i;
+                }
+            }
+
+            if(farthest != -1) {
+                kept[farthest] = true;
+                keptCount++;
+                stack = ensureCapacity(stack, top + 4);
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        return keptCount;
+    }
+
+    private double[] getTangent(int to, int from) {
+        double dx = runX[to] - runX[from];
+        double dy = runY[to] - runY[from];
+        double length = Math.sqrt(dx * dx + dy * dy);
+        return length == 0 ? new double[] {0, 0} : new double[] {dx / length, dy / length};
+    }
+
+    /**
+     * Fits cubic curves to run points first to last, splitting where the
+     * error is greatest until every piece is within tolerance.
+     */
+    private void fitCubic(int first, int last, double leftX, double leftY, double rightX, double rightY) {
+        if(last - first == 1) {
+            addFitted('L', runX[last], runY[last]);
+            return;
+        }
+
+        parameterizeByChordLength(first, last);
+        generateBezier(first, last, leftX, leftY, rightX, rightY);
+        int split = findMaximumError(first, last);
+        double error = maximumError;
+
+        if(error <= toleranceSquared) {
+            addFittedBezier();
+            return;
+        }
+
+        if(error <= toleranceSquared * 16) {
+            for(int i = 0; i < MAXIMUM_ITERATIONS; i++) {
+                reparameterize(first, last);
+                generateBezier(first, last, leftX, leftY, rightX, rightY);
+                split = findMaximumError(first, last);
+                if(maximumError <= toleranceSquared) {
+                    addFittedBezier();
+                    return;
+                }
+            }
+        }
+
+        double centerX = runX[split - 1] - runX[split + 1];
+        double centerY = runY[split - 1] - runY[split + 1];
+        double length = Math.sqrt(centerX * centerX + centerY * centerY);
+        if(length != 0) {
+            centerX /= length;
+            centerY /= length;
+        }
+
+        fitCubic(first, split, leftX, leftY, centerX, centerY);
+        fitCubic(split, last, -centerX, -centerY, rightX, rightY);
+    }
+
+    private void parameterizeByChordLength(int first, int last) {
+        parameters[first] = 0;
+        for(int i = first + 1; i <= last; i++) {
+            double dx = runX[i] - runX[i - 1];
+            double dy = runY[i] - runY[i - 1];
+            parameters[i] = parameters[i - 1] + Math.sqrt(dx * dx + dy * dy);
+        }
+        double length = parameters[last];
+        for(int i = first + 1; i <= last; i++) {
+            parameters[i] = length == 0 ? 0 : parameters[i] / length;
+        }
+    }
+
+    /**
+     * Finds control points by least squares, with control points on the
+     * given tangents from the end points.
+     */
+    private void generateBezier(int first, int last, double leftX, double leftY, double rightX, double rightY) {
+        double startX = runX[first];
+        double startY = runY[first];
+        double endX = runX[last];
+        double endY = runY[last];
+        double c00 = 0;
+        double c01 = 0;
+        double c11 = 0;
+        double x0 = 0;
+        double x1 = 0;
+
+        for(int i = first; i <= last; i++) {
+            double u = parameters[i];
+            double b0 = (1 - u) * (1 - u) * (1 - u);
+            double b1 = 3 * u * (1 - u) * (1 - u);
+            double b2 = 3 * u * u * (1 - u);
+            double b3 = u * u * u;
+            double a0x = leftX * b1;
+            double a0y = leftY * b1;
+            double a1x = rightX * b2;
+            double a1y = rightY * b2;
+
+            c00 += a0x * a0x + a0y * a0y;
+            c01 += a0x * a1x + a0y * a1y;
+            c11 += a1x * a1x + a1y * a1y;
+
+            double tmpX = runX[i] - (startX * (b0 + b1) + endX * (b2 + b3));
+            double tmpY = runY[i] - (startY * (b0 + b1) + endY * (b2 + b3));
+            x0 += a0x * tmpX + a0y * tmpY;
+            x1 += a1x * tmpX + a1y * tmpY;
+        }
+
+        double determinant = c00 * c11 - c01 * c01;
+        double alphaLeft = determinant == 0 ? 0 : (x0 * c11 - x1 * c01) / determinant;
+        double alphaRight = determinant == 0 ? 0 : (c00 * x1 - c01 * x0) / determinant;
+
+        double segmentLength = Math.sqrt((endX - startX) * (endX - startX) + (endY - startY) * (endY - startY));
+        double epsilon = 1.0e-6 * segmentLength;
+        if(alphaLeft < epsilon || alphaRight < epsilon) {
+            alphaLeft = alphaRight = segmentLength / 3;
+        }
+
+        bezier[0] = startX;
+        bezier[1] = startY;
+        bezier[2] = startX + leftX * alphaLeft;
+        bezier[3] = startY + leftY * alphaLeft;
+        bezier[4] = endX + rightX * alphaRight;
+        bezier[5] = endY + rightY * alphaRight;
+        bezier[6] = endX;
+        bezier[7] = endY;
+    }
+
+    /**
+     * Finds greatest squared distance of run points, and of the midpoints of
+     * the lines between them, from the curve.
+     * @return index of point to split at if the curve is not close enough
+     */
+    private int findMaximumError(int first, int last) {
+        maximumError = 0;
+        int split = (first + last + 1) / 2;
+
+        for(int i = first + 1; i < last; i++) {
+            double error = getErrorSquared(runX[i], runY[i], parameters[i]);
+            if(error >= maximumError) {
+                maximumError = error;
+                split = i;
+            }
+        }
+        for(int i = first; i < last; i++) {
+            double error = getErrorSquared((runX[i] + runX[i + 1]) / 2, (runY[i] + runY[i + 1]) / 2,
+                    (parameters[i] + parameters[i + 1]) / 2);
+            if(error > maximumError) {
+                maximumError = error;
+                split = Math.max(first + 1, Math.min(last - 1, i + 1));
+            }
+        }
+        return split;
+    }
+
+    private double getErrorSquared(double x, double y, double u) {
+        double dx = evaluate(0, u) - x;
+        double dy = evaluate(1, u) - y;
+        return dx * dx + dy * dy;
+    }
+
+    private double evaluate(int offset, double u) {
+        double v = 1 - u;
+        return v * v * v * bezier[offset] + 3 * u * v * v * bezier[offset + 2]
+                + 3 * u * u * v * bezier[offset + 4] + u * u * u * bezier[offset + 6];
+    }
+
+    /**
+     * Improves parameters with a Newton-Raphson step towards the nearest
+     * point on the curve.
+     */
+    private void reparameterize(int first, int last) {
+        for(int i = first; i <= last; i++) {
+            double u = parameters[i];
+            double v = 1 - u;
+            double qx = evaluate(0, u) - runX[i];
+            double qy = evaluate(1, u) - runY[i];
+
+            double d1x = 3 * (v * v * (bezier[2] - bezier[0]) + 2 * u * v * (bezier[4] - bezier[2]) + u * u * (bezier[6] - bezier[4]));
+            double d1y = 3 * (v * v * (bezier[3] - bezier[1]) + 2 * u * v * (bezier[5] - bezier[3]) + u * u * (bezier[7] - bezier[5]));
+            double d2x = 6 * (v * (bezier[4] - 2 * bezier[2] + bezier[0]) + u * (bezier[6] - 2 * bezier[4] + bezier[2]));
+            double d2y = 6 * (v * (bezier[5] - 2 * bezier[3] + bezier[1]) + u * (bezier[7] - 2 * bezier[5] + bezier[3]));
+
+            double denominator = d1x * d1x + d1y * d1y + qx * d2x + qy * d2y;
+            newParameters[i] = denominator == 0 ? u : u - (qx * d1x + qy * d1y) / denominator;
+        }
+        for(int i = first; i <= last; i++) {
+            parameters[i] = Math.max(0, Math.min(1, newParameters[i]));
+        }
+    }
+
+    private void ensureParameterCapacity() {
+        if(parameters.length < runLength) {
+            parameters = new double[runX.length];
+            newParameters = new double[runX.length];
+        }
+    }
+
+    private void addFitted(char command, double x, double y) {
+        fittedCommands = ensureCapacity(fittedCommands, fittedCommandCount + 1);
+        fittedValues = ensureCapacity(fittedValues, fittedValueCount + 2);
+        fittedCommands[fittedCommandCount++] = command;
+        fittedValues[fittedValueCount++] = Math.round(x);
+        fittedValues[fittedValueCount++] = Math.round(y);
+    }
+
+    private void addFittedBezier() {
+        fittedCommands = ensureCapacity(fittedCommands, fittedCommandCount + 1);
+        fittedValues = ensureCapacity(fittedValues, fittedValueCount + 6);
+        fittedCommands[fittedCommandCount++] = 'C';
+        for(int i = 2; i < 8; i++) {
+            fittedValues[fittedValueCount++] = Math.round(bezier[i]);
+        }
+    }
+
+    private void addCommand(char command) {
+        commands = ensureCapacity(commands, commandCount + 1);
+        commands[commandCount++] = command;
+    }
+
+    private void addValue(double value) {
+        values = ensureCapacity(values, valueCount + 1);
+        values[valueCount++] = Math.round(value);
+    }
+
+    private void addValue(long value) {
+        values = ensureCapacity(values, valueCount + 1);
+        values[valueCount++] = value;
+    }
+
+    private static double[] grow(double[] array) {
+        double[] larger = new double[array.length * 2];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private static int[] ensureCapacity(int[] array, int size) {
+        if(size <= array.length) {
+            return array;
+        }
+        int[] larger = new int[Math.max(size, array.length * 2)];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private static char[] ensureCapacity(char[] array, int size) {
+        if(size <= array.length) {
+            return array;
+        }
+        char[] larger = new char[Math.max(size, array.length * 2)];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+    private static long[] ensureCapacity(long[] array, int size) {
+        if(size <= array.length) {
+            return array;
+        }
+        long[] larger = new long[Math.max(size, array.length * 2)];
+        System.arraycopy(array, 0, larger, 0, array.length);
+        return larger;
+    }
+
+}
@@ -23,6 +23,9 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.svg.*;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 
 /**
@@ -31,31 +34,202 @@ import java.io.*;
  */
 public class PotraceSvgOptimizer extends SvgOptimizer {
 
-    public void optimize(File file, SVGDocument svgDocument) {
+    /**
+     * Returns passes in the order they run. Flatten transform applies the
+     * transform of the group holding paths to their coordinates, when
+     * flattening transforms, as they are encoded.
+     */
+    public String[] getPassNames() {
+        return new String[] {FLATTEN_TRANSFORM_PASS, ENCODE_PASS};
+    }
+
+    public void optimize(SvgOutput output, SVGDocument svgDocument) {
+        SVGSVGElement rootElement = svgDocument.getRootElement();
+
+        writeDocumentStart(output, rootElement);
+        writePaths(rootElement, output);
+        output.endElement();
+    }
+
+    public void optimize(SvgOutput output, Reader reader) throws IOException {
+        XMLStreamReader r = createStreamReader(reader);
+
         try {
-            long start = System.currentTimeMillis();
+            int depth = 0;
+            boolean grouped = false;
+            pathCount = 0;
+            startPathData(createPathWriter(output));
+
+            while(r.hasNext()) {
+                int event = r.next();
+
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = r.getLocalName();
+
+                    if(depth == 1 && name.equals("svg")) {
+                        writeDocumentStart(output, adjustDimension(r.getAttributeValue(null, "width")),
+                                adjustDimension(r.getAttributeValue(null, "height")));
+                    } else if(depth == 2 && name.equals("g")) {
+                        writeGroupStart(output, getAttribute(r, "transform"), getAttribute(r, "fill"), getAttribute(r, "stroke"));
+                        grouped = true;
+                    } else if(depth == 3 && name.equals("path")) {
+                        addPath(0, getAttribute(r, "d"));
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    if(depth == 1) {
+                        endPathData();
+                        recordEncodePass();
+                        if(grouped) {
+                            output.endElement();
+                        }
+                        output.endElement();
+                    }
+                    depth--;
+                }
+            }
+        } catch(XMLStreamException e) {
+            throw createIOException(e);
+        } finally {
+            closeStreamReader(r);
+        }
+    }
+
+    public void optimize(SvgOutput output, TracedGeometry geometry) {
+        writeDocumentStart(output, adjustDimension(geometry.getWidth()), adjustDimension(geometry.getHeight()));
+        pathCount = 0;
+        startPathData(createPathWriter(output));
+
+        if(geometry.isGrouped()) {
+            writeGroupStart(output, geometry.getTransform(), geometry.getFill(), geometry.getStroke());
+        }
+
+        addPaths(geometry);
+
+        endPathData();
+        recordEncodePass();
+        if(geometry.isGrouped()) {
+            output.endElement();
+        }
+        output.endElement();
+    }
+
+    private PathWriter createPathWriter(final SvgOutput output) {
+        return new PathWriter() {
+            public void writePath(int path) {
+                pathCount++;
+                output.startElement("path");
+                output.attribute("d", getPathData(path));
+                output.endElement();
+                paths.clear();
+            }
+        };
+    }
 
-            SVGSVGElement rootElement = svgDocument.getRootElement();
-            PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(file.getPath())));
+    /**
+     * Starts group holding paths. When flattening transforms, its transform
+     * is applied to path coordinates instead of being written, which makes
+     * coordinates ten times smaller for potrace's scale of 0.1 and saves
+     * renderers transforming every path.
+     */
+    private void writeGroupStart(SvgOutput output, String transform, String fill, String stroke) {
+        long start = System.nanoTime();
+        double[] flattened = isTransformFlattened() ? parseTransform(transform) : null;
+        output.startElement("g");
 
-            writeDocumentStart(w, rootElement);
+        if(flattened == null) {
+            setPathUnit(getScale(transform));
+            output.attribute("transform", transform);
+        } else {
+            setPathTransform(flattened[0], flattened[1], flattened[2], flattened[3]);
+            recordPass(FLATTEN_TRANSFORM_PASS, System.nanoTime() - start, 0, -(" transform=\"" + transform + '"').length());
+        }
+        output.attribute("fill", fill);
+        output.attribute("stroke", stroke);
+    }
+
+    /**
+     * Returns transform as x scale, y scale, x translation and y
+     * translation, given a list of translate and scale functions as potrace
+     * writes, or null if transform has other functions.
+     */
+    private static double[] parseTransform(String transform) {
+        double[] flattened = new double[] {1, 1, 0, 0};
+        int index = 0;
+
+        while(true) {
+            while(index < transform.length() && ", ".indexOf(transform.charAt(index)) != -1) {
+                index++;
+            }
+            if(index == transform.length()) {
+                return flattened;
+            }
 
-            pathCount = writePaths(rootElement, w);
+            int open = transform.indexOf('(', index);
+            int close = open == -1 ? -1 : transform.indexOf(')', open);
+            if(close == -1) {
+                return null;
+            }
+
+            String name = transform.substring(index, open).trim();
+            String[] arguments = transform.substring(open + 1, close).trim().split("[\\s,]+");
+            if(arguments.length > 2) {
+                return null;
+            }
 
-            w.println("</svg>");
-            w.flush();
-            w.close();
+            double x;
+            double y;
+            try {
+                x = Double.parseDouble(arguments[0]);
+                y = arguments.length == 2 ? Double.parseDouble(arguments[1]) : name.equals("scale") ? x : 0;
+            } catch(NumberFormatException e) {
+                return null;
+            }
+
+            if(name.equals("translate")) {
+                flattened[2] += flattened[0] * x;
+                flattened[3] += flattened[1] * y;
+            } else if(name.equals("scale")) {
+                flattened[0] *= x;
+                flattened[1] *= y;
+            } else {
+                return null;
+            }
+            index = close + 1;
+        }
+    }
 
-            System.out.println("optimizing took " + (System.currentTimeMillis() - start));
+    /**
+     * Returns horizontal scale of transform, as written by potrace.
+     */
+    private static double getScale(String transform) {
+        int index = transform.indexOf("scale(");
 
-        } catch(IOException e) {
-            e.printStackTrace();
+        if(index != -1) {
+            int start = index + "scale(".length();
+            int end = start;
+            while(end < transform.length() && ",) ".indexOf(transform.charAt(end)) == -1) {
+                end++;
+            }
+            try {
+                return Math.abs(Double.parseDouble(transform.substring(start, end)));
+            } catch(NumberFormatException e) {
+                return 1;
+            }
         }
+        return 1;
+    }
+
+    private static String getAttribute(XMLStreamReader r, String name) {
+        String value = r.getAttributeValue(null, name);
+        return value == null ? "" : value;
     }
 
-    private int writePaths(SVGSVGElement rootElement, PrintWriter w) {
+    private void writePaths(SVGSVGElement rootElement, SvgOutput output) {
         NodeList childNodes = rootElement.getChildNodes();
-        int pathCount = 0;
+        boolean grouped = false;
+        pathCount = 0;
+        startPathData(createPathWriter(output));
 
         for(int i = 0; i < childNodes.getLength(); i++) {
             Node node = childNodes.item(i);
@@ -65,7 +239,8 @@ public class PotraceSvgOptimizer extends SvgOptimizer {
                 String fill = groupElement.getAttribute("fill");
                 String stroke = groupElement.getAttribute("stroke");
                 String transform = groupElement.getAttribute("transform");
-                w.println("<g transform=\"" + transform + "\" fill=\"" + fill + "\" stroke=\"" + stroke + "\">");
+                writeGroupStart(output, transform, fill, stroke);
+                grouped = true;
                 childNodes = groupElement.getChildNodes();
             }
         }
@@ -74,19 +249,16 @@ public class PotraceSvgOptimizer extends SvgOptimizer {
             Node node = childNodes.item(i);
 
             if(node instanceof SVGPathElement) {
-                pathCount++;
                 SVGPathElement path = (SVGPathElement)node;
-
-                w.print("<path d=\"");
-                String pathText = path.getAttribute("d");
-                w.print(pathText);
-                w.println("\"/>");
+                addPath(0, path.getAttribute("d"));
             }
         }
 
-        w.println("</g>");
-
-        return pathCount;
+        endPathData();
+        recordEncodePass();
+        if(grouped) {
+            output.endElement();
+        }
     }
 
     public void adjustDimensions(SVGDocument svgDocument) {
@@ -96,6 +268,11 @@ public class PotraceSvgOptimizer extends SvgOptimizer {
         adjustDimension(rootElement.getHeight().getBaseVal());
     }
 
+    protected String adjustDimension(String value) {
+        int index = value.indexOf('.');
+        return index == -1 ? value : value.substring(0, index);
+    }
+
     private void adjustDimension(SVGLength baseVal) {
         String valueAsString = baseVal.getValueAsString();
         valueAsString = valueAsString.substring(0, valueAsString.indexOf('.'));
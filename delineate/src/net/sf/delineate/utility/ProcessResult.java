@@ -0,0 +1,96 @@
+/*
+ * ProcessResult.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+/**
+ * Exit status, output and resource usage of a finished process.
+ * CPU time and peak resident set size are sampled from /proc while the
+ * process runs, they are -1 where /proc is not available. They are lower
+ * bounds: no sample can be taken once the process has exited, so CPU time
+ * leaves out the last sample interval, and a process that exits within one
+ * interval may report no CPU time and the memory it had when first sampled.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class ProcessResult {
+
+    private final int exitCode;
+    private final boolean timedOut;
+    private final String output;
+    private final String errorOutput;
+    private final long wallTime;
+    private final long cpuTime;
+    private final long peakRss;
+
+    public ProcessResult(int exitCode, boolean timedOut, String output, String errorOutput, long wallTime, long cpuTime, long peakRss) {
+        this.exitCode = exitCode;
+        this.timedOut = timedOut;
+        this.output = output;
+        this.errorOutput = errorOutput;
+        this.wallTime = wallTime;
+        this.cpuTime = cpuTime;
+        this.peakRss = peakRss;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return standard output, empty if it was sent elsewhere
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    /**
+     * @return elapsed time in milliseconds
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * @return user plus system CPU time in milliseconds, as last sampled
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return peak resident set size in kilobytes, as last sampled
+     */
+    public long getPeakRss() {
+        return peakRss;
+    }
+
+    public String toString() {
+        return "exit " + exitCode + (timedOut ? " (timed out)" : "") + ", wall " + wallTime + "ms, cpu "
+                + cpuTime + "ms, peak rss " + peakRss + "kb";
+    }
+
+}
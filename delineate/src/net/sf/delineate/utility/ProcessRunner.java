@@ -0,0 +1,373 @@
+/*
+ * ProcessRunner.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an external process, draining its standard output and error
+ * streams on separate threads so a process writing more than a pipe
+ * buffer of output cannot block. Enforces an optional wall clock timeout
+ * and samples the CPU time and peak memory of the process from /proc,
+ * every 20 milliseconds until it exits.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class ProcessRunner {
+
+    private static final long SAMPLE_INTERVAL = 20;
+    private static final long DEFAULT_CLOCK_TICKS_PER_SECOND = 100;
+    private static long clockTicksPerSecond = -1;
+
+    private final String[] commandArray;
+    private long timeout = 0;
+    private InputWriter inputWriter;
+    private OutputStream outputStream;
+    private OutputReader outputReader;
+
+    private volatile Process process;
+    private volatile boolean destroyed = false;
+
+    private long cpuTime = -1;
+    private long peakRss = -1;
+
+    public ProcessRunner(String[] commandArray) {
+        this.commandArray = commandArray;
+    }
+
+    /**
+     * @param timeout milliseconds after which the process is destroyed, 0 for no timeout
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param inputWriter writes the standard input of the process, on its own thread
+     */
+    public void setInputWriter(InputWriter inputWriter) {
+        this.inputWriter = inputWriter;
+    }
+
+    /**
+     * @param outputStream receives the standard output of the process, instead
+     *                     of it being returned as text in the result, {@link #run()}
+     *                     throws any exception writing to it
+     */
+    public void setOutputStream(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * @param outputReader reads the standard output of the process on its own
+     *                     thread, as the process writes it, instead of it being
+     *                     returned as text in the result
+     */
+    public void setOutputReader(OutputReader outputReader) {
+        this.outputReader = outputReader;
+    }
+
+    /**
+     * Starts the process and waits for it to finish.
+     */
+    public ProcessResult run() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        process = new ProcessBuilder(commandArray).start();
+
+        if(destroyed) {
+            process.destroy();
+        }
+
+        InputFeeder inputFeeder = new InputFeeder(process.getOutputStream(), inputWriter);
+        OutputStream output = (outputStream == null) ? new ByteArrayOutputStream() : outputStream;
+        StreamDrainer outputDrainer = new StreamDrainer(process.getInputStream(), output, outputReader);
+        StreamDrainer errorDrainer = new StreamDrainer(process.getErrorStream(), new ByteArrayOutputStream(), null);
+        inputFeeder.start();
+        outputDrainer.start();
+        errorDrainer.start();
+
+        boolean timedOut = false;
+        long pid = getPid(process);
+
+        try {
+            sampleUsage(pid);
+            while(!process.waitFor(SAMPLE_INTERVAL, TimeUnit.MILLISECONDS)) {
+                sampleUsage(pid);
+
+                if(timeout > 0 && System.currentTimeMillis() - start > timeout) {
+                    timedOut = true;
+                    process.destroy();
+                    if(!process.waitFor(1, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                    }
+                    process.waitFor();
+                }
+            }
+
+            long drainTime = (timedOut || destroyed) ? 1000 : 0; // child processes may hold streams open
+            inputFeeder.join(drainTime);
+            outputDrainer.join(drainTime);
+            errorDrainer.join(drainTime);
+        } finally {
+            process.destroy();
+        }
+
+        if(!timedOut && !destroyed && process.exitValue() == 0) {
+            if(inputFeeder.getException() != null) {
+                throw inputFeeder.getException();
+            }
+            if(outputDrainer.getException() != null) {
+                throw outputDrainer.getException();
+            }
+        }
+
+        long wallTime = System.currentTimeMillis() - start;
+        return new ProcessResult(process.exitValue(), timedOut, outputDrainer.getText(), errorDrainer.getText(), wallTime, cpuTime, peakRss);
+    }
+
+    /**
+     * Destroys the process, if it is running. A call to {@link #run()} then returns.
+     */
+    public void destroy() {
+        destroyed = true;
+        Process runningProcess = process;
+
+        if(runningProcess != null) {
+            runningProcess.destroy();
+        }
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Reads utime and stime from /proc/[pid]/stat and VmHWM from /proc/[pid]/status.
+     */
+    private void sampleUsage(long pid) {
+        if(pid == -1) {
+            return;
+        }
+
+        try {
+            String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), StandardCharsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            cpuTime = Math.max(cpuTime, ticks * 1000 / getClockTicksPerSecond());
+
+            List<String> lines = Files.readAllLines(new File("/proc/" + pid + "/status").toPath(), StandardCharsets.US_ASCII);
+            for(String line : lines) {
+                if(line.startsWith("VmHWM:")) {
+                    String kilobytes = line.substring(6).trim().split("\\s+")[0];
+                    peakRss = Math.max(peakRss, Long.parseLong(kilobytes));
+                }
+            }
+        } catch(IOException e) {
+            // process has exited or /proc is not available
+        } catch(RuntimeException e) {
+            // unexpected /proc format
+        }
+    }
+
+    /**
+     * Returns the clock tick rate of times in /proc, read once from getconf
+     * CLK_TCK, or 100, the rate of nearly all Linux kernels, if getconf fails.
+     */
+    private static synchronized long getClockTicksPerSecond() {
+        if(clockTicksPerSecond == -1) {
+            clockTicksPerSecond = DEFAULT_CLOCK_TICKS_PER_SECOND;
+            try {
+                Process getconf = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(getconf.getInputStream(), StandardCharsets.US_ASCII));
+                String line;
+                try {
+                    line = reader.readLine();
+                } finally {
+                    reader.close();
+                }
+                if(getconf.waitFor() == 0 && line != null) {
+                    long ticks = Long.parseLong(line.trim());
+                    if(ticks > 0) {
+                        clockTicksPerSecond = ticks;
+                    }
+                }
+            } catch(IOException e) {
+                // getconf is not available
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                clockTicksPerSecond = -1; // read again next time
+                return DEFAULT_CLOCK_TICKS_PER_SECOND;
+            } catch(NumberFormatException e) {
+                // unexpected getconf output
+            }
+        }
+        return clockTicksPerSecond;
+    }
+
+    /**
+     * Returns process id using Process.pid() where available, else the pid
+     * field of the platform process class, else -1.
+     */
+    private static long getPid(Process process) {
+        try {
+            Method method = Process.class.getMethod("pid");
+            return ((Long)method.invoke(process)).longValue();
+        } catch(Exception e) {
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            } catch(Exception e2) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Writes data to the standard input of a process.
+     */
+    public interface InputWriter {
+        void write(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * Reads the standard output of a process.
+     */
+    public interface OutputReader {
+        void read(InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Feeds process standard input on its own thread, then closes it.
+     */
+    private static class InputFeeder extends Thread {
+        private final OutputStream outputStream;
+        private final InputWriter inputWriter;
+        private volatile IOException exception;
+
+        public InputFeeder(OutputStream outputStream, InputWriter inputWriter) {
+            this.outputStream = outputStream;
+            this.inputWriter = inputWriter;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                if(inputWriter != null) {
+                    inputWriter.write(outputStream);
+                }
+            } catch(IOException e) {
+                exception = e; // also thrown if the process exits before reading all input
+            } finally {
+                try {
+                    outputStream.close();
+                } catch(IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        public IOException getException() {
+            return exception;
+        }
+    }
+
+    /**
+     * Copies a process stream to an output stream on its own thread, or
+     * passes it to an output reader, then discards whatever the reader
+     * leaves unread so the process cannot block writing it.
+     */
+    private static class StreamDrainer extends Thread {
+        private final InputStream inputStream;
+        private final OutputStream outputStream;
+        private final OutputReader outputReader;
+        private volatile IOException exception;
+
+        public StreamDrainer(InputStream inputStream, OutputStream outputStream, OutputReader outputReader) {
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+            this.outputReader = outputReader;
+            setDaemon(true);
+        }
+
+        public void run() {
+            byte[] buffer = new byte[8192];
+            int length;
+
+            try {
+                if(outputReader != null) {
+                    try {
+                        outputReader.read(inputStream);
+                    } catch(IOException e) {
+                        exception = e; // also thrown if the process exits before writing all output
+                    } catch(RuntimeException e) {
+                        exception = new IOException(e.getMessage(), e);
+                    }
+                }
+
+                while((length = inputStream.read(buffer)) != -1) {
+                    if(outputReader == null && exception == null) {
+                        try {
+                            outputStream.write(buffer, 0, length);
+                        } catch(IOException e) {
+                            exception = e; // output is incomplete, keep draining so the process cannot block
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                // stream closed when process destroyed
+            } finally {
+                try {
+                    inputStream.close();
+                } catch(IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /**
+         * @return exception thrown by the output reader or writing the output
+         *         stream, null if none
+         */
+        public IOException getException() {
+            return exception;
+        }
+
+        public String getText() {
+            if(outputStream instanceof ByteArrayOutputStream) {
+                return new String(((ByteArrayOutputStream)outputStream).toByteArray(), StandardCharsets.UTF_8).trim();
+            } else {
+                return "";
+            }
+        }
+    }
+
+}
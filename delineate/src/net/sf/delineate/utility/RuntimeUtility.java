@@ -19,9 +19,8 @@
  */
 package net.sf.delineate.utility;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 
 /**
  * Runtime helper methods.
@@ -29,51 +28,34 @@ import java.io.InputStreamReader;
  */
 public class RuntimeUtility {
 
-    public static void execute(String command) throws IOException, InterruptedException {
-        Runtime runtime = Runtime.getRuntime();
-        Process process = runtime.exec(command);
-        waitForCompletion(process);
+    /**
+     * Runs command and waits for it to finish.
+     * @throws IOException if the command exits with a non-zero exit code
+     */
+    public static ProcessResult execute(String[] commandArray) throws IOException, InterruptedException {
+        ProcessResult result = new ProcessRunner(commandArray).run();
+        checkExitCode(commandArray, result);
+        return result;
     }
 
-    public static BufferedReader execute(String[] commandArray) throws IOException, InterruptedException {
-        Runtime runtime = Runtime.getRuntime();
-        Process process = runtime.exec(commandArray, null, null);
-        waitForCompletion(process);
-        return new BufferedReader(new InputStreamReader(process.getInputStream()));
-    }
+    /**
+     * @throws IOException if the process timed out or exited with a non-zero exit code
+     */
+    public static void checkExitCode(String[] commandArray, ProcessResult result) throws IOException {
+        String name = new File(commandArray[0]).getName();
 
-    private static void waitForCompletion(Process process) throws InterruptedException, IOException {
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        process.waitFor();
-        if(errorReader.ready()) {
-            StringBuffer buffer = new StringBuffer(errorReader.readLine());
-            while(errorReader.ready()) {
-                buffer.append('\n' + errorReader.readLine());
-            }
-            errorReader.close();
-            String message = buffer.toString();
-            if(message.indexOf("premature end of file") == -1) {
-                throw new RuntimeException(message);
-            }
+        if(result.isTimedOut()) {
+            throw new IOException(name + " timed out after " + result.getWallTime() + "ms");
+        } else if(result.getExitCode() != 0) {
+            throw new IOException(name + " exited with code " + result.getExitCode() + ": " + result.getErrorOutput());
         }
     }
 
+    /**
+     * Runs command and returns its standard output, whatever its exit code.
+     */
     public static String getOutput(String[] commandArray) throws IOException, InterruptedException {
-        Runtime runtime = Runtime.getRuntime();
-        Process process = runtime.exec(commandArray, null, null);
-
-        BufferedReader outputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        process.waitFor();
-        StringBuffer buffer = new StringBuffer();
-
-        if(outputReader.ready()) {
-            buffer.append(outputReader.readLine());
-            while(outputReader.ready()) {
-                buffer.append('\n' + outputReader.readLine());
-            }
-        }
-
-        return buffer.toString();
+        return new ProcessRunner(commandArray).run().getOutput();
     }
 
 }
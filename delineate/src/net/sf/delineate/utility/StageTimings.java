@@ -0,0 +1,112 @@
+/*
+ * StageTimings.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time taken by each stage of one conversion, in the order the stages ran.
+ * A stage that runs more than once, such as loading a result again after
+ * optimizing it, has its times added together.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class StageTimings {
+
+    public static final String CACHE_LOOKUP = "cache lookup";
+    public static final String CONVERT_IMAGE = "convert image";
+    public static final String TRACE = "trace";
+    public static final String FIX_NAMESPACE = "fix namespace";
+    public static final String STORE_TRACE = "store trace";
+    public static final String LOAD_DOCUMENT = "load";
+    public static final String OPTIMIZE = "optimize";
+    public static final String BUILD = "build";
+    public static final String RENDER = "render";
+
+    private final Map<String, Long> stageTimes = new LinkedHashMap<String, Long>();
+    private final List<StageListener> listenerList = new ArrayList<StageListener>();
+
+    public synchronized void addStageListener(StageListener listener) {
+        listenerList.add(listener);
+    }
+
+    public synchronized void removeStageListener(StageListener listener) {
+        listenerList.remove(listener);
+    }
+
+    /**
+     * Records a stage as completed now, and tells listeners.
+     * @param start time the stage started, from System.currentTimeMillis()
+     * @return milliseconds the stage took
+     */
+    public long record(String stage, long start) {
+        long time = System.currentTimeMillis() - start;
+        StageListener[] listeners;
+
+        synchronized(this) {
+            Long previousTime = stageTimes.get(stage);
+            stageTimes.put(stage, previousTime == null ? time : previousTime.longValue() + time);
+            listeners = listenerList.toArray(new StageListener[listenerList.size()]);
+        }
+
+        for(StageListener listener : listeners) {
+            listener.stageCompleted(stage, time);
+        }
+        return time;
+    }
+
+    /**
+     * @return milliseconds taken by stage, -1 if it has not run
+     */
+    public synchronized long getTime(String stage) {
+        Long time = stageTimes.get(stage);
+        return time == null ? -1 : time.longValue();
+    }
+
+    public synchronized long getTotalTime() {
+        long total = 0;
+        for(Long time : stageTimes.values()) {
+            total += time.longValue();
+        }
+        return total;
+    }
+
+    public synchronized String toString() {
+        StringBuffer buffer = new StringBuffer();
+
+        for(Map.Entry<String, Long> entry : stageTimes.entrySet()) {
+            if(buffer.length() > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(entry.getKey()).append(' ').append(entry.getValue()).append("ms");
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * For listening to stages as they complete.
+     */
+    public interface StageListener {
+        void stageCompleted(String stage, long time);
+    }
+
+}
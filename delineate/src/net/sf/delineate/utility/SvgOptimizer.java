@@ -22,9 +22,28 @@ package net.sf.delineate.utility;
 import org.w3c.dom.svg.SVGDocument;
 import org.w3c.dom.svg.SVGSVGElement;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPathExpressionException;
 import java.awt.*;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * SVG optimizer abstract class.
@@ -35,10 +54,52 @@ public abstract class SvgOptimizer {
     public static String ONE_GROUP = "one group";
     public static String COLOR_GROUPS = "group by color";
     public static String STYLE_DEFS = "create style definitions";
+    public static String COLOR_PATHS = "one path per color";
+    public static final String ENCODE_PASS = "encode";
+    public static final String REMOVE_BACKGROUND_PASS = "remove-background";
+    public static final String MERGE_COLORS_PASS = "merge-colors";
+    public static final String CULL_PASS = "cull";
+    public static final String GROUP_PASS = "group";
+    public static final String FLATTEN_TRANSFORM_PASS = "flatten-transform";
+    public static final int DEFAULT_PATH_PRECISION = 2;
+    protected static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
     protected int pathCount = 0;
     protected String type = SvgOptimizer.NO_GROUPS;
+    private String optimizeType = SvgOptimizer.NO_GROUPS;
+    private List<String> passList = null;
     protected String background = null;
     private int thresholdPercent = 50;
+    private int pathPrecision = DEFAULT_PATH_PRECISION;
+    private double simplifyTolerance = 0;
+    private double colorMergeDistance = 0;
+    private double despeckleArea = 0;
+    private double despeckleWidth = 0;
+    private boolean occlusionCulled = false;
+    private boolean transformFlattened = false;
+    private int removedPathCount;
+    private boolean compressed = false;
+    private boolean parallel = false;
+    private double pathUnit = 1;
+    private final double[] pathTransform = new double[] {1, 1, 0, 0};
+    private PathWriter pathWriter;
+    private PathChunk chunk;
+    private final LinkedList<PathChunk> pendingChunks = new LinkedList<PathChunk>();
+    private long chunkTracedNodeCount;
+    private long chunkNodeCount;
+    private PassStatistics passStatistics = new PassStatistics();
+    private long tracedByteCount;
+    private long pathDataByteCount;
+    private long encodeTime;
+    private int speckCount;
+    private PathDataEncoder pathDataEncoder = new PathDataEncoder(DEFAULT_PATH_PRECISION);
+    protected final PathGeometry paths = new PathGeometry();
+
+    /**
+     * @return number of paths traced, including paths removed as specks or background
+     */
+    public int getTracedPathCount() {
+        return pathCount + removedPathCount;
+    }
 
     public int getPathCount() {
         return pathCount;
@@ -56,7 +117,92 @@ public abstract class SvgOptimizer {
     }
 
     public void setOptimizeType(String type) {
-        this.type = type;
+        optimizeType = type;
+        updateType();
+    }
+
+    /**
+     * Sets the passes run on each document, by name, as listed in the
+     * parameters file. Passes not named do not run. Passes must be named in
+     * the order of {@link #getPassNames()}, the order they run in, as each
+     * works on the paths the pass before it gives it while the document is
+     * streamed through the optimizer.
+     * @param names names of passes to run, or null to run all passes
+     * @throws IllegalArgumentException if a pass named is not one of this
+     *         optimizer's passes, or is named twice or out of order
+     */
+    public void setPasses(String[] names) {
+        if(names == null) {
+            passList = null;
+        } else {
+            List<String> passNames = Arrays.asList(getPassNames());
+            List<String> passes = new ArrayList<String>();
+            int previousIndex = -1;
+
+            for(int i = 0; i < names.length; i++) {
+                int index = passNames.indexOf(names[i]);
+                if(index == -1) {
+                    throw new IllegalArgumentException("Unknown optimizer pass " + names[i] + ", passes are " + passNames);
+                } else if(index <= previousIndex) {
+                    throw new IllegalArgumentException("Optimizer pass " + names[i] + " is repeated or out of order, passes run in the order " + passNames);
+                }
+                passes.add(names[i]);
+                previousIndex = index;
+            }
+            passList = passes;
+        }
+        updateType();
+    }
+
+    /**
+     * Returns names of the passes this optimizer has, in the order they run.
+     * The encode pass compacts, simplifies and despeckles path data.
+     */
+    public String[] getPassNames() {
+        return new String[] {ENCODE_PASS};
+    }
+
+    public boolean isPassEnabled(String name) {
+        return passList == null || passList.contains(name);
+    }
+
+    /**
+     * Returns names of the optimizer passes listed in a parameters file, or
+     * null if it does not list passes, for all passes to run.
+     */
+    public static String[] readPasses(XPathTool xpathTool) throws XPathExpressionException {
+        if(xpathTool.count("/parameters/command/svg-optimizer-passes") == 0) {
+            return null;
+        }
+
+        String[] names = new String[xpathTool.count("/parameters/command/svg-optimizer-passes/pass")];
+        for(int i = 0; i < names.length; i++) {
+            names[i] = xpathTool.string("/parameters/command/svg-optimizer-passes/pass[" + (i + 1) + "]").trim();
+        }
+        return names;
+    }
+
+    /**
+     * Paths are written without groups unless the group pass runs, and
+     * grouped by color rather than joined unless the encode pass runs, as
+     * joining paths needs them turned to wind the same way.
+     */
+    private void updateType() {
+        if(!isPassEnabled(GROUP_PASS)) {
+            type = NO_GROUPS;
+        } else if(optimizeType == COLOR_PATHS && !isPassEnabled(ENCODE_PASS)) {
+            type = COLOR_GROUPS;
+        } else {
+            type = optimizeType;
+        }
+        createPathDataEncoder();
+    }
+
+    /**
+     * @return statistics of each pass run on the last document optimized
+     */
+    public PassStatistics getPassStatistics() {
+        return passStatistics;
     }
 
     public boolean groupByColor() {
@@ -66,42 +212,211 @@ public abstract class SvgOptimizer {
     public void addBackground(SVGDocument document) {
     }
 
-    public abstract void optimize(File file, SVGDocument svgDocument);
+    public void optimize(File file, SVGDocument svgDocument) {
+        try {
+            SvgOutput output = createOutput(file);
+            try {
+                optimize(output, svgDocument);
+            } finally {
+                output.close();
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Optimizes document into the document output, to be shown without
+     * reading the result back from file, and writes the result to file on
+     * the executor. The result is held as UTF-8 bytes until it is written,
+     * so the file is only complete once the returned future is done.
+     * @return future done when the result file is written
+     */
+    public Future<?> optimize(final File file, SVGDocument svgDocument, DocumentSvgOutput documentOutput,
+                              ExecutorService executor) {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        final SvgOutput bufferOutput = new ByteSvgOutput(Channels.newChannel(buffer));
+        optimize(new TeeSvgOutput(documentOutput, bufferOutput), svgDocument);
+
+        return executor.submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                bufferOutput.close();
+                OutputStream outputStream = createOutputStream(file);
+                try {
+                    buffer.writeTo(outputStream);
+                } finally {
+                    outputStream.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public abstract void optimize(SvgOutput output, SVGDocument svgDocument);
+
+    /**
+     * Reads SVG written by the tracing application and writes the optimized
+     * SVG to file in a single pass, without building a document, so memory
+     * use does not grow with the number of paths traced.
+     */
+    public void optimize(File file, Reader reader) throws IOException {
+        SvgOutput output = createOutput(file);
+        try {
+            optimize(output, reader);
+        } finally {
+            output.close();
+        }
+    }
+
+    public abstract void optimize(SvgOutput output, Reader reader) throws IOException;
+
+    /**
+     * Writes the optimized SVG of traced geometry to file, reading paths
+     * from the geometry file instead of parsing the traced SVG again.
+     */
+    public void optimize(File file, TracedGeometry geometry) throws IOException {
+        SvgOutput output = createOutput(file);
+        try {
+            optimize(output, geometry);
+        } finally {
+            output.close();
+        }
+    }
+
+    public abstract void optimize(SvgOutput output, TracedGeometry geometry);
+
+    /**
+     * Returns reader that does not resolve namespaces or read the DTD,
+     * leaving names as written by the tracing application.
+     */
+    protected static XMLStreamReader createStreamReader(Reader reader) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        try {
+            return factory.createXMLStreamReader(reader);
+        } catch(XMLStreamException e) {
+            throw createIOException(e);
+        }
+    }
+
+    /**
+     * Closes a stream reader, whether or not it was read to the end. Does
+     * not close the reader it reads from.
+     */
+    protected static void closeStreamReader(XMLStreamReader r) {
+        try {
+            r.close();
+        } catch(XMLStreamException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @param compressed true to write gzip compressed SVGZ, compressing as
+     *                   the SVG is written rather than afterwards
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Returns stream for optimized SVG, compressing it if SVGZ output is set.
+     */
+    protected OutputStream createOutputStream(File file) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        if(compressed) {
+            outputStream = new GZIPOutputStream(outputStream, 64 * 1024);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Returns output writing optimized SVG to file as UTF-8 bytes, straight
+     * to the file's channel unless compressing.
+     */
+    protected SvgOutput createOutput(File file) throws IOException {
+        if(compressed) {
+            return new ByteSvgOutput(Channels.newChannel(createOutputStream(file)));
+        }
+        return new ByteSvgOutput(new FileOutputStream(file).getChannel());
+    }
 
-    private void writeWidthAndHeight(PrintWriter w, String width, String height) {
-        w.print("width=\"");
-        w.print(width);
-        w.print("\" height=\"");
-        w.print(height);
-        w.print("\"");
+    protected static IOException createIOException(XMLStreamException e) {
+        return new IOException("Cannot read traced SVG: " + e.getMessage(), e);
     }
 
-    private void writeViewBox(PrintWriter w, String width, String height) {
-        w.print("viewBox=\"0 0 ");
-        w.print(width);
-        w.print(" ");
-        w.print(height);
-        w.print("\"");
+    private void writeWidthAndHeight(SvgOutput output, String width, String height) {
+        output.attribute("width", width);
+        output.attribute("height", height);
     }
 
-    protected void writeDocumentStart(PrintWriter w, SVGSVGElement rootElement) {
+    private void writeViewBox(SvgOutput output, String width, String height) {
+        output.startAttribute("viewBox");
+        output.append("0 0 ");
+        output.append(width);
+        output.append(" ");
+        output.append(height);
+        output.endAttribute();
+    }
+
+    /**
+     * Writes color attribute, such as fill, given color as six hex digits.
+     */
+    protected static void writeColor(SvgOutput output, String name, String colorText) {
+        output.startAttribute(name);
+        output.append("#");
+        output.append(colorText);
+        output.endAttribute();
+    }
+
+    /**
+     * Writes color attribute, such as fill, given color as packed RGB.
+     */
+    protected static void writeColor(SvgOutput output, String name, int color) {
+        writeColor(output, name, getHexColor(color));
+    }
+
+    /**
+     * Returns packed RGB color as six lower case hex digits, as tracing applications write colors.
+     */
+    protected static String getHexColor(int color) {
+        char[] hex = new char[6];
+        for(int i = 5; i >= 0; i--) {
+            hex[i] = Character.forDigit(color & 0xf, 16);
+            color >>= 4;
+        }
+        return new String(hex);
+    }
+
+    protected void writeDocumentStart(SvgOutput output, SVGSVGElement rootElement) {
         String width = rootElement.getWidth().getBaseVal().getValueAsString();
         String height = rootElement.getHeight().getBaseVal().getValueAsString();
 
-        w.println("<?xml version=\"1.0\" standalone=\"no\"?>");
-        w.println("<!DOCTYPE svg PUBLIC \"-//W3C//DTD SVG 1.1//EN\" \"http://www.w3.org/Graphics/SVG/1.1/DTD/svg11.dtd\">");
+        writeDocumentStart(output, width, height);
+    }
 
-        w.print("<svg xmlns=\"http://www.w3.org/2000/svg\" ");
-//        writeWidthAndHeight(w, width, height);
-        writeViewBox(w, width, height);
-        w.println(">");
+    /**
+     * Starts document and its svg element, which is left for the optimizer to end.
+     */
+    protected void writeDocumentStart(SvgOutput output, String width, String height) {
+        output.startDocument();
+        output.startElement("svg");
+        output.attribute("xmlns", "http://www.w3.org/2000/svg");
+//        writeWidthAndHeight(output, width, height);
+        writeViewBox(output, width, height);
 
         if(background != null) {
-            w.print("<rect fill=\"#");
-            w.print(background);
-            w.print("\" ");
-            writeWidthAndHeight(w, width, height);
-            w.println("/>");
+            output.startElement("rect");
+            writeColor(output, "fill", background);
+            writeWidthAndHeight(output, width, height);
+            output.endElement();
         }
     }
 
@@ -111,6 +426,454 @@ public abstract class SvgOptimizer {
 //        rootElement.removeAttribute("height");
     }
 
+    /**
+     * Returns width or height attribute value of a traced document as
+     * {@link #adjustDimensions(SVGDocument)} would leave it.
+     */
+    protected String adjustDimension(String value) {
+        return value;
+    }
+
+    /**
+     * @param precision decimal places kept in path coordinates, or -1 to
+     *                  write path data as traced rather than compacting it
+     */
+    public void setPathPrecision(int precision) {
+        pathPrecision = precision;
+        createPathDataEncoder();
+    }
+
+    public int getPathPrecision() {
+        return pathPrecision;
+    }
+
+    /**
+     * Paths are simplified when tolerance is greater than 0, which also
+     * compacts path data, at the default precision if precision is -1.
+     * @param tolerance furthest in pixels a simplified path may be from the traced path
+     */
+    public void setSimplifyTolerance(double tolerance) {
+        simplifyTolerance = tolerance;
+        createPathDataEncoder();
+    }
+
+    public double getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    /**
+     * Paths too small to see are removed when area or width is greater than
+     * 0, which also compacts path data, at the default precision if precision
+     * is -1. Paths the color of the background are removed too.
+     * @param area  paths enclosing less area than this are removed, in square pixels
+     * @param width paths narrower than this across and down are removed, in pixels
+     */
+    public void setDespeckle(double area, double width) {
+        despeckleArea = area;
+        despeckleWidth = width;
+        createPathDataEncoder();
+    }
+
+    public double getDespeckleArea() {
+        return despeckleArea;
+    }
+
+    public double getDespeckleWidth() {
+        return despeckleWidth;
+    }
+
+    protected boolean isDespeckled() {
+        return despeckleArea > 0 || despeckleWidth > 0;
+    }
+
+    /**
+     * Paths completely covered by paths drawn after them are removed when
+     * occlusion culling is on. This holds all paths until the end of the
+     * document, as any path may be covered by those after it.
+     * @param culled true to remove hidden paths
+     */
+    public void setOcclusionCulled(boolean culled) {
+        occlusionCulled = culled;
+    }
+
+    public boolean isOcclusionCulled() {
+        return occlusionCulled;
+    }
+
+    /**
+     * Paths in a group with a transform, as potrace writes, have the
+     * transform applied to their coordinates when flattening transforms,
+     * and the group is written without it. Coordinates are then rounded to
+     * the path precision in the units of the viewBox, at the default
+     * precision if precision is -1.
+     * @param flattened true to flatten transforms into path coordinates
+     */
+    public void setTransformFlattened(boolean flattened) {
+        transformFlattened = flattened;
+        createPathDataEncoder();
+    }
+
+    /**
+     * @return true if transforms are flattened, which needs the flatten-transform and encode passes
+     */
+    public boolean isTransformFlattened() {
+        return transformFlattened && isPassEnabled(FLATTEN_TRANSFORM_PASS) && pathDataEncoder != null;
+    }
+
+    /**
+     * @return number of hidden paths removed, -1 if hidden paths were not looked for
+     */
+    public int getCulledPathCount() {
+        return -1;
+    }
+
+    /**
+     * @return characters of path data in hidden paths removed, -1 if hidden paths were not looked for
+     */
+    public long getCulledByteCount() {
+        return -1;
+    }
+
+    /**
+     * Counts path left out of the result, such as one the color of the background.
+     */
+    protected void removePath() {
+        removedPathCount++;
+    }
+
+    /**
+     * Colors within the given CIE Lab color difference of a color traced
+     * before them are written as that color, so fewer colors and color
+     * groups are written. Colors are not merged when distance is 0.
+     * @param distance CIE76 color difference, about 2.3 is barely noticeable
+     */
+    public void setColorMergeDistance(double distance) {
+        colorMergeDistance = distance;
+    }
+
+    public double getColorMergeDistance() {
+        return colorMergeDistance;
+    }
+
+    /**
+     * @return number of traced colors written as another color, -1 if colors were not merged
+     */
+    public int getMergedColorCount() {
+        return -1;
+    }
+
+    /**
+     * @return number of color groups not written because their colors were merged,
+     *         -1 if colors were not merged
+     */
+    public int getMergedGroupCount() {
+        return -1;
+    }
+
+    /**
+     * Joining paths into one path per color needs them all to wind the same
+     * way, which also compacts path data, at the default precision if
+     * precision is -1, as does flattening transforms. Path data is written
+     * as traced if the encode pass does not run.
+     */
+    private void createPathDataEncoder() {
+        if(isPassEnabled(ENCODE_PASS) && (pathPrecision >= 0 || simplifyTolerance > 0 || type == COLOR_PATHS || isDespeckled()
+                || (transformFlattened && isPassEnabled(FLATTEN_TRANSFORM_PASS)))) {
+            pathDataEncoder = createPathDataEncoder(1);
+        } else {
+            pathDataEncoder = null;
+        }
+    }
+
+    /**
+     * @param pixels size of a path coordinate unit in pixels
+     */
+    private PathDataEncoder createPathDataEncoder(double pixels) {
+        PathDataEncoder encoder = new PathDataEncoder(pathPrecision >= 0 ? pathPrecision : DEFAULT_PATH_PRECISION);
+        setPathUnit(encoder, pixels);
+        encoder.setTransform(pathTransform[0], pathTransform[1], pathTransform[2], pathTransform[3]);
+        encoder.setOriented(type == COLOR_PATHS);
+        return encoder;
+    }
+
+    /**
+     * In parallel mode path data is compacted in chunks of paths on the
+     * common fork/join pool, while the document is read, and paths are
+     * written in their original order as chunks complete. Has no effect
+     * when path data is written as traced.
+     * @param parallel true to compact path data on all processors
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Sets size of a path coordinate unit in pixels, for paths in a group
+     * that scales them, so the simplify tolerance and speck sizes stay in pixels.
+     */
+    protected void setPathUnit(double pixels) {
+        if(pixels > 0) {
+            submitChunk();
+            pathUnit = pixels;
+
+            if(pathDataEncoder != null) {
+                setPathUnit(pathDataEncoder, pathUnit);
+            }
+        }
+    }
+
+    /**
+     * Sets transform applied to path coordinates, for paths in a group
+     * whose transform is flattened into them, so coordinates are in pixels.
+     */
+    protected void setPathTransform(double scaleX, double scaleY, double translateX, double translateY) {
+        submitChunk();
+        pathTransform[0] = scaleX;
+        pathTransform[1] = scaleY;
+        pathTransform[2] = translateX;
+        pathTransform[3] = translateY;
+
+        if(pathDataEncoder != null) {
+            pathDataEncoder.setTransform(scaleX, scaleY, translateX, translateY);
+        }
+    }
+
+    private void setPathUnit(PathDataEncoder encoder, double pixels) {
+        encoder.setSimplifyTolerance(simplifyTolerance / pixels);
+        encoder.setDespeckle(despeckleArea / (pixels * pixels), despeckleWidth / pixels);
+    }
+
+    /**
+     * Clears paths, node and path counts, pass statistics, path unit and
+     * path transform, before optimizing a document.
+     * @param pathWriter writes each path given to {@link #addPath(int, String)},
+     *                   once its path data is compacted, except paths removed as specks
+     */
+    protected void startPathData(PathWriter pathWriter) {
+        this.pathWriter = pathWriter;
+        paths.clear();
+        pathUnit = 1;
+        chunk = null;
+        pendingChunks.clear();
+        chunkTracedNodeCount = 0;
+        chunkNodeCount = 0;
+        removedPathCount = 0;
+        passStatistics = new PassStatistics();
+        tracedByteCount = 0;
+        pathDataByteCount = 0;
+        encodeTime = 0;
+        speckCount = 0;
+        pathTransform[0] = 1;
+        pathTransform[1] = 1;
+        pathTransform[2] = 0;
+        pathTransform[3] = 0;
+
+        if(pathDataEncoder != null) {
+            pathDataEncoder.resetNodeCounts();
+            setPathUnit(pathDataEncoder, pathUnit);
+            pathDataEncoder.setTransform(1, 1, 0, 0);
+        }
+    }
+
+    /**
+     * Parses path into the paths held, compacting it if path data is
+     * encoded, and gives it to the path writer, straight away or in parallel
+     * mode after the paths before it.
+     * @param color color of path as packed RGB, or 0 if paths have no color of their own
+     */
+    protected void addPath(int color, String pathData) {
+        tracedByteCount += pathData.length();
+
+        if(parallel && pathDataEncoder != null) {
+            if(chunk == null) {
+                chunk = new PathChunk(createPathDataEncoder(pathUnit));
+            }
+            chunk.add(color, pathData);
+
+            if(chunk.isFull()) {
+                submitChunk();
+            }
+        } else if(pathDataEncoder == null) {
+            pathWriter.writePath(paths.addText(color, pathData));
+        } else {
+            long start = System.nanoTime();
+            int path = pathDataEncoder.add(pathData, color, paths);
+            encodeTime += System.nanoTime() - start;
+            writePath(path);
+        }
+    }
+
+    /**
+     * Adds paths of traced geometry to the paths held, as {@link #addPath(int, String)}
+     * does with path data.
+     */
+    protected void addPaths(TracedGeometry geometry) {
+        tracedByteCount += geometry.getPathDataLength();
+
+        for(int i = 0; i < geometry.getPathCount(); i++) {
+            addPath(geometry, i);
+        }
+    }
+
+    private void addPath(TracedGeometry geometry, int path) {
+        if(parallel && pathDataEncoder != null) {
+            if(chunk == null) {
+                chunk = new PathChunk(createPathDataEncoder(pathUnit));
+            }
+            chunk.add(geometry, path);
+
+            if(chunk.isFull()) {
+                submitChunk();
+            }
+        } else if(pathDataEncoder == null) {
+            pathWriter.writePath(paths.addText(geometry.getColor(path), geometry.getPathData(path)));
+        } else {
+            long start = System.nanoTime();
+            int encodedPath = pathDataEncoder.add(geometry, path, paths);
+            encodeTime += System.nanoTime() - start;
+            writePath(encodedPath);
+        }
+    }
+
+    /**
+     * Gives path to the path writer, or counts it as removed if it is a speck.
+     * @param path index of path in the paths held, or -1 if the path is a speck
+     */
+    private void writePath(int path) {
+        if(path == -1) {
+            speckCount++;
+            removePath();
+        } else {
+            pathWriter.writePath(path);
+        }
+    }
+
+    /**
+     * Gives the path writer any paths still being compacted, before the end
+     * of the document is written.
+     */
+    protected void endPathData() {
+        submitChunk();
+
+        while(!pendingChunks.isEmpty()) {
+            writeChunk(pendingChunks.removeFirst());
+        }
+    }
+
+    /**
+     * Starts compacting chunk of paths, first writing the oldest chunk if
+     * enough are pending to keep the pool busy.
+     */
+    private void submitChunk() {
+        if(chunk != null) {
+            ForkJoinPool.commonPool().execute(chunk);
+            pendingChunks.addLast(chunk);
+            chunk = null;
+
+            if(pendingChunks.size() > 2 * ForkJoinPool.getCommonPoolParallelism()) {
+                writeChunk(pendingChunks.removeFirst());
+            }
+        }
+    }
+
+    private void writeChunk(PathChunk pathChunk) {
+        pathChunk.join();
+        for(int i = 0; i < pathChunk.getPathCount(); i++) {
+            int path = pathChunk.getPath(i);
+            writePath(path == -1 ? -1 : paths.add(pathChunk.getGeometry(), path));
+        }
+        chunkTracedNodeCount += pathChunk.getTracedNodeCount();
+        chunkNodeCount += pathChunk.getNodeCount();
+        encodeTime += pathChunk.getTime();
+    }
+
+    /**
+     * @return number of nodes in the paths as traced, -1 if path data was not compacted
+     */
+    public long getTracedNodeCount() {
+        return pathDataEncoder == null ? -1 : pathDataEncoder.getTracedNodeCount() + chunkTracedNodeCount;
+    }
+
+    /**
+     * @return number of nodes in the paths written, -1 if path data was not compacted
+     */
+    public long getNodeCount() {
+        return pathDataEncoder == null ? -1 : pathDataEncoder.getNodeCount() + chunkNodeCount;
+    }
+
+    /**
+     * @return true if path data is compacted, rather than written as traced
+     */
+    public boolean isPathDataEncoded() {
+        return pathDataEncoder != null;
+    }
+
+    /**
+     * Returns path data of a path held, written as compactly as possible at
+     * the path precision, or as traced if path data is not compacted. The
+     * path data may be in a buffer reused by the next call. The path data
+     * of each path should be got once, as it is counted for the pass
+     * statistics, including that of paths later passes remove.
+     */
+    protected CharSequence getPathData(int path) {
+        CharSequence pathData;
+
+        if(pathDataEncoder == null) {
+            pathData = paths.getText(path);
+        } else {
+            long start = System.nanoTime();
+            pathData = pathDataEncoder.write(paths, path);
+            encodeTime += System.nanoTime() - start;
+        }
+        pathDataByteCount += pathData.length();
+        return pathData;
+    }
+
+    /**
+     * @return characters of path data got with {@link #getPathData(int)} since paths were started
+     */
+    protected long getPathDataByteCount() {
+        return pathDataByteCount;
+    }
+
+    /**
+     * @return nanoseconds spent encoding path data since paths were started,
+     *         added up across processors in parallel mode
+     */
+    protected long getEncodeTime() {
+        return encodeTime;
+    }
+
+    /**
+     * Returns bytes of a path element with no path data, as written without
+     * groups, for the bytes saved by each path removed.
+     */
+    protected int getPathElementLength() {
+        return "<path d=\"\"/>".length() + LINE_SEPARATOR_LENGTH;
+    }
+
+    /**
+     * Records statistics of the encode pass, once every path is written.
+     * Specks removed are counted as removed by this pass.
+     */
+    protected void recordEncodePass() {
+        if(pathDataEncoder != null) {
+            recordPass(ENCODE_PASS, encodeTime, -speckCount,
+                    pathDataByteCount - tracedByteCount - (long)speckCount * getPathElementLength());
+        }
+    }
+
+    /**
+     * @param nanos time taken by pass, in nanoseconds
+     */
+    protected void recordPass(String pass, long nanos, long elementDelta, long byteDelta) {
+        passStatistics.add(pass, nanos, elementDelta, byteDelta);
+    }
+
     public void setThresholdPercent(int value) {
         thresholdPercent = value;
     }
@@ -119,4 +882,111 @@ public abstract class SvgOptimizer {
         return thresholdPercent;
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns the optimizer settings that affect its output, for identifying
+     * cached results. Subclasses with further options should add them.
+     */
+    public String getCacheKey() {
+        return getClass().getName() + ' ' + type + " threshold=" + thresholdPercent + " precision=" + pathPrecision
+                + " simplify=" + simplifyTolerance + " despeckle=" + despeckleArea + ',' + despeckleWidth + " merge=" + colorMergeDistance + " cull=" + occlusionCulled + " flatten=" + transformFlattened + " compressed=" + compressed
+                + " passes=" + (passList == null || passList.size() == getPassNames().length ? "all" : passList.toString());
+    }
+
+    /**
+     * Writes a path once its path data is compacted, or holds it to write
+     * later, leaving the paths held to be cleared if it is written straight away.
+     */
+    protected interface PathWriter {
+        /**
+         * @param path index of path in the paths held
+         */
+        void writePath(int path);
+    }
+
+    /**
+     * Paths compacted together on the fork/join pool, each chunk with an
+     * encoder of its own as encoders are not thread safe, and paths of its
+     * own, copied to the paths held as the chunk is written.
+     */
+    private static class PathChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SIZE = 1024;
+
+        private final PathDataEncoder encoder;
+        private final PathGeometry geometry = new PathGeometry();
+        private final int[] colors = new int[SIZE];
+        private final String[] pathData = new String[SIZE];
+        private final int[] paths = new int[SIZE];
+        private TracedGeometry traced;
+        private int count;
+        private long time;
+
+        PathChunk(PathDataEncoder encoder) {
+            this.encoder = encoder;
+        }
+
+        void add(int color, String data) {
+            colors[count] = color;
+            pathData[count] = data;
+            count++;
+        }
+
+        /**
+         * Adds path of traced geometry, given by its index until compacted.
+         */
+        void add(TracedGeometry geometry, int path) {
+            traced = geometry;
+            paths[count] = path;
+            count++;
+        }
+
+        boolean isFull() {
+            return count == SIZE;
+        }
+
+        protected void compute() {
+            long start = System.nanoTime();
+
+            for(int i = 0; i < count; i++) {
+                if(pathData[i] == null) {
+                    paths[i] = encoder.add(traced, paths[i], geometry);
+                } else {
+                    paths[i] = encoder.add(pathData[i], colors[i], geometry);
+                    pathData[i] = null;
+                }
+            }
+            time = System.nanoTime() - start;
+        }
+
+        int getPathCount() {
+            return count;
+        }
+
+        /**
+         * @return index in chunk geometry of path compacted, or -1 if it is a speck
+         */
+        int getPath(int i) {
+            return paths[i];
+        }
+
+        PathGeometry getGeometry() {
+            return geometry;
+        }
+
+        long getTracedNodeCount() {
+            return encoder.getTracedNodeCount();
+        }
+
+        long getNodeCount() {
+            return encoder.getNodeCount();
+        }
+
+        /**
+         * @return nanoseconds taken compacting the chunk's paths
+         */
+        long getTime() {
+            return time;
+        }
+    }
+
+}
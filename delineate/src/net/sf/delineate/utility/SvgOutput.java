@@ -0,0 +1,69 @@
+/*
+ * SvgOutput.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.io.IOException;
+
+/**
+ * Receives the SVG an optimizer writes, element by element, so the same
+ * optimizer code can write SVG text or build a document. Attribute values
+ * are given as written in SVG, and are escaped by outputs that need it.
+ * An attribute may be given in parts between {@link #startAttribute(String)}
+ * and {@link #endAttribute()}, as path data joined from many paths is.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public interface SvgOutput {
+
+    /**
+     * Starts document, before its root element.
+     */
+    void startDocument();
+
+    /**
+     * Starts element, as the last child of the element started before it and not yet ended.
+     */
+    void startElement(String name);
+
+    void attribute(String name, CharSequence value);
+
+    void startAttribute(String name);
+
+    /**
+     * Adds text to the value of the attribute started. Text is not kept, so
+     * a buffer may be given and reused once this returns.
+     */
+    void append(CharSequence text);
+
+    void endAttribute();
+
+    void cdata(String text);
+
+    void endElement();
+
+    /**
+     * @return bytes of SVG text written so far, counting a start tag left
+     *         open as if closed for its children, or -1 if this output does
+     *         not write text
+     */
+    long getByteCount();
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,90 @@
+/*
+ * TeeSvgOutput.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.io.IOException;
+
+/**
+ * Gives what an optimizer writes to two outputs.
+ * @author robmckinnon@users.sourceforge.net
+ */
+class TeeSvgOutput implements SvgOutput {
+
+    private final SvgOutput output;
+    private final SvgOutput otherOutput;
+
+    TeeSvgOutput(SvgOutput output, SvgOutput otherOutput) {
+        this.output = output;
+        this.otherOutput = otherOutput;
+    }
+
+    public void startDocument() {
+        output.startDocument();
+        otherOutput.startDocument();
+    }
+
+    public void startElement(String name) {
+        output.startElement(name);
+        otherOutput.startElement(name);
+    }
+
+    public void attribute(String name, CharSequence value) {
+        output.attribute(name, value);
+        otherOutput.attribute(name, value);
+    }
+
+    public void startAttribute(String name) {
+        output.startAttribute(name);
+        otherOutput.startAttribute(name);
+    }
+
+    public void append(CharSequence text) {
+        output.append(text);
+        otherOutput.append(text);
+    }
+
+    public void endAttribute() {
+        output.endAttribute();
+        otherOutput.endAttribute();
+    }
+
+    public void cdata(String text) {
+        output.cdata(text);
+        otherOutput.cdata(text);
+    }
+
+    public void endElement() {
+        output.endElement();
+        otherOutput.endElement();
+    }
+
+    public long getByteCount() {
+        return Math.max(output.getByteCount(), otherOutput.getByteCount());
+    }
+
+    public void close() throws IOException {
+        try {
+            output.close();
+        } finally {
+            otherOutput.close();
+        }
+    }
+
+}
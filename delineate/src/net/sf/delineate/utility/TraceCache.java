@@ -0,0 +1,342 @@
+/*
+ * TraceCache.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * On disk cache of optimized SVG results. Entries are keyed by a hash of the
+ * input image bytes and every setting that affects the result, so the same
+ * image converted with the same settings is only traced once. Traces are
+ * cached too, as {@link TracedGeometry} files keyed by the tracing settings
+ * alone, so the same trace can be optimized again with other optimizer
+ * settings without tracing. Least recently used entries are removed when
+ * the cache grows over its maximum size.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class TraceCache {
+
+    private static final String SVG_EXTENSION = ".svg";
+    private static final String TRACE_EXTENSION = ".trace";
+    private static final String PROPERTIES_EXTENSION = ".properties";
+    private static final String TEMPORARY_SUFFIX = "~";
+    private static final long STALE_TEMPORARY_FILE_AGE = 24 * 60 * 60 * 1000L;
+    private static final String PATH_COUNT_PROPERTY = "path-count";
+    private static final String COLORS_PROPERTY = "colors";
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * @param directory where cached results are stored
+     * @param maxSize maximum total size of cached SVG and trace files, and
+     *                of temporary files being written, in bytes
+     */
+    public TraceCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns hex SHA-256 hash of the file contents and the given settings.
+     */
+    public static String createKey(File inputFile, String[] settings) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(inputFile));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while((length = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        for(String setting : settings) {
+            digest.update((byte)0);
+            digest.update(setting.getBytes(StandardCharsets.UTF_8));
+        }
+
+        StringBuffer buffer = new StringBuffer();
+        for(byte b : digest.digest()) {
+            buffer.append(Character.forDigit((b >> 4) & 0xF, 16));
+            buffer.append(Character.forDigit(b & 0xF, 16));
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Copies cached result for key to the target file, while holding the
+     * lock that stops other threads evicting it.
+     * @return cached result, or null if there is none
+     */
+    public synchronized Entry get(String key, File targetFile) throws IOException {
+        File svgFile = new File(directory, key + SVG_EXTENSION);
+        File propertiesFile = new File(directory, key + PROPERTIES_EXTENSION);
+
+        if(!svgFile.exists() || !propertiesFile.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try {
+            InputStream inputStream = new FileInputStream(propertiesFile);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+
+            Files.copy(svgFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(FileNotFoundException e) {
+            return null; // removed by another process sharing the cache directory
+        } catch(NoSuchFileException e) {
+            return null;
+        }
+
+        svgFile.setLastModified(System.currentTimeMillis());
+
+        int pathCount = Integer.parseInt(properties.getProperty(PATH_COUNT_PROPERTY, "0"));
+        String colors = properties.getProperty(COLORS_PROPERTY, "");
+        return new Entry(svgFile, pathCount, parseColors(colors));
+    }
+
+    /**
+     * Stores copy of the SVG file as the result for key, then removes least
+     * recently used results until the cache is within its maximum size.
+     * Both files of the result are written under temporary names, and the
+     * properties file is moved into place last, so a result that fails to
+     * be stored is never found.
+     */
+    public synchronized void put(String key, File svgFile, int pathCount, Color[] colors) throws IOException {
+        if(!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(PATH_COUNT_PROPERTY, Integer.toString(pathCount));
+        properties.setProperty(COLORS_PROPERTY, formatColors(colors));
+
+        File temporaryFile = File.createTempFile(key, SVG_EXTENSION + TEMPORARY_SUFFIX, directory);
+        File temporaryPropertiesFile = null;
+        try {
+            Files.copy(svgFile.toPath(), temporaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            temporaryPropertiesFile = File.createTempFile(key, PROPERTIES_EXTENSION + TEMPORARY_SUFFIX, directory);
+            OutputStream outputStream = new FileOutputStream(temporaryPropertiesFile);
+            try {
+                properties.store(outputStream, null);
+            } finally {
+                outputStream.close();
+            }
+
+            Files.move(temporaryFile.toPath(), new File(directory, key + SVG_EXTENSION).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryPropertiesFile.toPath(), new File(directory, key + PROPERTIES_EXTENSION).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporaryFile.delete();
+            if(temporaryPropertiesFile != null) {
+                temporaryPropertiesFile.delete();
+            }
+        }
+
+        evict(key);
+    }
+
+    /**
+     * Returns cached trace file for key, or null if there is none.
+     */
+    public synchronized File getTrace(String key) {
+        File traceFile = new File(directory, key + TRACE_EXTENSION);
+
+        if(!traceFile.exists()) {
+            return null;
+        }
+        traceFile.setLastModified(System.currentTimeMillis());
+        return traceFile;
+    }
+
+    /**
+     * Returns new temporary file in the cache directory, for writing a trace
+     * to be stored with {@link #putTrace(String, File)}.
+     */
+    public File createTraceFile(String key) throws IOException {
+        if(!directory.exists()) {
+            directory.mkdirs();
+        }
+        return File.createTempFile(key, TRACE_EXTENSION + TEMPORARY_SUFFIX, directory);
+    }
+
+    /**
+     * Moves trace file made by {@link #createTraceFile(String)} into the
+     * cache as the trace for key, then removes least recently used entries
+     * until the cache is within its maximum size.
+     * @return the cached trace file
+     */
+    public synchronized File putTrace(String key, File temporaryFile) throws IOException {
+        File traceFile = new File(directory, key + TRACE_EXTENSION);
+        Files.move(temporaryFile.toPath(), traceFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        evict(key);
+        return traceFile;
+    }
+
+    /**
+     * Deletes least recently used results and traces, other than those of
+     * the given key, while the cache is over its maximum size. Also deletes
+     * temporary files left by conversions that failed or were killed, and
+     * properties files of results with no SVG file.
+     */
+    private void evict(String keptKey) {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        long staleTime = System.currentTimeMillis() - STALE_TEMPORARY_FILE_AGE;
+        long totalSize = 0;
+        int entryFileCount = 0;
+        for(File file : files) {
+            String name = file.getName();
+
+            if(name.endsWith(TEMPORARY_SUFFIX)) {
+                if(file.lastModified() < staleTime) {
+                    file.delete();
+                } else {
+                    totalSize += file.length(); // still being written
+                }
+            } else if(name.endsWith(SVG_EXTENSION) || name.endsWith(TRACE_EXTENSION)) {
+                totalSize += file.length();
+                files[entryFileCount++] = file;
+            } else if(name.endsWith(PROPERTIES_EXTENSION)) {
+                String key = name.substring(0, name.length() - PROPERTIES_EXTENSION.length());
+                if(!new File(directory, key + SVG_EXTENSION).exists()) {
+                    file.delete();
+                }
+            }
+        }
+
+        File[] entryFiles = Arrays.copyOf(files, entryFileCount);
+        Arrays.sort(entryFiles, new Comparator<File>() {
+            public int compare(File file, File otherFile) {
+                long difference = file.lastModified() - otherFile.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for(int i = 0; i < entryFiles.length && totalSize > maxSize; i++) {
+            File entryFile = entryFiles[i];
+            String name = entryFile.getName();
+            boolean isTrace = name.endsWith(TRACE_EXTENSION);
+            String key = name.substring(0, name.length() - (isTrace ? TRACE_EXTENSION : SVG_EXTENSION).length());
+
+            if(key.equals(keptKey)) {
+                continue;
+            }
+
+            totalSize -= entryFile.length();
+            entryFile.delete();
+            if(!isTrace) {
+                new File(directory, key + PROPERTIES_EXTENSION).delete();
+            }
+        }
+    }
+
+    private static String formatColors(Color[] colors) {
+        StringBuffer buffer = new StringBuffer();
+
+        if(colors != null) {
+            for(int i = 0; i < colors.length; i++) {
+                if(i > 0) {
+                    buffer.append(',');
+                }
+                buffer.append(ColorUtilities.getHexColor(colors[i]));
+            }
+        }
+        return buffer.toString();
+    }
+
+    private static Color[] parseColors(String colorsText) {
+        if(colorsText.length() == 0) {
+            return null;
+        }
+
+        String[] hexColors = colorsText.split(",");
+        Color[] colors = new Color[hexColors.length];
+        for(int i = 0; i < hexColors.length; i++) {
+            colors[i] = ColorUtilities.getColor(hexColors[i]);
+        }
+        return colors;
+    }
+
+    /**
+     * A cached result.
+     */
+    public static class Entry {
+        private final File file;
+        private final int pathCount;
+        private final Color[] colors;
+
+        public Entry(File file, int pathCount, Color[] colors) {
+            this.file = file;
+            this.pathCount = pathCount;
+            this.colors = colors;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public int getPathCount() {
+            return pathCount;
+        }
+
+        /**
+         * @return colors used in the result, null if not known
+         */
+        public Color[] getColors() {
+            return colors;
+        }
+    }
+
+}
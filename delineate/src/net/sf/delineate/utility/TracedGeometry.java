@@ -0,0 +1,579 @@
+/*
+ * TracedGeometry.java
+ *
+ * Copyright (C) 2003 Robert McKinnon
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.sf.delineate.utility;
+
+import org.apache.batik.parser.ParseException;
+import org.apache.batik.parser.PathHandler;
+import org.apache.batik.parser.PathParser;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Traced paths read from a binary file, which the tracing application's SVG
+ * is converted to once, so optimizing the trace again with other settings
+ * needs no SVG parsing. The file is memory mapped and paths are read
+ * straight from the mapped file, so opening one costs next to nothing.
+ *
+ * The file, with numbers big endian, is made up of:
+ * <ul>
+ * <li>the magic number 'DLTG' and format version;</li>
+ * <li>the svg element's width and height, and the transform, fill and
+ *     stroke of the group holding paths, empty if paths are not grouped,
+ *     each as a length and UTF-8 bytes padded to four bytes;</li>
+ * <li>the number of colors, paths, commands and coordinates, then the
+ *     number of characters of path data as traced, as a long;</li>
+ * <li>a color table of packed RGB ints;</li>
+ * <li>per path, the index of its color in the color table, then per path
+ *     the index after its last command, then after its last coordinate;</li>
+ * <li>command bytes, absolute M, L, C, S, Q and Z, padded to four bytes;</li>
+ * <li>coordinates as floats.</li>
+ * </ul>
+ * Commands are those {@link PathDataEncoder} parses path data into, H and
+ * V written as L and T as Q. Arcs are not supported, as tracing
+ * applications do not write them. Paths without a color of their own, as
+ * potrace writes, have color 0.
+ * @author robmckinnon@users.sourceforge.net
+ */
+public class TracedGeometry {
+
+    private static final int MAGIC = ('D' << 24) | ('L' << 16) | ('T' << 8) | 'G';
+    private static final int VERSION = 2;
+
+    private final String width;
+    private final String height;
+    private final String transform;
+    private final String fill;
+    private final String stroke;
+    private final int pathCount;
+    private final long pathDataLength;
+    private final IntBuffer colors;
+    private final IntBuffer pathColors;
+    private final IntBuffer commandEnds;
+    private final IntBuffer coordinateEnds;
+    private final ByteBuffer commands;
+    private final FloatBuffer coordinates;
+
+    private TracedGeometry(ByteBuffer buffer) throws IOException {
+        if(buffer.getInt() != MAGIC) {
+            throw new IOException("Not a traced geometry file");
+        }
+        if(buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported traced geometry file version");
+        }
+
+        width = readString(buffer);
+        height = readString(buffer);
+        transform = readString(buffer);
+        fill = readString(buffer);
+        stroke = readString(buffer);
+
+        int colorCount = buffer.getInt();
+        pathCount = buffer.getInt();
+        int commandCount = buffer.getInt();
+        int coordinateCount = buffer.getInt();
+        pathDataLength = buffer.getLong();
+
+        colors = slice(buffer, colorCount * 4).asIntBuffer();
+        pathColors = slice(buffer, pathCount * 4).asIntBuffer();
+        commandEnds = slice(buffer, pathCount * 4).asIntBuffer();
+        coordinateEnds = slice(buffer, pathCount * 4).asIntBuffer();
+        commands = slice(buffer, getPaddedLength(commandCount));
+        coordinates = slice(buffer, coordinateCount * 4).asFloatBuffer();
+    }
+
+    /**
+     * Maps traced geometry file into memory. The file stays mapped until the
+     * returned object is garbage collected.
+     */
+    public static TracedGeometry open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return new TracedGeometry(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch(RuntimeException e) { // buffer underflow of a truncated file
+            throw new IOException("Cannot read traced geometry file " + file + ": " + e, e);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads SVG written by the tracing application and writes its paths to
+     * a traced geometry file.
+     */
+    public static void convert(Reader reader, File file) throws IOException {
+        Converter converter = new Converter();
+        XMLStreamReader r = SvgOptimizer.createStreamReader(reader);
+
+        try {
+            int depth = 0;
+
+            while(r.hasNext()) {
+                int event = r.next();
+
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = r.getLocalName();
+
+                    if(depth == 1 && name.equals("svg")) {
+                        converter.width = getAttribute(r, "width");
+                        converter.height = getAttribute(r, "height");
+                    } else if(depth == 2 && name.equals("g")) {
+                        converter.transform = getAttribute(r, "transform");
+                        converter.fill = getAttribute(r, "fill");
+                        converter.stroke = getAttribute(r, "stroke");
+                    } else if((depth == 2 || depth == 3) && name.equals("path")) {
+                        converter.addPath(getAttribute(r, "style"), getAttribute(r, "d"));
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        } catch(XMLStreamException e) {
+            throw SvgOptimizer.createIOException(e);
+        } finally {
+            SvgOptimizer.closeStreamReader(r);
+        }
+
+        converter.write(file);
+    }
+
+    public String getWidth() {
+        return width;
+    }
+
+    public String getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if paths are in a group, whose transform, fill and stroke are given
+     */
+    public boolean isGrouped() {
+        return transform.length() > 0 || fill.length() > 0 || stroke.length() > 0;
+    }
+
+    public String getTransform() {
+        return transform;
+    }
+
+    public String getFill() {
+        return fill;
+    }
+
+    public String getStroke() {
+        return stroke;
+    }
+
+    /**
+     * @return characters of path data in the traced SVG
+     */
+    public long getPathDataLength() {
+        return pathDataLength;
+    }
+
+    public int getPathCount() {
+        return pathCount;
+    }
+
+    /**
+     * @return color of path as packed RGB
+     */
+    public int getColor(int path) {
+        return colors.get(pathColors.get(path));
+    }
+
+    public int getCommandStart(int path) {
+        return path == 0 ? 0 : commandEnds.get(path - 1);
+    }
+
+    public int getCommandEnd(int path) {
+        return commandEnds.get(path);
+    }
+
+    public int getCoordinateStart(int path) {
+        return path == 0 ? 0 : coordinateEnds.get(path - 1);
+    }
+
+    public char getCommand(int index) {
+        return (char)commands.get(index);
+    }
+
+    public float getCoordinate(int index) {
+        return coordinates.get(index);
+    }
+
+    /**
+     * Returns path as absolute path data, for writing paths without compacting them.
+     */
+    public String getPathData(int path) {
+        StringBuilder builder = new StringBuilder();
+        int index = getCoordinateStart(path);
+
+        for(int i = getCommandStart(path); i < getCommandEnd(path); i++) {
+            char command = getCommand(i);
+            builder.append(command == 'Z' ? 'z' : command);
+
+            for(int j = PathGeometry.getValueCount(command); j > 0; j--) {
+                float coordinate = coordinates.get(index++);
+                if(j < PathGeometry.getValueCount(command)) {
+                    builder.append(' ');
+                }
+                if(coordinate == (int)coordinate) {
+                    builder.append((int)coordinate);
+                } else {
+                    builder.append(coordinate);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String getAttribute(XMLStreamReader r, String name) {
+        String value = r.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        buffer.position(buffer.position() + getPaddedLength(bytes.length) - bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns buffer of the next length bytes, moving past them.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static int getPaddedLength(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Collects paths of traced SVG with Batik's path parser, then writes them
+     * to file. Current points are kept as doubles, so relative coordinates
+     * add up as they do when path data is encoded.
+     */
+    private static class Converter implements PathHandler {
+        String width = "";
+        String height = "";
+        String transform = "";
+        String fill = "";
+        String stroke = "";
+
+        private final Map<Integer, Integer> colorToIndexMap = new HashMap<Integer, Integer>();
+        private int[] colorTable = new int[16];
+        private int[] pathColors = new int[64];
+        private int[] commandEnds = new int[64];
+        private int[] coordinateEnds = new int[64];
+        private byte[] commands = new byte[1024];
+        private float[] coordinates = new float[4096];
+        private int pathCount;
+        private int commandCount;
+        private int coordinateCount;
+        private long pathDataLength;
+
+        private final PathParser parser = new PathParser();
+        private double x;
+        private double y;
+        private double startX;
+        private double startY;
+        private double controlX;
+        private double controlY;
+        private boolean quadratic;
+
+        Converter() {
+            parser.setPathHandler(this);
+        }
+
+        void addPath(String style, String pathData) throws IOException {
+            int index = style.indexOf('#');
+            int color = 0;
+            if(index != -1 && index + 7 <= style.length()) {
+                color = Integer.parseInt(style.substring(index + 1, index + 7), 16);
+            }
+
+            try {
+                parser.parse(pathData);
+            } catch(ParseException e) {
+                throw new IOException("Cannot convert traced path: " + e.getMessage(), e);
+            }
+
+            if(pathCount == pathColors.length) {
+                pathColors = copyOf(pathColors, pathCount * 2);
+                commandEnds = copyOf(commandEnds, pathCount * 2);
+                coordinateEnds = copyOf(coordinateEnds, pathCount * 2);
+            }
+            pathDataLength += pathData.length();
+            pathColors[pathCount] = getColorIndex(color);
+            commandEnds[pathCount] = commandCount;
+            coordinateEnds[pathCount] = coordinateCount;
+            pathCount++;
+        }
+
+        void write(File file) throws IOException {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                writeString(output, width);
+                writeString(output, height);
+                writeString(output, transform);
+                writeString(output, fill);
+                writeString(output, stroke);
+
+                output.writeInt(colorToIndexMap.size());
+                output.writeInt(pathCount);
+                output.writeInt(commandCount);
+                output.writeInt(coordinateCount);
+                output.writeLong(pathDataLength);
+                writeInts(output, colorTable, colorToIndexMap.size());
+                writeInts(output, pathColors, pathCount);
+                writeInts(output, commandEnds, pathCount);
+                writeInts(output, coordinateEnds, pathCount);
+                output.write(commands, 0, commandCount);
+                for(int i = commandCount; i < getPaddedLength(commandCount); i++) {
+                    output.writeByte(0);
+                }
+                for(int i = 0; i < coordinateCount; i++) {
+                    output.writeFloat(coordinates[i]);
+                }
+            } finally {
+                output.close();
+            }
+        }
+
+        /**
+         * Strings are padded so that the numbers after them stay four byte aligned.
+         */
+        private static void writeString(DataOutputStream output, String text) throws IOException {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            for(int i = bytes.length; i < getPaddedLength(bytes.length); i++) {
+                output.writeByte(0);
+            }
+        }
+
+        private static void writeInts(DataOutputStream output, int[] values, int count) throws IOException {
+            for(int i = 0; i < count; i++) {
+                output.writeInt(values[i]);
+            }
+        }
+
+        private int getColorIndex(int color) {
+            Integer key = Integer.valueOf(color);
+            Integer index = colorToIndexMap.get(key);
+
+            if(index == null) {
+                index = Integer.valueOf(colorToIndexMap.size());
+                colorToIndexMap.put(key, index);
+                if(index.intValue() == colorTable.length) {
+                    colorTable = copyOf(colorTable, colorTable.length * 2);
+                }
+                colorTable[index.intValue()] = color;
+            }
+            return index.intValue();
+        }
+
+        public void startPath() {
+            x = y = startX = startY = 0;
+            quadratic = false;
+        }
+
+        public void endPath() {
+        }
+
+        public void movetoRel(float dx, float dy) {
+            movetoAbs(x + dx, y + dy);
+        }
+
+        public void movetoAbs(double moveX, double moveY) {
+            addCommand('M');
+            addPoint(moveX, moveY);
+            startX = moveX;
+            startY = moveY;
+        }
+
+        public void movetoAbs(float moveX, float moveY) {
+            movetoAbs((double)moveX, (double)moveY);
+        }
+
+        public void closePath() {
+            addCommand('Z');
+            x = startX;
+            y = startY;
+            quadratic = false;
+        }
+
+        public void linetoRel(float dx, float dy) {
+            linetoAbs(x + dx, y + dy);
+        }
+
+        public void linetoAbs(float lineX, float lineY) {
+            linetoAbs((double)lineX, (double)lineY);
+        }
+
+        public void linetoHorizontalRel(float dx) {
+            linetoAbs(x + dx, y);
+        }
+
+        public void linetoHorizontalAbs(float lineX) {
+            linetoAbs(lineX, y);
+        }
+
+        public void linetoVerticalRel(float dy) {
+            linetoAbs(x, y + dy);
+        }
+
+        public void linetoVerticalAbs(float lineY) {
+            linetoAbs(x, lineY);
+        }
+
+        public void curvetoCubicRel(float x1, float y1, float x2, float y2, float dx, float dy) {
+            addCommand('C');
+            addCoordinates(x + x1, y + y1);
+            addCoordinates(x + x2, y + y2);
+            addPoint(x + dx, y + dy);
+        }
+
+        public void curvetoCubicAbs(float x1, float y1, float x2, float y2, float endX, float endY) {
+            addCommand('C');
+            addCoordinates(x1, y1);
+            addCoordinates(x2, y2);
+            addPoint(endX, endY);
+        }
+
+        public void curvetoCubicSmoothRel(float x2, float y2, float dx, float dy) {
+            addCommand('S');
+            addCoordinates(x + x2, y + y2);
+            addPoint(x + dx, y + dy);
+        }
+
+        public void curvetoCubicSmoothAbs(float x2, float y2, float endX, float endY) {
+            addCommand('S');
+            addCoordinates(x2, y2);
+            addPoint(endX, endY);
+        }
+
+        public void curvetoQuadraticRel(float x1, float y1, float dx, float dy) {
+            curvetoQuadraticAbs(x + x1, y + y1, x + dx, y + dy);
+        }
+
+        public void curvetoQuadraticAbs(float x1, float y1, float endX, float endY) {
+            curvetoQuadraticAbs((double)x1, (double)y1, (double)endX, (double)endY);
+        }
+
+        public void curvetoQuadraticSmoothRel(float dx, float dy) {
+            curvetoQuadraticSmoothAbs(x + dx, y + dy);
+        }
+
+        public void curvetoQuadraticSmoothAbs(float endX, float endY) {
+            curvetoQuadraticSmoothAbs((double)endX, (double)endY);
+        }
+
+        public void arcRel(float rx, float ry, float rotation, boolean largeArc, boolean sweep, float dx, float dy) {
+            throw new ParseException("arcs are not supported", -1, -1);
+        }
+
+        public void arcAbs(float rx, float ry, float rotation, boolean largeArc, boolean sweep, float endX, float endY) {
+            throw new ParseException("arcs are not supported", -1, -1);
+        }
+
+        private void linetoAbs(double lineX, double lineY) {
+            addCommand('L');
+            addPoint(lineX, lineY);
+        }
+
+        private void curvetoQuadraticAbs(double x1, double y1, double endX, double endY) {
+            addCommand('Q');
+            addCoordinates(x1, y1);
+            addPoint(endX, endY);
+            controlX = x1;
+            controlY = y1;
+            quadratic = true;
+        }
+
+        /**
+         * Adds smooth quadratic curve as Q with its reflected control point.
+         */
+        private void curvetoQuadraticSmoothAbs(double endX, double endY) {
+            curvetoQuadraticAbs(quadratic ? 2 * x - controlX : x, quadratic ? 2 * y - controlY : y, endX, endY);
+        }
+
+        private void addCommand(char command) {
+            if(commandCount == commands.length) {
+                byte[] larger = new byte[commands.length * 2];
+                System.arraycopy(commands, 0, larger, 0, commandCount);
+                commands = larger;
+            }
+            commands[commandCount++] = (byte)command;
+        }
+
+        /**
+         * Adds end point of a segment, which becomes the current point.
+         */
+        private void addPoint(double pointX, double pointY) {
+            addCoordinates(pointX, pointY);
+            x = pointX;
+            y = pointY;
+            quadratic = false;
+        }
+
+        private void addCoordinates(double coordinateX, double coordinateY) {
+            if(coordinateCount + 2 > coordinates.length) {
+                float[] larger = new float[coordinates.length * 2];
+                System.arraycopy(coordinates, 0, larger, 0, coordinateCount);
+                coordinates = larger;
+            }
+            coordinates[coordinateCount++] = (float)coordinateX;
+            coordinates[coordinateCount++] = (float)coordinateY;
+        }
+
+        private static int[] copyOf(int[] array, int length) {
+            int[] larger = new int[length];
+            System.arraycopy(array, 0, larger, 0, Math.min(array.length, length));
+            return larger;
+        }
+    }
+
+}
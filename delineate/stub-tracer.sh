@@ -0,0 +1,3 @@
+#!/bin/sh
+
+exec "${JAVA_HOME}/bin/java" -cp delineate.jar net.sf.delineate.StubTracer "$@"